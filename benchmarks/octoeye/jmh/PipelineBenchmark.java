@@ -0,0 +1,85 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package octoeye.jmh;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// JMH version of Benchmark: every stage of the pupil detection on the first frames of a session, each
+// iteration on the next frame. JMH needs a named package and the sources are in the default one, so
+// Benchmark is loaded by name and the stages are called through Callable, which both packages see.
+//
+//     java -Djava.library.path=lib/x86 -cp target/benchmarks.jar:lib/opencv-249.jar org.openjdk.jmh.Main -prof gc
+//     ... org.openjdk.jmh.Main -p stage=canny,cannyJava -p session=data/2.octo
+@State(Scope.Thread)
+@BenchmarkMode({Mode.AverageTime,Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=10,time=1)
+@Measurement(iterations=20,time=1)
+@Fork(2)
+public class PipelineBenchmark {
+
+    @Param({"pipeline","medianBlur25","mser","histogramScoring","medianBlur7333","canny","cannyJava",
+            "medianBlur3Java","medianBlur3OpenCV","medianBlur25OpenCV","medianBlur7333OpenCV",
+            "rayCast","outliersFitEllipse","detectSymbols","debugOverlay","getBufferedImage"})
+    public String stage;
+
+    @Param({"data/1"})
+    public String session;
+
+    @Param({"100"})
+    public int frames;
+
+    private Object benchmark;
+    private Method prepare;
+    private Method close;
+    private int count;
+    private int frame = 0;
+    private Callable<Object> op;
+
+    @Setup(Level.Trial)
+    public void open() throws Exception {
+        Class<?> c = Class.forName("Benchmark");
+        benchmark = c.getMethod("open",String.class,int.class).invoke(null,session,frames);
+        count = (Integer)c.getMethod("getFrames").invoke(benchmark);
+        prepare = c.getMethod("prepare",String.class,int.class);
+        close = c.getMethod("close");
+    }
+
+    // the stage finds the inputs of the next frame in place, like Benchmark does before its repetitions
+    @Setup(Level.Iteration)
+    @SuppressWarnings("unchecked")
+    public void next() throws Exception {
+        op = (Callable<Object>)prepare.invoke(benchmark,stage,frame);
+        frame = (frame+1)%count;
+    }
+
+    @TearDown(Level.Trial)
+    public void release() throws Exception {
+        close.invoke(benchmark);
+    }
+
+    @Benchmark
+    public Object run() throws Exception {
+        return op.call();
+    }
+}
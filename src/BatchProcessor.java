@@ -0,0 +1,380 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class BatchProcessor {
+
+    // frames are handed out in contiguous chunks, so the work split does not depend on the thread count
+    public final static int CHUNK = 256;
+
+    private final FrameSource frames;
+    private final int threads;
+    private boolean tracking = false;
+    private Engine engine = Engine.getDefault();
+    private ResultCache cache = null;
+    private ResultsFile.Writer resultsWriter = null;
+    private ResultListener listener = null;
+
+    private final List<PupilTracker> trackers = Collections.synchronizedList(new ArrayList<PupilTracker>());
+    private final List<TrackerMetrics> trackerMetrics = new CopyOnWriteArrayList<TrackerMetrics>();
+    private final ThreadLocal<Worker> workers = new ThreadLocal<Worker>() {
+        protected Worker initialValue() {
+            Worker w = new Worker(engine.create());
+            w.tracker.setOutputMode(OutputMode.MEASUREMENTS);
+            configure(w.tracker);
+            trackers.add(w.tracker);
+            trackerMetrics.add(w.tracker.getMetrics());
+            return w;
+        }
+    };
+
+    private long elapsed = 0;
+    private int processed = 0;
+    private int found = 0;
+    private long trackedFrames = 0;
+    private long fallbacks = 0;
+    private long logInterval = 0;
+    private TrackerMetrics.Snapshot metrics = null;
+
+    private static class Worker {
+        final PupilTracker tracker;
+        final byte buffer[] = new byte[OctoEye.WIDTH*OctoEye.HEIGHT];
+
+        Worker(PupilTracker tracker) {
+            this.tracker = tracker;
+        }
+    }
+
+    public BatchProcessor(FrameSource frames, int threads) {
+        if (threads<1) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        this.frames  = frames;
+        this.threads = threads;
+    }
+
+    public BatchProcessor(FrameSource frames) {
+        this(frames,Runtime.getRuntime().availableProcessors());
+    }
+
+    public void setTracking(boolean tracking) {
+        this.tracking = tracking;
+    }
+
+    public boolean isTracking() {
+        return tracking;
+    }
+
+    // the engine of the trackers, must be set before run()
+    public void setEngine(Engine engine) {
+        this.engine = engine;
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    // frames with a cached result are not tracked again. Not used with tracking or the quality gate, their
+    // results depend on the previous frame and a cache hit would leave that state behind
+    public void setCache(ResultCache cache) {
+        this.cache = cache;
+    }
+
+    public ResultCache getCache() {
+        return cache;
+    }
+
+    // every result is also appended to the results file together with the frame timestamp and stage timings
+    public void setResultsWriter(ResultsFile.Writer resultsWriter) {
+        this.resultsWriter = resultsWriter;
+    }
+
+    public ResultsFile.Writer getResultsWriter() {
+        return resultsWriter;
+    }
+
+    // gets every result in frame order on the thread calling run(), as soon as its chunk is done
+    public void setResultListener(ResultListener listener) {
+        this.listener = listener;
+    }
+
+    public ResultListener getResultListener() {
+        return listener;
+    }
+
+    // called once for every tracker before its first frame, subclasses can override parameters here
+    protected void configure(PupilTracker tracker) {
+    }
+
+    // print the merged tracker metrics to stderr every logInterval ms while running, 0 to disable
+    public void setLogInterval(long logInterval) {
+        this.logInterval = logInterval;
+    }
+
+    // out may be null if only the results file is written
+    public void run(PrintWriter out) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        processed = 0;
+        found = 0;
+        trackedFrames = 0;
+        fallbacks = 0;
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        trackerMetrics.clear();
+        Thread logger = null;
+        if (logInterval>0) {
+            logger = TrackerMetrics.startLogging(trackerMetrics,logInterval,System.err);
+        }
+        try {
+            List<Chunk> tasks = new ArrayList<Chunk>();
+            List<Future<TrackingResult[]>> chunks = new ArrayList<Future<TrackingResult[]>>();
+            for (int first=0; first<frames.size(); first+=CHUNK) {
+                tasks.add(new Chunk(first,Math.min(first+CHUNK,frames.size())));
+                chunks.add(pool.submit(tasks.get(tasks.size()-1)));
+            }
+
+            // write results in frame order while later chunks are still being processed
+            if (out!=null) {
+                out.println(TrackingResult.header());
+            }
+            for (int i=0; i<chunks.size(); i++) {
+                TrackingResult[] results;
+                try {
+                    results = chunks.get(i).get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException)e.getCause();
+                    }
+                    throw new RuntimeException(e.getCause());
+                }
+                long stages[][] = tasks.get(i).stages;
+                chunks.set(i,null);
+                tasks.set(i,null);
+                for (int j=0; j<results.length; j++) {
+                    TrackingResult r = results[j];
+                    if (out!=null) {
+                        out.println(r.toCsv());
+                    }
+                    if (resultsWriter!=null) {
+                        resultsWriter.append(r,frames.getTimestamp(r.getIndex()),stages[j]);
+                    }
+                    if (listener!=null) {
+                        listener.onResult(r);
+                    }
+                    found += r.isPupilFound() ? 1 : 0;
+                }
+                processed += results.length;
+            }
+            if (out!=null) {
+                out.flush();
+            }
+        } finally {
+            if (logger!=null) {
+                logger.interrupt();
+            }
+            // the rows of the chunks done so far, also if a later one failed
+            if (resultsWriter!=null) {
+                resultsWriter.flush();
+            }
+            pool.shutdownNow();
+            pool.awaitTermination(1,TimeUnit.MINUTES);
+            synchronized (trackers) {
+                for (PupilTracker pt : trackers) {
+                    trackedFrames += pt.getTrackedFrames();
+                    fallbacks += pt.getFallbacks();
+                    pt.close();
+                }
+                trackers.clear();
+            }
+            metrics = TrackerMetrics.merge(trackerMetrics);
+        }
+
+        elapsed = System.nanoTime()-start;
+    }
+
+    private class Chunk implements Callable<TrackingResult[]> {
+
+        private final int first;
+        private final int last;
+        // stage timings of every frame, null for cached results
+        final long stages[][];
+
+        Chunk(int first, int last) {
+            this.first  = first;
+            this.last   = last;
+            this.stages = new long[last-first][];
+        }
+
+        public TrackingResult[] call() throws IOException {
+            Worker w = workers.get();
+            // every chunk starts with a full search, so results do not depend on which thread ran the previous chunk
+            w.tracker.setTracking(tracking);
+            TrackingResult[] results = new TrackingResult[last-first];
+            ResultCache c = tracking || w.tracker.isQualityGate() ? null : cache;
+            long parameters = c!=null ? ResultCache.parameters(w.tracker) : 0;
+            for (int i=first; i<last; i++) {
+                ByteBuffer frame = frames.getFrame(i,w.buffer);
+                long hash = 0;
+                if (c!=null) {
+                    hash = ResultCache.hash(frame);
+                    ResultCache.Entry e = c.get(hash,parameters);
+                    if (e!=null) {
+                        results[i-first] = e.getResult().withFrame(i,frames.getName(i));
+                        continue;
+                    }
+                }
+                w.tracker.process(frame);
+                results[i-first] = w.tracker.getResult(i,frames.getName(i));
+                if (resultsWriter!=null) {
+                    stages[i-first] = stageNanos(w.tracker);
+                }
+                if (c!=null) {
+                    c.put(hash,parameters,results[i-first]);
+                }
+            }
+            if (c!=null) {
+                c.flush();
+            }
+            return results;
+        }
+    }
+
+    private static long[] stageNanos(PupilTracker tracker) {
+        PipelineStage values[] = PipelineStage.values();
+        long nanos[] = new long[values.length];
+        for (int s=0; s<values.length; s++) {
+            nanos[s] = tracker.getStageNanos(values[s]);
+        }
+        return nanos;
+    }
+
+    public int getProcessed() {
+        return processed;
+    }
+
+    public int getFound() {
+        return found;
+    }
+
+    public long getTrackedFrames() {
+        return trackedFrames;
+    }
+
+    public long getFallbacks() {
+        return fallbacks;
+    }
+
+    public TrackerMetrics.Snapshot getMetrics() {
+        return metrics;
+    }
+
+    public long getElapsedNanos() {
+        return elapsed;
+    }
+
+    public double getFramesPerSecond() {
+        return elapsed>0 ? processed*1e9/elapsed : 0;
+    }
+
+    public String getSummary() {
+        String summary = String.format(Locale.ROOT,"%d frames in %.2f s (%.1f frames/s, %d threads, %s engine), pupil found in %d frames",
+                processed,elapsed/1e9,getFramesPerSecond(),threads,engine.name().toLowerCase(Locale.ROOT),found);
+        if (tracking) {
+            summary += String.format(Locale.ROOT,", %d tracked frames, %d fallbacks to full search (%.1f%%)",
+                    trackedFrames,fallbacks,trackedFrames>0 ? 100.0*fallbacks/trackedFrames : 0);
+        }
+        return summary;
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean tracking = false;
+        File cacheFile = null;
+        File resultsFile = null;
+        while (args.length>0 && args[0].startsWith("-")) {
+            if (args[0].equals("-tracking")) {
+                tracking = true;
+                args = Arrays.copyOfRange(args,1,args.length);
+            } else if (args[0].equals("-cache") && args.length>1) {
+                cacheFile = new File(args[1]);
+                args = Arrays.copyOfRange(args,2,args.length);
+            } else if (args[0].equals("-results") && args.length>1) {
+                resultsFile = new File(args[1]);
+                args = Arrays.copyOfRange(args,2,args.length);
+            } else {
+                break;
+            }
+        }
+        if (args.length<1 || args.length>3) {
+            System.err.println("Usage: BatchProcessor [-tracking] [-cache <file>] [-results <file>] <folder or session file> [threads] [output.csv]");
+            System.exit(1);
+        }
+
+        FrameSource frames = PackedSession.open(new File(args[0]));
+        int threads = args.length>1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        // with a results file the CSV is only written if an output file is given
+        PrintWriter out = args.length>2
+                ? new PrintWriter(new OutputStreamWriter(new FileOutputStream(args[2]),"UTF-8"))
+                : resultsFile==null ? new PrintWriter(System.out) : null;
+
+        BatchProcessor batch = new BatchProcessor(frames,threads);
+        batch.setTracking(tracking);
+        ResultCache cache = null;
+        if (cacheFile!=null) {
+            cache = new ResultCache(64L<<20);
+            cache.open(cacheFile);
+            batch.setCache(cache);
+        }
+        ResultsFile.Writer results = null;
+        if (resultsFile!=null) {
+            results = new ResultsFile.Writer(resultsFile);
+            batch.setResultsWriter(results);
+        }
+        batch.run(out);
+        if (args.length>2) {
+            out.close();
+        }
+        if (results!=null) {
+            results.close();
+        }
+        frames.close();
+        System.err.println(batch.getSummary());
+        System.err.println(batch.getMetrics().toLogLine());
+        if (cache!=null) {
+            cache.close();
+            System.err.println(cache.getSummary());
+        }
+    }
+}
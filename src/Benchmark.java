@@ -0,0 +1,310 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import org.opencv.core.*;
+import org.opencv.imgproc.Imgproc;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+
+// Micro benchmark of the whole pipeline and of every detectPupil stage on recorded frames.
+//
+// Each stage is measured per frame: the frame is processed once (untimed) so the stage finds its
+// inputs in place, then the stage is repeated REPS times. Reported are mean and median ns/op and the
+// Java heap bytes allocated per op (native OpenCV memory is not visible here). The last line is a
+// machine readable summary for CI. The JMH benchmarks in benchmarks/ run the same stages through
+// prepare(), with forks, warm-up and the JMH profilers.
+public class Benchmark {
+
+    public final static int REPS = 10;
+
+    private final OctoEye tracker = new OctoEye();
+    private final OverlayRenderer renderer = new OverlayRenderer();
+
+    // the Java kernels of the pure Java engine next to their OpenCV counterparts
+    private final MedianFilter median = new MedianFilter(OctoEye.WIDTH,OctoEye.HEIGHT);
+    private final CannyDetector canny = new CannyDetector(OctoEye.WIDTH,OctoEye.HEIGHT);
+    private final byte blurred[] = new byte[OctoEye.WIDTH*OctoEye.HEIGHT];
+    private final byte edges[] = new byte[OctoEye.WIDTH*OctoEye.HEIGHT];
+    private final Mat mat1 = new Mat(OctoEye.HEIGHT,OctoEye.WIDTH,CvType.CV_8UC1);
+    private final Mat mat2 = new Mat(OctoEye.HEIGHT,OctoEye.WIDTH,CvType.CV_8UC1);
+    private final List<byte[]> frames = new ArrayList<byte[]>();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private abstract class Stage implements Callable<Object> {
+
+        final String name;
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        // brings the tracker into the state the stage expects, untimed
+        void setup(byte frame[]) {
+            tracker.process(frame);
+        }
+
+        // returns what the stage produced, so JMH can consume it
+        abstract Object run();
+
+        public Object call() {
+            return run();
+        }
+    }
+
+    private final Stage[] stages = {
+        new Stage("pipeline") {
+            byte frame[];
+            void setup(byte frame[]) {
+                this.frame = frame;
+            }
+            Object run() {
+                tracker.process(frame);
+                return tracker.getOutcome();
+            }
+        },
+        new Stage("medianBlur25") {
+            Object run() {
+                tracker.blurCoarse();
+                return null;
+            }
+        },
+        new Stage("mser") {
+            void setup(byte frame[]) {
+                super.setup(frame);
+                tracker.blurCoarse();
+            }
+            Object run() {
+                tracker.detectFeatures();
+                return null;
+            }
+        },
+        new Stage("histogramScoring") {
+            void setup(byte frame[]) {
+                super.setup(frame);
+                tracker.blurCoarse();
+                tracker.detectFeatures();
+            }
+            Object run() {
+                return tracker.scoreFeatures();
+            }
+        },
+        new Stage("medianBlur7333") {
+            Object run() {
+                tracker.blurFine(null);
+                return null;
+            }
+        },
+        new Stage("canny") {
+            Object run() {
+                tracker.detectEdges(null);
+                return null;
+            }
+        },
+        new Stage("cannyJava") {
+            void setup(byte frame[]) {
+                super.setup(frame);
+                tracker.blurFine(null);
+                tracker.getTmp1().get(0,0,blurred);
+            }
+            Object run() {
+                canny.detect(blurred,edges,40,50);
+                return edges;
+            }
+        },
+        new Stage("medianBlur3Java") {
+            byte frame[];
+            void setup(byte frame[]) {
+                this.frame = frame;
+            }
+            Object run() {
+                median.apply(frame,blurred,3);
+                return blurred;
+            }
+        },
+        new Stage("medianBlur3OpenCV") {
+            Object run() {
+                Imgproc.medianBlur(tracker.getSrc(),mat1,3);
+                return mat1;
+            }
+        },
+        new Stage("medianBlur25OpenCV") {
+            Object run() {
+                Imgproc.medianBlur(tracker.getSrc(),mat1,25);
+                return mat1;
+            }
+        },
+        new Stage("medianBlur7333OpenCV") {
+            Object run() {
+                Imgproc.medianBlur(tracker.getSrc(),mat1,7);
+                Imgproc.medianBlur(mat1,mat2,3);
+                Imgproc.medianBlur(mat2,mat1,3);
+                Imgproc.medianBlur(mat1,mat2,3);
+                return mat2;
+            }
+        },
+        new Stage("rayCast") {
+            Object run() {
+                return tracker.searchEdges();
+            }
+        },
+        new Stage("outliersFitEllipse") {
+            Object run() {
+                return tracker.fitEdges();
+            }
+        },
+        new Stage("detectSymbols") {
+            Object run() {
+                tracker.detectSymbols();
+                return null;
+            }
+        },
+        new Stage("debugOverlay") {
+            byte frame[];
+            void setup(byte frame[]) {
+                super.setup(frame);
+                this.frame = frame;
+            }
+            Object run() {
+                return renderer.render(frame,tracker.getIntermediates(),OutputMode.DEBUG);
+            }
+        },
+        new Stage("getBufferedImage") {
+            Object run() {
+                return tracker.getBufferedImage(tracker.getDst());
+            }
+        }
+    };
+
+    public Benchmark(FrameSource source, int count) throws IOException {
+        // stages are measured without drawing, the overlay has its own stage
+        tracker.setOutputMode(OutputMode.MEASUREMENTS);
+        tracker.setRecording(true);
+        for (int i=0; i<Math.min(count,source.size()); i++) {
+            byte frame[] = new byte[OctoEye.WIDTH*OctoEye.HEIGHT];
+            source.read(i,frame);
+            frames.add(frame);
+        }
+        if (frames.isEmpty()) {
+            throw new IllegalArgumentException("no frames to benchmark");
+        }
+    }
+
+    public static Benchmark open(String path, int count) throws IOException {
+        FrameSource source = PackedSession.open(new File(path));
+        try {
+            return new Benchmark(source,count);
+        } finally {
+            source.close();
+        }
+    }
+
+    public int getFrames() {
+        return frames.size();
+    }
+
+    // sets the stage up for the frame and returns it, each call() runs the stage once
+    public Callable<Object> prepare(String name, int frame) {
+        for (Stage stage : stages) {
+            if (stage.name.equals(name)) {
+                stage.setup(frames.get(frame));
+                return stage;
+            }
+        }
+        throw new IllegalArgumentException("unknown stage "+name);
+    }
+
+    public void close() {
+        tracker.close();
+        renderer.close();
+        median.close();
+        mat1.release();
+        mat2.release();
+    }
+
+    private long allocatedBytes() {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    // returns {mean ns/op, median ns/op, bytes/op}
+    private double[] measure(Stage stage, int iterations) {
+        long times[] = new long[iterations*frames.size()];
+        long bytes = 0;
+        int n = 0;
+        for (int it=0; it<iterations; it++) {
+            for (byte frame[] : frames) {
+                stage.setup(frame);
+                long a = allocatedBytes();
+                long start = System.nanoTime();
+                for (int r=0; r<REPS; r++) {
+                    stage.run();
+                }
+                long end = System.nanoTime();
+                bytes += allocatedBytes()-a;
+                times[n++] = (end-start)/REPS;
+            }
+        }
+        Arrays.sort(times);
+        long sum = 0;
+        for (long t : times) {
+            sum += t;
+        }
+        return new double[] {(double)sum/n,times[n/2],(double)bytes/n/REPS};
+    }
+
+    public void run(int warmup, int iterations, List<String> only) {
+        StringBuilder ci = new StringBuilder("benchmark");
+        System.out.println(String.format(Locale.ROOT,"%-20s %14s %14s %14s","stage","mean ns/op","median ns/op","B/op"));
+        for (Stage stage : stages) {
+            if (!only.isEmpty() && !only.contains(stage.name)) {
+                continue;
+            }
+            measure(stage,warmup);
+            double[] r = measure(stage,iterations);
+            System.out.println(String.format(Locale.ROOT,"%-20s %14.0f %14.0f %14.1f",stage.name,r[0],r[1],r[2]));
+            ci.append(String.format(Locale.ROOT," %s=%.0f/%.0f",stage.name,r[1],r[2]));
+        }
+        System.out.println(ci);
+        close();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length<1) {
+            System.err.println("Usage: Benchmark <folder or session file> [frames] [iterations] [stage...]");
+            System.exit(1);
+        }
+
+        FrameSource source = PackedSession.open(new File(args[0]));
+        int count      = args.length>1 ? Integer.parseInt(args[1]) : 100;
+        int iterations = args.length>2 ? Integer.parseInt(args[2]) : 5;
+        List<String> only = args.length>3 ? Arrays.asList(args).subList(3,args.length) : new ArrayList<String>();
+
+        Benchmark benchmark = new Benchmark(source,count);
+        source.close();
+        benchmark.run(iterations,iterations,only);
+    }
+}
@@ -0,0 +1,170 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+// finds dark, compact blobs in an 8-bit image, a plain Java stand-in for the MSER feature detector:
+// the image is thresholded at increasing levels and every connected region of the right size and
+// shape becomes a candidate, regions which stay at the same place over several levels are reported once
+public class BlobDetector {
+
+    public final static int MAX_BLOBS = 64;
+
+    private final int width;
+    private final int height;
+
+    private int minLevel = 16;
+    private int maxLevel = 96;
+    private int levelStep = 8;
+    private int minArea = 10;
+    private int maxArea = 8000;
+    // area of the region divided by the area of its bounding box, a disc has pi/4
+    private double minFill = 0.5;
+    // blobs closer than this to an earlier one are the same blob on another level
+    private int mergeDistance = 4;
+
+    // label of the level a pixel was last visited on, saves clearing a map for every level
+    private final int visited[];
+    private final int stack[];
+    private int pass = 0;
+
+    private int blobs = 0;
+    private final float blobX[] = new float[MAX_BLOBS];
+    private final float blobY[] = new float[MAX_BLOBS];
+    private final int blobArea[] = new int[MAX_BLOBS];
+
+    public BlobDetector(int width, int height) {
+        this.width  = width;
+        this.height = height;
+        visited = new int[width*height];
+        stack   = new int[width*height];
+    }
+
+    // returns the number of blobs found, their centers are available through getX() and getY()
+    public int detect(byte image[]) {
+        blobs = 0;
+        for (int level=minLevel; level<=maxLevel && blobs<MAX_BLOBS; level+=levelStep) {
+            pass++;
+            for (int i=0; i<width*height && blobs<MAX_BLOBS; i++) {
+                if ((image[i]&0xff)<=level && visited[i]!=pass) {
+                    region(image,i,level);
+                }
+            }
+        }
+        return blobs;
+    }
+
+    // flood fills the 4-connected region below level starting at pixel i
+    private void region(byte image[], int i, int level) {
+        int n = 0;
+        int area = 0;
+        long sumX = 0;
+        long sumY = 0;
+        int minX = width, maxX = 0, minY = height, maxY = 0;
+
+        visited[i] = pass;
+        stack[n++] = i;
+        while (n>0) {
+            int k = stack[--n];
+            int x = k%width;
+            int y = k/width;
+            area++;
+            sumX += x;
+            sumY += y;
+            minX = Math.min(minX,x);
+            maxX = Math.max(maxX,x);
+            minY = Math.min(minY,y);
+            maxY = Math.max(maxY,y);
+
+            if (x>0 && visit(image,k-1,level)) {
+                stack[n++] = k-1;
+            }
+            if (x<width-1 && visit(image,k+1,level)) {
+                stack[n++] = k+1;
+            }
+            if (y>0 && visit(image,k-width,level)) {
+                stack[n++] = k-width;
+            }
+            if (y<height-1 && visit(image,k+width,level)) {
+                stack[n++] = k+width;
+            }
+        }
+
+        if (area<minArea || area>maxArea) {
+            return;
+        }
+        if (area<minFill*(maxX-minX+1)*(maxY-minY+1)) {
+            return;
+        }
+        float cx = (float)sumX/area;
+        float cy = (float)sumY/area;
+        for (int b=0; b<blobs; b++) {
+            if (Math.abs(blobX[b]-cx)<=mergeDistance && Math.abs(blobY[b]-cy)<=mergeDistance) {
+                return;
+            }
+        }
+        blobX[blobs] = cx;
+        blobY[blobs] = cy;
+        blobArea[blobs] = area;
+        blobs++;
+    }
+
+    private boolean visit(byte image[], int k, int level) {
+        if (visited[k]==pass || (image[k]&0xff)>level) {
+            return false;
+        }
+        visited[k] = pass;
+        return true;
+    }
+
+    // threshold levels from min to max in steps of step
+    public void setLevels(int min, int max, int step) {
+        if (min<0 || max>255 || min>max || step<1) {
+            throw new IllegalArgumentException("invalid levels "+min+".."+max+" step "+step);
+        }
+        minLevel  = min;
+        maxLevel  = max;
+        levelStep = step;
+    }
+
+    public void setArea(int min, int max) {
+        if (min<1 || min>max) {
+            throw new IllegalArgumentException("invalid area "+min+".."+max);
+        }
+        minArea = min;
+        maxArea = max;
+    }
+
+    public void setMinFill(double minFill) {
+        this.minFill = minFill;
+    }
+
+    public int getCount() {
+        return blobs;
+    }
+
+    public float getX(int i) {
+        return blobX[i];
+    }
+
+    public float getY(int i) {
+        return blobY[i];
+    }
+
+    public int getArea(int i) {
+        return blobArea[i];
+    }
+}
@@ -0,0 +1,120 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+// scores candidate pupil positions by the dark pixels around them: every pixel below the threshold adds
+// threshold-value, the same as weighting a histogram of the patch with (threshold-bin) for the dark bins.
+// The first candidates of an image are summed directly, once that has cost as much as a pass over the
+// image a summed-area table of the weights is built and every further candidate costs O(1).
+public class CandidateScorer {
+
+    private final int width;
+    private final int height;
+
+    private int window = 5;
+    private int threshold = 256/3;
+
+    private byte image[];
+    // summed-area table with a zero row and column in front, sat[(y+1)*(width+1)+x+1] sums up to (x,y)
+    private final int sat[];
+    private boolean table = false;
+    private long spent = 0;
+
+    public CandidateScorer(int width, int height) {
+        this.width  = width;
+        this.height = height;
+        sat = new int[(width+1)*(height+1)];
+    }
+
+    // the image the next candidates are taken from, it must not change until the next call
+    public void setImage(byte image[]) {
+        this.image = image;
+        table = false;
+        spent = 0;
+    }
+
+    // the patch of a candidate, x, y, width and height, clipped like Rect(tl,br) with tl=(x,y)-window, br=(x,y)+window
+    public int[] rect(int x, int y) {
+        int x1 = x-window>=0 ? x-window : 0;
+        int y1 = y-window>=0 ? y-window : 0;
+        int x2 = x+window<width  ? x+window : width-1;
+        int y2 = y+window<height ? y+window : height-1;
+        return new int[] {x1,y1,x2-x1,y2-y1};
+    }
+
+    public int score(int x, int y) {
+        int r[] = rect(x,y);
+        if (!table && spent+r[2]*r[3]>width*height) {
+            build();
+        }
+        if (table) {
+            int w = width+1;
+            int x1 = r[0], y1 = r[1], x2 = r[0]+r[2], y2 = r[1]+r[3];
+            return sat[y2*w+x2]-sat[y1*w+x2]-sat[y2*w+x1]+sat[y1*w+x1];
+        }
+        spent += r[2]*r[3];
+        int sum = 0;
+        for (int yy=r[1]; yy<r[1]+r[3]; yy++) {
+            for (int xx=r[0]; xx<r[0]+r[2]; xx++) {
+                sum += weight(image[yy*width+xx]);
+            }
+        }
+        return sum;
+    }
+
+    private void build() {
+        int w = width+1;
+        for (int y=0; y<height; y++) {
+            int row = 0;
+            for (int x=0; x<width; x++) {
+                row += weight(image[y*width+x]);
+                sat[(y+1)*w+x+1] = sat[y*w+x+1]+row;
+            }
+        }
+        table = true;
+    }
+
+    private int weight(byte b) {
+        int d = threshold-(b&0xff);
+        return d>0 ? d : 0;
+    }
+
+    // half the edge length of the scored patch
+    public void setWindow(int window) {
+        if (window<1) {
+            throw new IllegalArgumentException("window must be positive");
+        }
+        this.window = window;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    // pixels darker than this count, the darker the more
+    public void setThreshold(int threshold) {
+        if (threshold<1 || threshold>256) {
+            throw new IllegalArgumentException("threshold must be between 1 and 256");
+        }
+        this.threshold = threshold;
+        table = false;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+}
@@ -0,0 +1,195 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.Arrays;
+
+// Canny edge detector for 8-bit images, 3x3 Sobel with the L1 gradient norm like Imgproc.Canny,
+// edges are 255, everything else 0
+public class CannyDetector {
+
+    // tan(22.5 degrees) in 15 bit fixed point
+    private final static int TG22 = (int)(0.4142135623730950488016887242097*(1<<15)+0.5);
+
+    private final int width;
+    private final int height;
+    // the per-pixel arrays have a border of one pixel, zeroed around the region so that the neighbour
+    // lookups of the suppression and the hysteresis need no bounds checks
+    private final int stride;
+
+    private final int dx[];
+    private final int dy[];
+    private final int mag[];
+    // 0: no edge, 1: weak edge, 2: strong edge
+    private final byte map[];
+    // strong edges still to be followed, grows on demand, at most one entry per pixel
+    private int stack[] = new int[1024];
+
+    // vertical Sobel sums of one row, smooth[c] = up+2*mid+down and diff[c] = down-up, one column of border each side
+    private final int smooth[];
+    private final int diff[];
+
+    public CannyDetector(int width, int height) {
+        this.width  = width;
+        this.height = height;
+        stride = width+2;
+        dx     = new int[stride*(height+2)];
+        dy     = new int[stride*(height+2)];
+        mag    = new int[stride*(height+2)];
+        map    = new byte[stride*(height+2)];
+        smooth = new int[width+2];
+        diff   = new int[width+2];
+    }
+
+    public void detect(byte src[], byte dst[], int low, int high) {
+        detect(src,dst,low,high,0,0,width,height);
+    }
+
+    // only the region is processed and written, its borders are replicated
+    public void detect(byte src[], byte dst[], int low, int high, int rx, int ry, int rw, int rh) {
+        if (low>high) {
+            int t = low;
+            low = high;
+            high = t;
+        }
+        int x1 = rx+rw;
+        int y1 = ry+rh;
+
+        // gradients, the 3x3 Sobel split into a vertical pass over the row and a horizontal one over the sums
+        for (int y=ry; y<y1; y++) {
+            int up   = Math.max(y-1,ry)*width;
+            int row  = y*width;
+            int down = Math.min(y+1,y1-1)*width;
+            for (int x=rx, i=1; x<x1; x++, i++) {
+                int a = src[up+x]&0xff;
+                int b = src[row+x]&0xff;
+                int c = src[down+x]&0xff;
+                smooth[i] = a+2*b+c;
+                diff[i]   = c-a;
+            }
+            smooth[0]    = smooth[1];
+            diff[0]      = diff[1];
+            smooth[rw+1] = smooth[rw];
+            diff[rw+1]   = diff[rw];
+            int k = (y+1)*stride+rx+1;
+            for (int i=1; i<=rw; i++, k++) {
+                int gx = smooth[i+1]-smooth[i-1];
+                int gy = diff[i-1]+2*diff[i]+diff[i+1];
+                dx[k]  = gx;
+                dy[k]  = gy;
+                mag[k] = Math.abs(gx)+Math.abs(gy);
+            }
+        }
+        clearBorder(rx,ry,rw,rh);
+
+        // non-maximum suppression, strong edges are pushed for the hysteresis
+        int n = 0;
+        for (int y=ry; y<y1; y++) {
+            int k = (y+1)*stride+rx+1;
+            for (int x=rx; x<x1; x++, k++) {
+                int m = mag[k];
+                map[k] = 0;
+                if (m<=low) {
+                    continue;
+                }
+                int ax = Math.abs(dx[k]);
+                int ay = Math.abs(dy[k])<<15;
+                int tg22x = ax*TG22;
+                boolean max;
+                if (ay<tg22x) {
+                    // horizontal gradient
+                    max = m>mag[k-1] && m>=mag[k+1];
+                } else if (ay>tg22x+(ax<<16)) {
+                    // vertical gradient
+                    max = m>mag[k-stride] && m>=mag[k+stride];
+                } else {
+                    int s = (dx[k]^dy[k])<0 ? -1 : 1;
+                    max = m>mag[k-stride-s] && m>mag[k+stride+s];
+                }
+                if (!max) {
+                    continue;
+                }
+                if (m>high) {
+                    map[k] = 2;
+                    n = push(n,k);
+                } else {
+                    map[k] = 1;
+                }
+            }
+        }
+
+        // hysteresis, weak edges connected to a strong edge become strong
+        while (n>0) {
+            int k = stack[--n];
+            for (int dy=-stride; dy<=stride; dy+=stride) {
+                for (int j=k+dy-1; j<=k+dy+1; j++) {
+                    if (map[j]==1) {
+                        map[j] = 2;
+                        n = push(n,j);
+                    }
+                }
+            }
+        }
+
+        // 2 becomes 255, 0 and 1 become 0
+        for (int y=ry; y<y1; y++) {
+            int row = y*width;
+            int k = (y+1)*stride+1;
+            for (int x=rx; x<x1; x++) {
+                dst[row+x] = (byte)-(map[k+x]>>1);
+            }
+        }
+    }
+
+    private int push(int n, int k) {
+        if (n==stack.length) {
+            stack = Arrays.copyOf(stack,2*n);
+        }
+        stack[n] = k;
+        return n+1;
+    }
+
+    // magnitude and map of the pixels around the region are 0, as if nothing was outside of it
+    private void clearBorder(int rx, int ry, int rw, int rh) {
+        int top    = ry*stride+rx;
+        int bottom = (ry+rh+1)*stride+rx;
+        Arrays.fill(mag,top,top+rw+2,0);
+        Arrays.fill(map,top,top+rw+2,(byte)0);
+        Arrays.fill(mag,bottom,bottom+rw+2,0);
+        Arrays.fill(map,bottom,bottom+rw+2,(byte)0);
+        for (int y=ry+1; y<=ry+rh; y++) {
+            int left  = y*stride+rx;
+            int right = left+rw+1;
+            mag[left]  = 0;
+            map[left]  = 0;
+            mag[right] = 0;
+            map[right] = 0;
+        }
+    }
+
+    // clears dst outside the region, for callers which only detect edges in a part of the image
+    public static void clearOutside(byte dst[], int width, int height, int rx, int ry, int rw, int rh) {
+        for (int y=0; y<height; y++) {
+            if (y<ry || y>=ry+rh) {
+                Arrays.fill(dst,y*width,(y+1)*width,(byte)0);
+            } else {
+                Arrays.fill(dst,y*width,y*width+rx,(byte)0);
+                Arrays.fill(dst,y*width+rx+rw,(y+1)*width,(byte)0);
+            }
+        }
+    }
+}
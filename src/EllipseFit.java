@@ -0,0 +1,249 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+// direct least-squares ellipse fit (Fitzgibbon, Pilu and Fisher) in the numerically stable form of
+// Halir and Flusser, results use the RotatedRect convention of Imgproc.fitEllipse:
+// center x, center y, width, height and the angle of the width axis in degrees
+public class EllipseFit {
+
+    // fits an ellipse to the first n points, returns false if they do not describe one
+    public static boolean fit(double x[], double y[], int n, double ellipse[]) {
+        return fit(x,y,null,n,ellipse);
+    }
+
+    // the same with a weight per point, null weighs all points 1, points with weight 0 are ignored
+    public static boolean fit(double x[], double y[], double w[], int n, double ellipse[]) {
+        // normalize the points around their mean, keeps the scatter matrices well conditioned
+        double mx = 0, my = 0, total = 0;
+        int used = 0;
+        for (int i=0; i<n; i++) {
+            double wi = w==null ? 1 : w[i];
+            mx += wi*x[i];
+            my += wi*y[i];
+            total += wi;
+            used += wi>0 ? 1 : 0;
+        }
+        if (used<5 || total<=0) {
+            return false;
+        }
+        mx /= total;
+        my /= total;
+        double scale = 0;
+        for (int i=0; i<n; i++) {
+            double wi = w==null ? 1 : w[i];
+            scale += wi*((x[i]-mx)*(x[i]-mx)+(y[i]-my)*(y[i]-my));
+        }
+        scale = Math.sqrt(scale/total);
+        if (scale==0) {
+            return false;
+        }
+
+        // the scatter matrices of the quadratic part (x², xy, y²) and the linear part (x, y, 1)
+        // only need the weighted moments up to degree 4, summed in one pass
+        double m40 = 0, m31 = 0, m22 = 0, m13 = 0, m04 = 0;
+        double m30 = 0, m21 = 0, m12 = 0, m03 = 0;
+        double m20 = 0, m11 = 0, m02 = 0, m10 = 0, m01 = 0;
+        for (int i=0; i<n; i++) {
+            double wi = w==null ? 1 : w[i];
+            double u = (x[i]-mx)/scale;
+            double v = (y[i]-my)/scale;
+            double uu = u*u, uv = u*v, vv = v*v;
+            m40 += wi*uu*uu;
+            m31 += wi*uu*uv;
+            m22 += wi*uu*vv;
+            m13 += wi*uv*vv;
+            m04 += wi*vv*vv;
+            m30 += wi*uu*u;
+            m21 += wi*uu*v;
+            m12 += wi*u*vv;
+            m03 += wi*vv*v;
+            m20 += wi*uu;
+            m11 += wi*uv;
+            m02 += wi*vv;
+            m10 += wi*u;
+            m01 += wi*v;
+        }
+        double s1[] = {m40,m31,m22, m31,m22,m13, m22,m13,m04};
+        double s2[] = {m30,m21,m20, m21,m12,m11, m12,m03,m02};
+        double s3[] = {m20,m11,m10, m11,m02,m01, m10,m01,total};
+
+        // t = -inverse(s3)*transpose(s2), m = s1+s2*t
+        double i3[] = invert(s3);
+        if (i3==null) {
+            return false;
+        }
+        double t[] = new double[9];
+        for (int r=0; r<3; r++) {
+            for (int c=0; c<3; c++) {
+                double sum = 0;
+                for (int k=0; k<3; k++) {
+                    sum += i3[r*3+k]*s2[c*3+k];
+                }
+                t[r*3+c] = -sum;
+            }
+        }
+        double m[] = new double[9];
+        for (int r=0; r<3; r++) {
+            for (int c=0; c<3; c++) {
+                double sum = s1[r*3+c];
+                for (int k=0; k<3; k++) {
+                    sum += s2[r*3+k]*t[k*3+c];
+                }
+                m[r*3+c] = sum;
+            }
+        }
+
+        // premultiply with the inverse of the constraint matrix [0 0 2; 0 -1 0; 2 0 0]
+        double a[] = {
+            m[6]/2, m[7]/2, m[8]/2,
+            -m[3],  -m[4],  -m[5],
+            m[0]/2, m[1]/2, m[2]/2
+        };
+
+        // the eigenvector with 4ac-b² > 0 holds the quadratic coefficients
+        double roots[] = new double[3];
+        int count = eigenvalues(a,roots);
+        double best[] = null;
+        for (int i=0; i<count && best==null; i++) {
+            double v[] = eigenvector(a,roots[i]);
+            if (v!=null && 4*v[0]*v[2]-v[1]*v[1]>0) {
+                best = v;
+            }
+        }
+        if (best==null) {
+            return false;
+        }
+        double qa = best[0], qb = best[1], qc = best[2];
+        double qd = t[0]*qa+t[1]*qb+t[2]*qc;
+        double qe = t[3]*qa+t[4]*qb+t[5]*qc;
+        double qf = t[6]*qa+t[7]*qb+t[8]*qc;
+
+        // center, axes and angle of a x² + b xy + c y² + d x + e y + f = 0
+        double den = qb*qb-4*qa*qc;
+        if (den>=0) {
+            return false;
+        }
+        double cx = (2*qc*qd-qb*qe)/den;
+        double cy = (2*qa*qe-qb*qd)/den;
+        double f0 = qa*cx*cx+qb*cx*cy+qc*cy*cy+qd*cx+qe*cy+qf;
+        double mean = (qa+qc)/2;
+        double diff = Math.sqrt((qa-qc)*(qa-qc)/4+qb*qb/4);
+        double l1 = mean+diff;
+        double l2 = mean-diff;
+        if (-f0/l1<=0 || -f0/l2<=0) {
+            return false;
+        }
+        // the width axis points along theta, the direction of the larger eigenvalue l1
+        double theta = 0.5*Math.atan2(qb,qa-qc);
+        double angle = Math.toDegrees(theta);
+        if (angle<0) {
+            angle += 180;
+        }
+
+        ellipse[0] = cx*scale+mx;
+        ellipse[1] = cy*scale+my;
+        ellipse[2] = 2*Math.sqrt(-f0/l1)*scale;
+        ellipse[3] = 2*Math.sqrt(-f0/l2)*scale;
+        ellipse[4] = angle;
+        return true;
+    }
+
+    // the four corners of the bounding box, the same order as RotatedRect.points()
+    public static void points(double ellipse[], double vertices[]) {
+        double angle = Math.toRadians(ellipse[4]);
+        double b = Math.cos(angle)*0.5;
+        double a = Math.sin(angle)*0.5;
+        double cx = ellipse[0];
+        double cy = ellipse[1];
+        double w = ellipse[2];
+        double h = ellipse[3];
+        vertices[0] = cx-a*h-b*w;
+        vertices[1] = cy+b*h-a*w;
+        vertices[2] = cx+a*h-b*w;
+        vertices[3] = cy-b*h-a*w;
+        vertices[4] = 2*cx-vertices[0];
+        vertices[5] = 2*cy-vertices[1];
+        vertices[6] = 2*cx-vertices[2];
+        vertices[7] = 2*cy-vertices[3];
+    }
+
+    private static double[] invert(double m[]) {
+        double c00 = m[4]*m[8]-m[5]*m[7];
+        double c01 = m[5]*m[6]-m[3]*m[8];
+        double c02 = m[3]*m[7]-m[4]*m[6];
+        double det = m[0]*c00+m[1]*c01+m[2]*c02;
+        if (Math.abs(det)<1e-12) {
+            return null;
+        }
+        return new double[] {
+            c00/det, (m[2]*m[7]-m[1]*m[8])/det, (m[1]*m[5]-m[2]*m[4])/det,
+            c01/det, (m[0]*m[8]-m[2]*m[6])/det, (m[2]*m[3]-m[0]*m[5])/det,
+            c02/det, (m[1]*m[6]-m[0]*m[7])/det, (m[0]*m[4]-m[1]*m[3])/det
+        };
+    }
+
+    // real roots of the characteristic polynomial of a 3x3 matrix
+    private static int eigenvalues(double m[], double roots[]) {
+        double tr = m[0]+m[4]+m[8];
+        double minors = m[0]*m[4]-m[1]*m[3]+m[0]*m[8]-m[2]*m[6]+m[4]*m[8]-m[5]*m[7];
+        double det = m[0]*(m[4]*m[8]-m[5]*m[7])-m[1]*(m[3]*m[8]-m[5]*m[6])+m[2]*(m[3]*m[7]-m[4]*m[6]);
+
+        // l³ - tr l² + minors l - det = 0, substituted l = s + tr/3 gives s³ + p s + q = 0
+        double p = minors-tr*tr/3;
+        double q = -2*tr*tr*tr/27+tr*minors/3-det;
+        double shift = tr/3;
+        double disc = q*q/4+p*p*p/27;
+        if (disc>0) {
+            double sq = Math.sqrt(disc);
+            roots[0] = Math.cbrt(-q/2+sq)+Math.cbrt(-q/2-sq)+shift;
+            return 1;
+        }
+        if (p==0) {
+            roots[0] = shift;
+            return 1;
+        }
+        double r = Math.sqrt(-p/3);
+        double phi = Math.acos(Math.max(-1,Math.min(1,3*q/(2*p*r))));
+        for (int k=0; k<3; k++) {
+            roots[k] = 2*r*Math.cos(phi/3-2*Math.PI*k/3)+shift;
+        }
+        return 3;
+    }
+
+    // eigenvector for eigenvalue l, the largest cross product of two rows of m - l I
+    private static double[] eigenvector(double m[], double l) {
+        double r0[] = {m[0]-l, m[1],   m[2]};
+        double r1[] = {m[3],   m[4]-l, m[5]};
+        double r2[] = {m[6],   m[7],   m[8]-l};
+        double c[][] = {cross(r0,r1),cross(r0,r2),cross(r1,r2)};
+        double best[] = null;
+        double norm = 0;
+        for (double v[] : c) {
+            double n = v[0]*v[0]+v[1]*v[1]+v[2]*v[2];
+            if (n>norm) {
+                norm = n;
+                best = v;
+            }
+        }
+        return norm>1e-24 ? best : null;
+    }
+
+    private static double[] cross(double a[], double b[]) {
+        return new double[] {a[1]*b[2]-a[2]*b[1],a[2]*b[0]-a[0]*b[2],a[0]*b[1]-a[1]*b[0]};
+    }
+}
@@ -0,0 +1,51 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.Locale;
+
+// the available tracker implementations, selected with -Doctoeye.engine=opencv|java
+public enum Engine {
+
+    // the original pipeline on top of the OpenCV native library
+    OPENCV,
+    // the same pipeline in plain Java on byte[], no native library needed
+    JAVA;
+
+    public final static String PROPERTY = "octoeye.engine";
+
+    public PupilTracker create() {
+        switch (this) {
+            case JAVA:
+                return new JavaTracker();
+            default:
+                return new OctoEye();
+        }
+    }
+
+    public static Engine fromName(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("unknown engine "+name+", expected opencv or java");
+        }
+    }
+
+    public static Engine getDefault() {
+        return fromName(System.getProperty(PROPERTY,"opencv"));
+    }
+}
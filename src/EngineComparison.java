@@ -0,0 +1,170 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import org.opencv.core.*;
+import org.opencv.imgproc.Imgproc;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Locale;
+
+// runs the OpenCV and the pure Java engine side by side and reports how far the Java results are off,
+// the median filters have to match Imgproc.medianBlur exactly, on the whole frame and on a region
+public class EngineComparison {
+
+    private final OctoEye reference;
+    private final JavaTracker candidate;
+    private final double tolerance;
+
+    private final MedianFilter median = new MedianFilter(OctoEye.WIDTH,OctoEye.HEIGHT);
+    private final Mat blurred = new Mat(OctoEye.HEIGHT,OctoEye.WIDTH,CvType.CV_8UC1);
+    private final Rect region = new Rect(OctoEye.WIDTH/4,OctoEye.HEIGHT/4,OctoEye.WIDTH/2,OctoEye.HEIGHT/2);
+    private final byte expected[] = new byte[OctoEye.WIDTH*OctoEye.HEIGHT];
+    private final byte actual[] = new byte[OctoEye.WIDTH*OctoEye.HEIGHT];
+
+    private int frames = 0;
+    private int sameOutcome = 0;
+    private int bothFound = 0;
+    private int matching = 0;
+    private int medianMismatches = 0;
+    private double centerSum = 0, centerMax = 0;
+    private double diameterSum = 0, diameterMax = 0;
+    private long referenceNanos = 0, candidateNanos = 0;
+
+    // results within tolerance pixels of the reference center and 2*tolerance of its diameter match
+    public EngineComparison(double tolerance) {
+        this.tolerance = tolerance;
+        reference = new OctoEye();
+        reference.setOutputMode(OutputMode.MEASUREMENTS);
+        candidate = new JavaTracker();
+    }
+
+    public void compare(byte frame[]) {
+        reference.process(frame);
+        candidate.process(frame);
+        frames++;
+        referenceNanos += reference.getTimeNanos();
+        candidateNanos += candidate.getTimeNanos();
+
+        Imgproc.medianBlur(reference.getSrc(),blurred,25);
+        blurred.get(0,0,expected);
+        median.apply(frame,actual,25);
+        boolean same = Arrays.equals(expected,actual);
+
+        Mat s1 = reference.getSrc();
+        for (int i=0; i<MedianFilter.FINE_BLUR.length; i++) {
+            Imgproc.medianBlur(s1,blurred,MedianFilter.FINE_BLUR[i]);
+            s1 = blurred;
+        }
+        blurred.get(0,0,expected);
+        median.applyChain(frame,actual,MedianFilter.FINE_BLUR,0,0,OctoEye.WIDTH,OctoEye.HEIGHT);
+        same &= Arrays.equals(expected,actual);
+
+        // the region variant leaves the rest alone, so both start from the full frame result
+        Mat roi = reference.getSrc().submat(region);
+        Mat s2 = blurred.submat(region);
+        s1 = roi;
+        for (int i=0; i<MedianFilter.FINE_BLUR.length; i++) {
+            Imgproc.medianBlur(s1,s2,MedianFilter.FINE_BLUR[i]);
+            s1 = s2;
+        }
+        roi.release();
+        s2.release();
+        blurred.get(0,0,expected);
+        median.applyChain(frame,actual,MedianFilter.FINE_BLUR,region.x,region.y,region.width,region.height);
+        same &= Arrays.equals(expected,actual);
+        if (!same) {
+            medianMismatches++;
+        }
+
+        TrackingResult r = reference.getResult(frames-1,"");
+        TrackingResult c = candidate.getResult(frames-1,"");
+        if (r.getOutcome()==c.getOutcome()) {
+            sameOutcome++;
+        }
+        if (r.isPupilFound() && c.isPupilFound()) {
+            bothFound++;
+            double center = Math.hypot(r.getCenterX()-c.getCenterX(),r.getCenterY()-c.getCenterY());
+            double diameter = Math.abs(r.getDiameter()-c.getDiameter());
+            centerSum += center;
+            centerMax = Math.max(centerMax,center);
+            diameterSum += diameter;
+            diameterMax = Math.max(diameterMax,diameter);
+            if (center<=tolerance && diameter<=2*tolerance) {
+                matching++;
+            }
+        } else if (r.isPupilFound()==c.isPupilFound()) {
+            matching++;
+        }
+    }
+
+    public int getFrames() {
+        return frames;
+    }
+
+    public int getMatching() {
+        return matching;
+    }
+
+    public int getMedianMismatches() {
+        return medianMismatches;
+    }
+
+    public String getSummary() {
+        int n = Math.max(frames,1);
+        int b = Math.max(bothFound,1);
+        return String.format(Locale.ROOT,
+                "%d frames, %d matching (%.1f%%), same outcome %d, both found %d, "+
+                "center offset mean %.2f max %.2f px, diameter difference mean %.2f max %.0f px, "+
+                "median filter mismatches %d, opencv %.2f ms/frame, java %.2f ms/frame",
+                frames,matching,100.0*matching/n,sameOutcome,bothFound,
+                centerSum/b,centerMax,diameterSum/b,diameterMax,
+                medianMismatches,referenceNanos/1e6/n,candidateNanos/1e6/n);
+    }
+
+    public void close() {
+        reference.close();
+        candidate.close();
+        median.close();
+        blurred.release();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length<1 || args.length>3) {
+            System.err.println("Usage: EngineComparison <folder or session file> [frames] [tolerance px]");
+            System.exit(1);
+        }
+
+        FrameSource source = PackedSession.open(new File(args[0]));
+        int count = args.length>1 ? Math.min(Integer.parseInt(args[1]),source.size()) : source.size();
+        double tolerance = args.length>2 ? Double.parseDouble(args[2]) : 2;
+
+        EngineComparison comparison = new EngineComparison(tolerance);
+        byte buffer[] = new byte[OctoEye.WIDTH*OctoEye.HEIGHT];
+        for (int i=0; i<count; i++) {
+            source.read(i,buffer);
+            comparison.compare(buffer);
+        }
+        source.close();
+        comparison.close();
+
+        System.out.println(comparison.getSummary());
+        if (comparison.getMedianMismatches()>0) {
+            System.exit(2);
+        }
+    }
+}
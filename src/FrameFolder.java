@@ -0,0 +1,129 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+public class FrameFolder implements FrameSource {
+
+    private final File folder;
+    private final File[] files;
+
+    public FrameFolder(File folder) throws IOException {
+        this.folder = folder;
+        File[] list = folder.listFiles();
+        if (list==null) {
+            throw new IOException("Not a directory: "+folder);
+        }
+        int n = 0;
+        int skipped = 0;
+        String first = null;
+        for (File f : list) {
+            if (f.isFile() && f.length()==OctoEye.WIDTH*OctoEye.HEIGHT) {
+                list[n++] = f;
+            } else if (f.isFile()) {
+                skipped++;
+                if (first==null || compareNames(f.getName(),first)<0) {
+                    first = f.getName();
+                }
+            }
+        }
+        files = Arrays.copyOf(list,n);
+        // frame numbers count the raw frames only, so they differ from file positions if others are mixed in
+        if (skipped>0) {
+            System.err.println("FrameFolder: skipped "+skipped+" files which are not "+OctoEye.WIDTH*OctoEye.HEIGHT
+                    +" bytes, e.g. "+first+", in "+folder);
+        }
+
+        // raw files are usually numbered, compare numbers by value so "10" follows "9"
+        Arrays.sort(files,new Comparator<File>() {
+            public int compare(File a, File b) {
+                return compareNames(a.getName(),b.getName());
+            }
+        });
+    }
+
+    static int compareNames(String a, String b) {
+        int i = 0, j = 0;
+        while (i<a.length() && j<b.length()) {
+            char ca = a.charAt(i);
+            char cb = b.charAt(j);
+            if (Character.isDigit(ca) && Character.isDigit(cb)) {
+                int si = i, sj = j;
+                while (i<a.length() && Character.isDigit(a.charAt(i))) i++;
+                while (j<b.length() && Character.isDigit(b.charAt(j))) j++;
+                String na = a.substring(si,i).replaceFirst("^0+(?=.)","");
+                String nb = b.substring(sj,j).replaceFirst("^0+(?=.)","");
+                int c = na.length()!=nb.length() ? na.length()-nb.length() : na.compareTo(nb);
+                if (c!=0) {
+                    return c;
+                }
+            } else {
+                if (ca!=cb) {
+                    return ca-cb;
+                }
+                i++;
+                j++;
+            }
+        }
+        int c = (a.length()-i)-(b.length()-j);
+        return c!=0 ? c : a.compareTo(b);
+    }
+
+    public File getFolder() {
+        return folder;
+    }
+
+    public int size() {
+        return files.length;
+    }
+
+    public File getFile(int i) {
+        return files[i];
+    }
+
+    public String getName(int i) {
+        return files[i].getName();
+    }
+
+    public long getTimestamp(int i) {
+        return files[i].lastModified();
+    }
+
+    public void read(int i, byte buffer[]) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(files[i]));
+        try {
+            in.readFully(buffer,0,OctoEye.WIDTH*OctoEye.HEIGHT);
+        } finally {
+            in.close();
+        }
+    }
+
+    public ByteBuffer getFrame(int i, byte buffer[]) throws IOException {
+        read(i,buffer);
+        return ByteBuffer.wrap(buffer,0,OctoEye.WIDTH*OctoEye.HEIGHT);
+    }
+
+    public void close() {
+    }
+}
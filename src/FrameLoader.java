@@ -0,0 +1,269 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import javax.swing.SwingUtilities;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Loads and tracks frames for the viewer off the event dispatch thread. Requests are coalesced, a worker
+// always takes the latest requested index, and the listener only sees a frame if it is newer than the
+// last one shown. Around every shown frame the neighbours within the prefetch radius are tracked
+// speculatively into the cache, nearest first, requests for the display always run before them.
+public class FrameLoader {
+
+    public interface Listener {
+        // called on the event dispatch thread
+        void frameLoaded(Frame frame);
+    }
+
+    public static class Frame {
+        private final int index;
+        private final String name;
+        private final TrackingResult result;
+        // src and dst, handed back to the loader once the next frame is shown
+        private final BufferedImage images[];
+
+        Frame(int index, String name, TrackingResult result, BufferedImage images[]) {
+            this.index  = index;
+            this.name   = name;
+            this.result = result;
+            this.images = images;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public TrackingResult getResult() {
+            return result;
+        }
+
+        // debug image, scaled to twice the frame size, valid until the listener sees the next frame
+        public BufferedImage getSrc() {
+            return images[0];
+        }
+
+        // annotated image, scaled to twice the frame size, valid until the listener sees the next frame
+        public BufferedImage getDst() {
+            return images[1];
+        }
+    }
+
+    private final FrameSource frames;
+    private final ResultCache cache;
+    private final int radius;
+    private final Listener listener;
+    private final ThreadPoolExecutor pool;
+
+    private final AtomicInteger latest = new AtomicInteger(-1);
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicBoolean displayQueued = new AtomicBoolean(false);
+    private final AtomicLong order = new AtomicLong();
+    private final Set<Integer> prefetching = Collections.synchronizedSet(new HashSet<Integer>());
+    // only touched on the event dispatch thread
+    private long shown = -1;
+    private Frame current = null;
+    // scaled image pairs not in use by the display, one is shown while the next is drawn, so there are
+    // only two of them unless several display requests run at once
+    private final ConcurrentLinkedQueue<BufferedImage[]> free = new ConcurrentLinkedQueue<BufferedImage[]>();
+
+    private final List<Worker> workers = Collections.synchronizedList(new ArrayList<Worker>());
+    private final ThreadLocal<Worker> worker = new ThreadLocal<Worker>() {
+        protected Worker initialValue() {
+            Worker w = new Worker();
+            workers.add(w);
+            return w;
+        }
+    };
+
+    private static class Worker {
+        final OctoEye tracker = new OctoEye();
+        final ImageBridge srcBridge = new ImageBridge();
+        final ImageBridge dstBridge = new ImageBridge();
+        final byte buffer[] = new byte[OctoEye.WIDTH*OctoEye.HEIGHT];
+    }
+
+    // display requests have priority 0, prefetches their distance from the requested frame
+    private class Task implements Runnable, Comparable<Task> {
+        final int priority;
+        final int index;
+        final long sequence = order.incrementAndGet();
+
+        Task(int priority, int index) {
+            this.priority = priority;
+            this.index    = index;
+        }
+
+        public void run() {
+            try {
+                if (priority==0) {
+                    display();
+                } else {
+                    prefetch(index);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        public int compareTo(Task t) {
+            if (priority!=t.priority) {
+                return priority<t.priority ? -1 : 1;
+            }
+            return sequence<t.sequence ? -1 : (sequence>t.sequence ? 1 : 0);
+        }
+    }
+
+    public FrameLoader(FrameSource frames, ResultCache cache, int threads, int radius, Listener listener) {
+        if (threads<1) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        if (radius<0) {
+            throw new IllegalArgumentException("radius must not be negative");
+        }
+        this.frames   = frames;
+        this.cache    = cache;
+        this.radius   = radius;
+        this.listener = listener;
+        pool = new ThreadPoolExecutor(threads,threads,0,TimeUnit.MILLISECONDS,new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r,"OctoEye-loader");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    // shows frame i as soon as possible, earlier requests which have not started yet are dropped
+    public void request(int i) {
+        if (i<0 || i>=frames.size()) {
+            return;
+        }
+        latest.set(i);
+        requests.incrementAndGet();
+        if (displayQueued.compareAndSet(false,true)) {
+            pool.execute(new Task(0,i));
+        }
+    }
+
+    private void display() throws IOException {
+        displayQueued.set(false);
+        final long request = requests.get();
+        int i = latest.get();
+
+        Worker w = worker.get();
+        ResultCache.Entry e = load(w,i);
+        BufferedImage images[] = free.poll();
+        if (images==null) {
+            images = new BufferedImage[2];
+        }
+        images[0] = ImageBridge.scale2x(e.getImages()[0],true,images[0]);
+        images[1] = ImageBridge.scale2x(e.getImages()[1],true,images[1]);
+        final Frame frame = new Frame(i,frames.getName(i),e.getResult().withFrame(i,frames.getName(i)),images);
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                if (request>shown) {
+                    shown = request;
+                    listener.frameLoaded(frame);
+                    if (current!=null) {
+                        free.add(current.images);
+                    }
+                    current = frame;
+                } else {
+                    free.add(frame.images);
+                }
+            }
+        });
+
+        for (int d=1; d<=radius; d++) {
+            schedule(i+d,d);
+            schedule(i-d,d);
+        }
+    }
+
+    private void schedule(int i, int distance) {
+        if (i>=0 && i<frames.size() && prefetching.add(i)) {
+            pool.execute(new Task(distance,i));
+        }
+    }
+
+    private void prefetch(int i) throws IOException {
+        try {
+            // the slider has moved on, this frame is no longer a neighbour
+            if (Math.abs(i-latest.get())>radius) {
+                return;
+            }
+            load(worker.get(),i);
+        } finally {
+            prefetching.remove(i);
+        }
+    }
+
+    // the cached entry of frame i, tracked and rendered first if needed
+    private ResultCache.Entry load(Worker w, int i) throws IOException {
+        frames.read(i,w.buffer);
+        long hash = ResultCache.hash(w.buffer);
+        long parameters = ResultCache.parameters(w.tracker);
+        ResultCache.Entry e = cache.get(hash,parameters);
+        if (e!=null && e.getImages().length==2) {
+            return e;
+        }
+        w.tracker.process(w.buffer);
+        TrackingResult result = w.tracker.getResult(i,frames.getName(i));
+        BufferedImage src = ImageBridge.copy(w.srcBridge.toBufferedImage(w.tracker.getDbg()));
+        BufferedImage dst = ImageBridge.copy(w.dstBridge.toBufferedImage(w.tracker.getDst()));
+        return cache.put(hash,parameters,result,src,dst);
+    }
+
+    public int getRadius() {
+        return radius;
+    }
+
+    public int getQueued() {
+        return pool.getQueue().size();
+    }
+
+    public void close() throws InterruptedException {
+        pool.shutdownNow();
+        pool.awaitTermination(1,TimeUnit.MINUTES);
+        synchronized (workers) {
+            for (Worker w : workers) {
+                w.tracker.close();
+            }
+            workers.clear();
+        }
+    }
+}
@@ -0,0 +1,352 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Live tracking: producer -> ring buffer -> tracking stage -> result queue -> publish stage -> listeners.
+// The ring buffer slots are preallocated frames, the tracking stage swaps a slot with its own
+// frame buffer instead of copying it out.
+public class FramePipeline {
+
+    public final static int FRAME_SIZE = OctoEye.WIDTH*OctoEye.HEIGHT;
+
+    public enum DropPolicy {
+        // discard the oldest queued frame when the ring buffer is full
+        DROP_OLDEST,
+        // make the producer wait until a slot is free
+        BLOCK
+    }
+
+    private final DropPolicy policy;
+    private volatile Engine engine = Engine.getDefault();
+
+    // ring buffer
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull  = lock.newCondition();
+    private final byte slots[][];
+    private final String names[];
+    private final long sequences[];
+    private final long enqueued[];
+    private int head = 0;
+    private int count = 0;
+    private long sequence = 0;
+
+    private final BlockingQueue<Published> results;
+    private final List<ResultListener> listeners = new CopyOnWriteArrayList<ResultListener>();
+
+    private final AtomicLong dropped = new AtomicLong();
+    // frames whose tracking threw and results a listener threw on, both are logged and skipped
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong listenerFailures = new AtomicLong();
+    // what ended a stage thread, it stops the pipeline so producers do not wait for it forever
+    private volatile Throwable error = null;
+    private final StageStats queueStats    = new StageStats("queue");
+    private final StageStats trackingStats = new StageStats("tracking");
+    private final StageStats publishStats  = new StageStats("publish");
+    private final StageStats latencyStats  = new StageStats("latency");
+
+    private volatile TrackerMetrics metrics = null;
+    private volatile boolean running = false;
+    private Thread trackingThread;
+    private Thread publishThread;
+
+    private static class Published {
+        final TrackingResult result;
+        final long enqueued;
+        final long tracked;
+
+        Published(TrackingResult result, long enqueued, long tracked) {
+            this.result   = result;
+            this.enqueued = enqueued;
+            this.tracked  = tracked;
+        }
+    }
+
+    public FramePipeline(int capacity, DropPolicy policy) {
+        if (capacity<1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.policy = policy;
+        slots     = new byte[capacity][FRAME_SIZE];
+        names     = new String[capacity];
+        sequences = new long[capacity];
+        enqueued  = new long[capacity];
+        results   = new ArrayBlockingQueue<Published>(capacity);
+    }
+
+    // the engine of the tracking stage, takes effect on the next start()
+    public void setEngine(Engine engine) {
+        this.engine = engine;
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    public void addListener(ResultListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(ResultListener listener) {
+        listeners.remove(listener);
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        error = null;
+
+        trackingThread = new Thread(new Runnable() {
+            public void run() {
+                track();
+            }
+        },"OctoEye-tracking");
+        publishThread = new Thread(new Runnable() {
+            public void run() {
+                publish();
+            }
+        },"OctoEye-publish");
+        trackingThread.setDaemon(true);
+        publishThread.setDaemon(true);
+        trackingThread.start();
+        publishThread.start();
+    }
+
+    public synchronized void stop() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        trackingThread.interrupt();
+        publishThread.interrupt();
+        trackingThread.join();
+        publishThread.join();
+    }
+
+    public boolean push(byte frame[]) throws InterruptedException {
+        return push(ByteBuffer.wrap(frame),null);
+    }
+
+    // returns false if the frame could not be queued because the pipeline is not running
+    public boolean push(ByteBuffer frame, String name) throws InterruptedException {
+        if (frame.remaining()<FRAME_SIZE) {
+            throw new IllegalArgumentException("frame must have "+FRAME_SIZE+" bytes");
+        }
+        lock.lockInterruptibly();
+        try {
+            while (count==slots.length) {
+                if (!running) {
+                    return false;
+                }
+                if (policy==DropPolicy.DROP_OLDEST) {
+                    head = (head+1)%slots.length;
+                    count--;
+                    dropped.incrementAndGet();
+                } else {
+                    notFull.await(100,TimeUnit.MILLISECONDS);
+                }
+            }
+            if (!running) {
+                return false;
+            }
+            int tail = (head+count)%slots.length;
+            frame.duplicate().get(slots[tail],0,FRAME_SIZE);
+            names[tail]     = name;
+            sequences[tail] = sequence++;
+            enqueued[tail]  = System.nanoTime();
+            count++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void track() {
+        PupilTracker tracker = null;
+        byte frame[] = new byte[FRAME_SIZE];
+        try {
+            tracker = engine.create();
+            tracker.setOutputMode(OutputMode.MEASUREMENTS);
+            // the only tracking thread, the median filters may use the other cores
+            tracker.setFilterThreads(Runtime.getRuntime().availableProcessors());
+            metrics = tracker.getMetrics();
+            while (running) {
+                String name;
+                long seq;
+                long queued;
+
+                lock.lockInterruptibly();
+                try {
+                    while (count==0) {
+                        notEmpty.await();
+                    }
+                    // take the slot by swapping buffers, the old frame buffer becomes the free slot
+                    byte slot[] = slots[head];
+                    slots[head] = frame;
+                    frame = slot;
+                    name   = names[head];
+                    seq    = sequences[head];
+                    queued = enqueued[head];
+                    names[head] = null;
+                    head = (head+1)%slots.length;
+                    count--;
+                    notFull.signal();
+                } finally {
+                    lock.unlock();
+                }
+
+                long start = System.nanoTime();
+                queueStats.record(start-queued);
+                TrackingResult result;
+                try {
+                    tracker.process(frame);
+                    result = tracker.getResult((int)seq,name!=null ? name : Long.toString(seq));
+                } catch (RuntimeException e) {
+                    failed.incrementAndGet();
+                    System.err.println("FramePipeline: frame "+seq+": "+e);
+                    continue;
+                }
+                long end = System.nanoTime();
+                trackingStats.record(end-start);
+
+                results.put(new Published(result,queued,end));
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        } catch (Throwable t) {
+            fail(t);
+        } finally {
+            if (tracker!=null) {
+                tracker.close();
+            }
+        }
+    }
+
+    private void publish() {
+        try {
+            while (running) {
+                Published p = results.take();
+                long start = System.nanoTime();
+                for (ResultListener l : listeners) {
+                    try {
+                        l.onResult(p.result);
+                    } catch (RuntimeException e) {
+                        listenerFailures.incrementAndGet();
+                        System.err.println("FramePipeline: listener "+l+" on frame "+p.result.getIndex()+": "+e);
+                    }
+                }
+                long end = System.nanoTime();
+                publishStats.record(end-start);
+                latencyStats.record(end-p.enqueued);
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        } catch (Throwable t) {
+            fail(t);
+        }
+    }
+
+    // a stage thread ended unexpectedly, push() returns false from now on and the other stage stops
+    private void fail(Throwable t) {
+        error = t;
+        running = false;
+        System.err.println("FramePipeline: "+Thread.currentThread().getName()+" stopped: "+t);
+        trackingThread.interrupt();
+        publishThread.interrupt();
+    }
+
+    public DropPolicy getPolicy() {
+        return policy;
+    }
+
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getResultQueueDepth() {
+        return results.size();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getListenerFailures() {
+        return listenerFailures.get();
+    }
+
+    // what stopped the pipeline on its own, null while it runs or after stop()
+    public Throwable getError() {
+        return error;
+    }
+
+    // time frames wait in the ring buffer
+    public StageStats getQueueStats() {
+        return queueStats;
+    }
+
+    public StageStats getTrackingStats() {
+        return trackingStats;
+    }
+
+    public StageStats getPublishStats() {
+        return publishStats;
+    }
+
+    // from push to the last listener having seen the result
+    public StageStats getLatencyStats() {
+        return latencyStats;
+    }
+
+    // per-stage timings and outcomes of the tracking stage, null before start()
+    public TrackerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public String getSummary() {
+        return String.format(Locale.ROOT,"depth %d/%d, results %d, dropped %d, failed %d+%d | %s | %s | %s | %s",
+                getQueueDepth(),getCapacity(),getResultQueueDepth(),getDropped(),getFailed(),getListenerFailures(),
+                queueStats,trackingStats,publishStats,latencyStats);
+    }
+}
@@ -0,0 +1,228 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.Arrays;
+
+// classifies a raw frame before the pupil detection from a few statistics of one pass over every STEP-th
+// pixel: blinks and unusable frames are skipped, frames which hardly changed since the last one can start
+// from the previous pupil and everything else gets the full search
+public class FrameQualityGate {
+
+    public enum Decision {
+        // not worth searching, getReason() tells why
+        SKIP,
+        // close to the previous frame, start from the previous pupil
+        TRACK,
+        // full search
+        SEARCH
+    }
+
+    public final static int STEP  = 2;
+    public final static int BLOCK = 16;
+
+    private final int width;
+    private final int height;
+    private final int blocksX;
+    private final int blocksY;
+
+    // pixels at or below darkLevel may belong to the pupil
+    private int darkLevel = 256/3;
+    // a pupil with the smallest radius of the sanity checks covers about 12 pixels
+    private int minDarkPixels = 12;
+    // more dark pixels than this fraction of the frame is a closed lid, lashes or a missing light
+    private double maxDarkFraction = 0.5;
+    // 98th minus 2nd percentile of the intensities
+    private int minContrast = 24;
+    // strongest gradients relative to the contrast, motion blur spreads the pupil edge over many pixels
+    private double minSharpness = 0.25;
+    // mean change of the block means since the last frame for which tracking is still tried
+    private double maxChange = 6;
+
+    private final int histogram[] = new int[256];
+    private final int gradients[] = new int[512];
+    private int blocks[];
+    private int previous[];
+    private boolean hasPrevious = false;
+
+    private int samples;
+    private double darkFraction;
+    private int contrast;
+    private double sharpness;
+    private double change;
+    private Decision decision;
+    private Outcome reason;
+
+    public FrameQualityGate(int width, int height) {
+        this.width  = width;
+        this.height = height;
+        blocksX = (width+BLOCK-1)/BLOCK;
+        blocksY = (height+BLOCK-1)/BLOCK;
+        blocks   = new int[blocksX*blocksY];
+        previous = new int[blocksX*blocksY];
+    }
+
+    public Decision classify(byte frame[]) {
+        Arrays.fill(histogram,0);
+        Arrays.fill(gradients,0);
+        Arrays.fill(blocks,0);
+        samples = 0;
+        int dark = 0;
+        for (int y=0; y<height; y+=STEP) {
+            int row = y*width;
+            int below = y+STEP<height ? STEP*width : 0;
+            int b = (y/BLOCK)*blocksX;
+            for (int x=0; x<width; x+=STEP) {
+                int k = row+x;
+                int v = frame[k]&0xff;
+                histogram[v]++;
+                dark += v<=darkLevel ? 1 : 0;
+                int right = x+STEP<width ? STEP : 0;
+                gradients[Math.abs((frame[k+right]&0xff)-v)+Math.abs((frame[k+below]&0xff)-v)]++;
+                blocks[b+x/BLOCK] += v;
+            }
+            samples += (width+STEP-1)/STEP;
+        }
+
+        darkFraction = (double)dark/samples;
+        contrast = percentile(histogram,0.98)-percentile(histogram,0.02);
+        // the strongest 0.5% of the gradients, which is at least the pupil edge on a sharp frame
+        sharpness = contrast>0 ? percentile(gradients,0.995)/(double)contrast : 0;
+
+        int perBlock = (BLOCK/STEP)*(BLOCK/STEP);
+        change = 0;
+        for (int i=0; i<blocks.length; i++) {
+            change += Math.abs(blocks[i]-previous[i]);
+        }
+        change = hasPrevious ? change/perBlock/blocks.length : Double.MAX_VALUE;
+        int swap[] = previous;
+        previous = blocks;
+        blocks = swap;
+        hasPrevious = true;
+
+        reason = null;
+        if (dark*STEP*STEP<minDarkPixels) {
+            reason = Outcome.BLINK;
+        } else if (darkFraction>maxDarkFraction || contrast<minContrast) {
+            reason = Outcome.LOW_CONTRAST;
+        } else if (sharpness<minSharpness) {
+            reason = Outcome.MOTION_BLUR;
+        }
+        if (reason!=null) {
+            decision = Decision.SKIP;
+        } else {
+            decision = change<=maxChange ? Decision.TRACK : Decision.SEARCH;
+        }
+        return decision;
+    }
+
+    private int percentile(int histogram[], double p) {
+        int total = 0;
+        for (int c : histogram) {
+            total += c;
+        }
+        long limit = (long)Math.ceil(p*total);
+        int sum = 0;
+        for (int v=0; v<histogram.length; v++) {
+            sum += histogram[v];
+            if (sum>=limit) {
+                return v;
+            }
+        }
+        return histogram.length-1;
+    }
+
+    // forget the previous frame, the next one is never classified as TRACK
+    public void reset() {
+        hasPrevious = false;
+    }
+
+    public Decision getDecision() {
+        return decision;
+    }
+
+    // the outcome recorded for a skipped frame, null if it was not skipped
+    public Outcome getReason() {
+        return reason;
+    }
+
+    public double getDarkFraction() {
+        return darkFraction;
+    }
+
+    public int getContrast() {
+        return contrast;
+    }
+
+    public double getSharpness() {
+        return sharpness;
+    }
+
+    // mean absolute change of the block means since the previous frame, Double.MAX_VALUE for the first one
+    public double getChange() {
+        return change;
+    }
+
+    public void setDarkLevel(int darkLevel) {
+        this.darkLevel = darkLevel;
+    }
+
+    public int getDarkLevel() {
+        return darkLevel;
+    }
+
+    public void setMinDarkPixels(int minDarkPixels) {
+        this.minDarkPixels = minDarkPixels;
+    }
+
+    public int getMinDarkPixels() {
+        return minDarkPixels;
+    }
+
+    public void setMaxDarkFraction(double maxDarkFraction) {
+        this.maxDarkFraction = maxDarkFraction;
+    }
+
+    public double getMaxDarkFraction() {
+        return maxDarkFraction;
+    }
+
+    public void setMinContrast(int minContrast) {
+        this.minContrast = minContrast;
+    }
+
+    public int getMinContrast() {
+        return minContrast;
+    }
+
+    public void setMinSharpness(double minSharpness) {
+        this.minSharpness = minSharpness;
+    }
+
+    public double getMinSharpness() {
+        return minSharpness;
+    }
+
+    // 0 never tracks
+    public void setMaxChange(double maxChange) {
+        this.maxChange = maxChange;
+    }
+
+    public double getMaxChange() {
+        return maxChange;
+    }
+}
@@ -0,0 +1,36 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public interface FrameSource extends Closeable {
+
+    int size();
+
+    String getName(int i);
+
+    long getTimestamp(int i);
+
+    void read(int i, byte buffer[]) throws IOException;
+
+    // returns frame i as a buffer of WIDTH*HEIGHT bytes, either a view on the source
+    // or the given buffer after reading the frame into it
+    ByteBuffer getFrame(int i, byte buffer[]) throws IOException;
+}
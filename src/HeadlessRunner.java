@@ -0,0 +1,222 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.Locale;
+
+// command line runner for servers without a display: tracks a whole session with BatchProcessor
+// and reports throughput, latency percentiles and detection rates
+public class HeadlessRunner {
+
+    private final static double PERCENTILES[] = {50,90,99,99.9};
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private Engine engine = Engine.getDefault();
+    private OutputMode mode = OutputMode.MEASUREMENTS;
+    private final Parameters parameters = new Parameters();
+    private int rayCount = 0;
+    private int window = 0;
+    private int threshold = -1;
+    private boolean subpixel = false;
+    private boolean robust = false;
+    private int pyramid = 0;
+    private boolean gate = false;
+    private boolean tracking = false;
+    private File cacheFile = null;
+    private File resultsFile = null;
+    private File output = null;
+    private File input = null;
+
+    private static void usage() {
+        System.err.println("Usage: HeadlessRunner [options] <folder or session file>");
+        System.err.println("  -threads <n>           worker threads, default the number of cores");
+        System.err.println("  -engine <opencv|java>  tracker implementation, default -D"+Engine.PROPERTY+" or opencv");
+        System.err.println("  -mode <measurements|annotated|debug>");
+        System.err.println("  -p <name>=<value>      set a detection parameter, see Parameters.NAMES");
+        System.err.println("  -rays <n>              number of rays for the edge search");
+        System.err.println("  -window <n>            size of the candidate scoring window");
+        System.err.println("  -threshold <n>         gray value below which candidate pixels count");
+        System.err.println("  -subpixel              refine the edge points to sub-pixel positions");
+        System.err.println("  -robust                fit the ellipse with outlier weighting");
+        System.err.println("  -pyramid <level>       locate the pupil on the frame reduced by 2^level");
+        System.err.println("  -gate                  skip blinks and unusable frames, track frames close to the last one");
+        System.err.println("  -tracking              start from the previous pupil");
+        System.err.println("  -cache <file>          keep results in a cache file");
+        System.err.println("  -results <file>        write the columnar results file");
+        System.err.println("  -o <file>              write the results as CSV");
+        System.exit(1);
+    }
+
+    private void parse(String args[]) {
+        for (int i=0; i<args.length; i++) {
+            String a = args[i];
+            boolean value = i+1<args.length;
+            if (a.equals("-subpixel")) {
+                subpixel = true;
+            } else if (a.equals("-robust")) {
+                robust = true;
+            } else if (a.equals("-gate")) {
+                gate = true;
+            } else if (a.equals("-tracking")) {
+                tracking = true;
+            } else if (a.equals("-threads") && value) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (a.equals("-engine") && value) {
+                engine = Engine.fromName(args[++i]);
+            } else if (a.equals("-mode") && value) {
+                mode = OutputMode.valueOf(args[++i].trim().toUpperCase(Locale.ROOT));
+            } else if (a.equals("-p") && value && args[i+1].indexOf('=')>0) {
+                String p = args[++i];
+                parameters.set(p.substring(0,p.indexOf('=')),p.substring(p.indexOf('=')+1));
+            } else if (a.equals("-rays") && value) {
+                rayCount = Integer.parseInt(args[++i]);
+            } else if (a.equals("-pyramid") && value) {
+                pyramid = Integer.parseInt(args[++i]);
+            } else if (a.equals("-window") && value) {
+                window = Integer.parseInt(args[++i]);
+            } else if (a.equals("-threshold") && value) {
+                threshold = Integer.parseInt(args[++i]);
+            } else if (a.equals("-cache") && value) {
+                cacheFile = new File(args[++i]);
+            } else if (a.equals("-results") && value) {
+                resultsFile = new File(args[++i]);
+            } else if (a.equals("-o") && value) {
+                output = new File(args[++i]);
+            } else if (!a.startsWith("-") && input==null) {
+                input = new File(a);
+            } else {
+                System.err.println("Unknown or incomplete option "+a);
+                usage();
+            }
+        }
+        if (input==null) {
+            usage();
+        }
+    }
+
+    private void configure(PupilTracker tracker) {
+        tracker.setOutputMode(mode);
+        tracker.setParameters(parameters);
+        if (rayCount>0) {
+            tracker.setRayCount(rayCount);
+        }
+        if (window>0) {
+            tracker.getCandidateScorer().setWindow(window);
+        }
+        if (threshold>=0) {
+            tracker.getCandidateScorer().setThreshold(threshold);
+        }
+        tracker.setSubpixelEdges(subpixel);
+        tracker.setRobustFit(robust);
+        tracker.setPyramidLevel(pyramid);
+        tracker.setQualityGate(gate);
+    }
+
+    private void run() throws Exception {
+        FrameSource frames = PackedSession.open(input);
+        BatchProcessor batch = new BatchProcessor(frames,threads) {
+            protected void configure(PupilTracker tracker) {
+                HeadlessRunner.this.configure(tracker);
+            }
+        };
+        batch.setEngine(engine);
+        batch.setTracking(tracking);
+
+        ResultCache cache = null;
+        if (cacheFile!=null) {
+            cache = new ResultCache(64L<<20);
+            cache.open(cacheFile);
+            batch.setCache(cache);
+        }
+        ResultsFile.Writer results = null;
+        if (resultsFile!=null) {
+            results = new ResultsFile.Writer(resultsFile);
+            batch.setResultsWriter(results);
+        }
+        PrintWriter out = output!=null ? new PrintWriter(new OutputStreamWriter(new FileOutputStream(output),"UTF-8")) : null;
+
+        try {
+            batch.run(out);
+        } finally {
+            if (out!=null) {
+                out.close();
+            }
+            if (results!=null) {
+                results.close();
+            }
+            if (cache!=null) {
+                cache.close();
+            }
+            frames.close();
+        }
+        report(batch,cache,System.out);
+    }
+
+    private static void report(BatchProcessor batch, ResultCache cache, PrintStream out) {
+        out.println(batch.getSummary());
+
+        int processed = batch.getProcessed();
+        out.println(String.format(Locale.ROOT,"throughput  %.1f frames/s, %.2f s for %d frames",
+                batch.getFramesPerSecond(),batch.getElapsedNanos()/1e9,processed));
+        out.println(String.format(Locale.ROOT,"detection   %.2f%% (%d of %d frames)",
+                processed>0 ? 100.0*batch.getFound()/processed : 0,batch.getFound(),processed));
+
+        // the outcomes and latencies only cover frames which were tracked, not the ones taken from the cache
+        TrackerMetrics.Snapshot metrics = batch.getMetrics();
+        for (Outcome o : Outcome.values()) {
+            long n = metrics.getCount(o);
+            out.println(String.format(Locale.ROOT,"  %-22s %8d  %6.2f%%",
+                    o.name().toLowerCase(Locale.ROOT),n,metrics.getFrames()>0 ? 100.0*n/metrics.getFrames() : 0));
+        }
+
+        StringBuilder sb = new StringBuilder(String.format(Locale.ROOT,"%-12s %10s",  "latency ms","mean"));
+        for (double p : PERCENTILES) {
+            sb.append(String.format(Locale.ROOT," %9s","p"+(p==(int)p ? String.valueOf((int)p) : String.valueOf(p))));
+        }
+        sb.append(String.format(Locale.ROOT," %9s","max"));
+        out.println(sb);
+        for (PipelineStage stage : PipelineStage.values()) {
+            LatencyHistogram h = metrics.getHistogram(stage);
+            if (h.getCount()==0) {
+                continue;
+            }
+            sb.setLength(0);
+            sb.append(String.format(Locale.ROOT,"%-12s %10.3f",stage.name().toLowerCase(Locale.ROOT),h.getMean()/1e6));
+            for (double p : PERCENTILES) {
+                sb.append(String.format(Locale.ROOT," %9.3f",h.getValueAtPercentile(p)/1e6));
+            }
+            sb.append(String.format(Locale.ROOT," %9.3f",h.getMax()/1e6));
+            out.println(sb);
+        }
+        if (cache!=null) {
+            out.println(cache.getSummary());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        // never open a window, also keeps AWT from looking for a display when images are converted
+        System.setProperty("java.awt.headless","true");
+        HeadlessRunner runner = new HeadlessRunner();
+        runner.parse(args);
+        runner.run();
+    }
+}
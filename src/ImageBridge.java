@@ -0,0 +1,132 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import org.opencv.core.Mat;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+
+// Copies Mats into reusable BufferedImages and scales them up for display.
+// The Mats are BGR, so one Mat.get() straight into a TYPE_3BYTE_BGR raster is all it takes.
+public class ImageBridge {
+
+    private BufferedImage image;
+    private BufferedImage scaled;
+
+    // copies m into image if it has the matching size and type, otherwise into a new image
+    public static BufferedImage toBufferedImage(Mat m, BufferedImage image) {
+        int type = m.channels()>1 ? BufferedImage.TYPE_3BYTE_BGR : BufferedImage.TYPE_BYTE_GRAY;
+        if (image==null || image.getType()!=type || image.getWidth()!=m.cols() || image.getHeight()!=m.rows()) {
+            image = new BufferedImage(m.cols(),m.rows(),type);
+        }
+        m.get(0,0,((DataBufferByte)image.getRaster().getDataBuffer()).getData());
+        return image;
+    }
+
+    // the returned image is reused by the next call
+    public BufferedImage toBufferedImage(Mat m) {
+        image = toBufferedImage(m,image);
+        return image;
+    }
+
+    // a deep copy, for keeping an image the bridge will overwrite with the next frame
+    public static BufferedImage copy(BufferedImage image) {
+        return new BufferedImage(image.getColorModel(),image.copyData(null),image.isAlphaPremultiplied(),null);
+    }
+
+    // scales a TYPE_3BYTE_BGR or TYPE_BYTE_GRAY image to twice its size, nearest neighbour or bilinear,
+    // the returned TYPE_INT_RGB image is reused by the next call
+    public BufferedImage scale2x(BufferedImage in, boolean bilinear) {
+        scaled = scale2x(in,bilinear,scaled);
+        return scaled;
+    }
+
+    // the same into scaled if it has the right size, otherwise into a new image
+    public static BufferedImage scale2x(BufferedImage in, boolean bilinear, BufferedImage scaled) {
+        int w = in.getWidth();
+        int h = in.getHeight();
+        if (scaled==null || scaled.getWidth()!=2*w || scaled.getHeight()!=2*h) {
+            scaled = new BufferedImage(2*w,2*h,BufferedImage.TYPE_INT_RGB);
+        }
+        byte src[] = ((DataBufferByte)in.getRaster().getDataBuffer()).getData();
+        int out[] = ((DataBufferInt)scaled.getRaster().getDataBuffer()).getData();
+        boolean gray = in.getType()==BufferedImage.TYPE_BYTE_GRAY;
+        if (!gray && in.getType()!=BufferedImage.TYPE_3BYTE_BGR) {
+            throw new IllegalArgumentException("unsupported image type "+in.getType());
+        }
+
+        if (!bilinear) {
+            for (int y=0; y<h; y++) {
+                int o = 2*y*2*w;
+                for (int x=0; x<w; x++) {
+                    int rgb = pixel(src,y*w+x,gray);
+                    out[o]       = rgb;
+                    out[o+1]     = rgb;
+                    out[o+2*w]   = rgb;
+                    out[o+2*w+1] = rgb;
+                    o += 2;
+                }
+            }
+            return scaled;
+        }
+
+        // output pixel centers lie a quarter pixel from the source centers,
+        // so every output pixel is (9*near+3*side+3*side+1*diagonal)/16
+        for (int y=0; y<h; y++) {
+            int yUp   = Math.max(y-1,0);
+            int yDown = Math.min(y+1,h-1);
+            for (int x=0; x<w; x++) {
+                int xLeft  = Math.max(x-1,0);
+                int xRight = Math.min(x+1,w-1);
+                int c  = pixel(src,y*w+x,gray);
+                int l  = pixel(src,y*w+xLeft,gray);
+                int r  = pixel(src,y*w+xRight,gray);
+                int u  = pixel(src,yUp*w+x,gray);
+                int d  = pixel(src,yDown*w+x,gray);
+                int ul = pixel(src,yUp*w+xLeft,gray);
+                int ur = pixel(src,yUp*w+xRight,gray);
+                int dl = pixel(src,yDown*w+xLeft,gray);
+                int dr = pixel(src,yDown*w+xRight,gray);
+                int o = 2*y*2*w+2*x;
+                out[o]       = mix(c,l,u,ul);
+                out[o+1]     = mix(c,r,u,ur);
+                out[o+2*w]   = mix(c,l,d,dl);
+                out[o+2*w+1] = mix(c,r,d,dr);
+            }
+        }
+        return scaled;
+    }
+
+    private static int pixel(byte src[], int i, boolean gray) {
+        if (gray) {
+            int v = src[i]&0xff;
+            return v<<16 | v<<8 | v;
+        }
+        i *= 3;
+        return (src[i+2]&0xff)<<16 | (src[i+1]&0xff)<<8 | (src[i]&0xff);
+    }
+
+    private static int mix(int near, int side1, int side2, int diagonal) {
+        int rgb = 0;
+        for (int shift=0; shift<24; shift+=8) {
+            int v = 9*(near>>shift&0xff)+3*(side1>>shift&0xff)+3*(side2>>shift&0xff)+(diagonal>>shift&0xff);
+            rgb |= ((v+8)>>4)<<shift;
+        }
+        return rgb;
+    }
+}
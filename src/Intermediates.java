@@ -0,0 +1,196 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.Arrays;
+
+// Everything the debug overlay shows for one frame, recorded during detection so the overlay can be
+// drawn later, and only for frames someone looks at (see OverlayRenderer). Only the last attempt is
+// kept, a tracked fit that falls back to the full search is cleared first.
+// Ellipses are stored as {center x, center y, width, height, angle}.
+public class Intermediates {
+
+    // step 2, MSER features and the search rectangles (located is false when tracking)
+    int features = 0;
+    int featureX[] = new int[64];
+    int featureY[] = new int[64];
+    boolean located = false;
+    final int rectMin[] = new int[4];
+    final int rectMax[] = new int[4];
+
+    // tracking region {x, y, width, height}
+    boolean tracked = false;
+    final int region[] = new int[4];
+
+    // step 6, rays and the first ellipse
+    int rays = 0;
+    double originX;
+    double originY;
+    int rayX[] = new int[24];
+    int rayY[] = new int[24];
+    boolean firstFit = false;
+    final double first[] = new double[5];
+
+    // step 7, the pupil with its axes and the points it was fitted to
+    boolean found = false;
+    final double pupil[] = new double[5];
+    final double axisA[] = new double[2];
+    final double axisB[] = new double[2];
+    int majorAxis;
+    int minorAxis;
+    int points = 0;
+    double pointX[] = new double[24];
+    double pointY[] = new double[24];
+    int removed = 0;
+    double removedX[] = new double[4];
+    double removedY[] = new double[4];
+
+    public void clear() {
+        features = 0;
+        located  = false;
+        tracked  = false;
+        rays     = 0;
+        firstFit = false;
+        found    = false;
+        points   = 0;
+        removed  = 0;
+    }
+
+    public Intermediates copy() {
+        Intermediates c = new Intermediates();
+        c.features = features;
+        c.featureX = Arrays.copyOf(featureX,features);
+        c.featureY = Arrays.copyOf(featureY,features);
+        c.located  = located;
+        System.arraycopy(rectMin,0,c.rectMin,0,4);
+        System.arraycopy(rectMax,0,c.rectMax,0,4);
+        c.tracked = tracked;
+        System.arraycopy(region,0,c.region,0,4);
+        c.rays    = rays;
+        c.originX = originX;
+        c.originY = originY;
+        c.rayX    = Arrays.copyOf(rayX,rays);
+        c.rayY    = Arrays.copyOf(rayY,rays);
+        c.firstFit = firstFit;
+        System.arraycopy(first,0,c.first,0,5);
+        c.found = found;
+        System.arraycopy(pupil,0,c.pupil,0,5);
+        System.arraycopy(axisA,0,c.axisA,0,2);
+        System.arraycopy(axisB,0,c.axisB,0,2);
+        c.majorAxis = majorAxis;
+        c.minorAxis = minorAxis;
+        c.points   = points;
+        c.pointX   = Arrays.copyOf(pointX,points);
+        c.pointY   = Arrays.copyOf(pointY,points);
+        c.removed  = removed;
+        c.removedX = Arrays.copyOf(removedX,removed);
+        c.removedY = Arrays.copyOf(removedY,removed);
+        return c;
+    }
+
+    void addFeature(int x, int y) {
+        if (features==featureX.length) {
+            featureX = Arrays.copyOf(featureX,Math.max(16,2*features));
+            featureY = Arrays.copyOf(featureY,Math.max(16,2*features));
+        }
+        featureX[features] = x;
+        featureY[features] = y;
+        features++;
+    }
+
+    void setRects(int[] rectMin, int[] rectMax) {
+        System.arraycopy(rectMin,0,this.rectMin,0,4);
+        System.arraycopy(rectMax,0,this.rectMax,0,4);
+    }
+
+    void setRegion(int x, int y, int width, int height) {
+        region[0] = x;
+        region[1] = y;
+        region[2] = width;
+        region[3] = height;
+        tracked = true;
+    }
+
+    void setRays(double originX, double originY, int[] x, int[] y, int count) {
+        if (rayX.length<count) {
+            rayX = new int[count];
+            rayY = new int[count];
+        }
+        System.arraycopy(x,0,rayX,0,count);
+        System.arraycopy(y,0,rayY,0,count);
+        this.originX = originX;
+        this.originY = originY;
+        rays = count;
+    }
+
+    void setFirstEllipse(double cx, double cy, double width, double height, double angle) {
+        set(first,cx,cy,width,height,angle);
+        firstFit = true;
+    }
+
+    void setPupil(double cx, double cy, double width, double height, double angle,
+                  double ax, double ay, double bx, double by, int majorAxis, int minorAxis) {
+        set(pupil,cx,cy,width,height,angle);
+        axisA[0] = ax;
+        axisA[1] = ay;
+        axisB[0] = bx;
+        axisB[1] = by;
+        this.majorAxis = majorAxis;
+        this.minorAxis = minorAxis;
+        found = true;
+    }
+
+    void addPoint(double x, double y) {
+        if (points==pointX.length) {
+            pointX = Arrays.copyOf(pointX,Math.max(16,2*points));
+            pointY = Arrays.copyOf(pointY,Math.max(16,2*points));
+        }
+        pointX[points] = x;
+        pointY[points] = y;
+        points++;
+    }
+
+    void addRemoved(double x, double y) {
+        if (removed==removedX.length) {
+            removedX = Arrays.copyOf(removedX,Math.max(16,2*removed));
+            removedY = Arrays.copyOf(removedY,Math.max(16,2*removed));
+        }
+        removedX[removed] = x;
+        removedY[removed] = y;
+        removed++;
+    }
+
+    private static void set(double e[], double cx, double cy, double width, double height, double angle) {
+        e[0] = cx;
+        e[1] = cy;
+        e[2] = width;
+        e[3] = height;
+        e[4] = angle;
+    }
+
+    public boolean isFound() {
+        return found;
+    }
+
+    public int getFeatureCount() {
+        return features;
+    }
+
+    public int getPointCount() {
+        return points;
+    }
+}
@@ -0,0 +1,555 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// the OctoEye pipeline in plain Java on byte[], needs no native library: median filter, dark blob
+// detection instead of MSER, Canny, ray-cast edge search and a direct least-squares ellipse fit,
+// only the measurements and the intermediates are produced, the overlay needs OverlayRenderer
+public class JavaTracker implements PupilTracker {
+
+    public final static int WIDTH  = OctoEye.WIDTH;
+    public final static int HEIGHT = OctoEye.HEIGHT;
+
+    private long time = 0, timeNanos = 0;
+    private byte frame[] = new byte[WIDTH*HEIGHT];
+    private byte current[];
+    private byte tmp1[] = new byte[WIDTH*HEIGHT];
+    private byte tmp2[] = new byte[WIDTH*HEIGHT];
+    private final SymbolDetector symbols = SymbolDetector.createDefault();
+
+    private final MedianFilter median = new MedianFilter(WIDTH,HEIGHT);
+    private final BlobDetector blobs = new BlobDetector(WIDTH,HEIGHT);
+    private final CandidateScorer scorer = new CandidateScorer(WIDTH,HEIGHT);
+    private final CannyDetector canny = new CannyDetector(WIDTH,HEIGHT);
+    private RayCaster rays;
+    private final PupilFit fit = new PupilFit();
+
+    // center x, center y, width, height, angle
+    private final double pupil[] = fit.getPupil();
+    private int pupilMajorAxis = 0;
+    private int pupilMinorAxis = 0;
+    private boolean star = false;
+    private boolean ring = false;
+    private Outcome outcome = Outcome.NO_KEYPOINTS;
+
+    private final long stageNanos[] = new long[PipelineStage.values().length];
+    private final TrackerMetrics metrics = new TrackerMetrics();
+
+    private OutputMode mode = OutputMode.MEASUREMENTS;
+    private boolean recording = false;
+    private boolean record = false;
+    private final Intermediates intermediates = new Intermediates();
+
+    private final Parameters params = new Parameters();
+
+    private boolean subpixel = false;
+    private boolean robust = false;
+    private PyramidLocator pyramid = null;
+
+    private final FrameQualityGate gate = new FrameQualityGate(WIDTH,HEIGHT);
+    private boolean gateEnabled = false;
+    private FrameQualityGate.Decision decision = null;
+
+    private boolean tracking = false;
+    private boolean previous = false;
+    private double previousX;
+    private double previousY;
+    private long trackedFrames = 0;
+    private long fallbacks = 0;
+
+    public JavaTracker() {
+        setRayCount(params.getRayCount());
+    }
+
+    public void process(byte buffer[]) {
+        long start = System.nanoTime();
+        Arrays.fill(stageNanos,-1);
+
+        reset();
+        star = false;
+        ring = false;
+
+        intermediates.clear();
+
+        current = buffer;
+        long t = System.nanoTime();
+        symbols.detect(current);
+        star = symbols.isDetected(SymbolDetector.STAR);
+        ring = symbols.isDetected(SymbolDetector.RING);
+        lap(PipelineStage.SYMBOLS,t);
+        outcome = detectPupil();
+
+        timeNanos = System.nanoTime()-start;
+        time = timeNanos/1000000;
+        stageNanos[PipelineStage.TOTAL.ordinal()] = timeNanos;
+        metrics.commit(stageNanos,outcome);
+    }
+
+    public void process(ByteBuffer buffer) {
+        if (buffer.hasArray() && buffer.arrayOffset()+buffer.position()==0) {
+            process(buffer.array());
+            return;
+        }
+        buffer.duplicate().get(frame);
+        process(frame);
+    }
+
+    public void close() {
+        median.close();
+        if (pyramid!=null) {
+            pyramid.close();
+        }
+    }
+
+    private long lap(PipelineStage stage, long t) {
+        long now = System.nanoTime();
+        int i = stage.ordinal();
+        stageNanos[i] = (stageNanos[i]<0 ? 0 : stageNanos[i])+now-t;
+        return now;
+    }
+
+    private Outcome detectPupil() {
+        Outcome result = null;
+        decision = null;
+        boolean track = tracking;
+        if (gateEnabled) {
+            long t = System.nanoTime();
+            decision = gate.classify(current);
+            lap(PipelineStage.QUALITY,t);
+            if (decision==FrameQualityGate.Decision.SKIP) {
+                previous = false;
+                return gate.getReason();
+            }
+            if (decision==FrameQualityGate.Decision.TRACK && !previous) {
+                decision = FrameQualityGate.Decision.SEARCH;
+            }
+            track = decision==FrameQualityGate.Decision.TRACK;
+        }
+        if (track && previous) {
+            trackedFrames++;
+            result = trackPupil();
+            if (result!=Outcome.FOUND) {
+                fallbacks++;
+                reset();
+                intermediates.clear();
+            }
+        }
+        if (result!=Outcome.FOUND) {
+            result = pyramid!=null ? locatePupil() : searchPupil();
+        }
+        previous = result==Outcome.FOUND;
+        previousX = pupil[0];
+        previousY = pupil[1];
+        return result;
+    }
+
+    private Outcome trackPupil() {
+        int x = (int)previousX;
+        int y = (int)previousY;
+        int rectMin[] = around(x,y);
+        int margin = params.getMargin();
+        int rectMax[] = {rectMin[0]-margin,rectMin[1]-margin,rectMin[2]+2*margin,rectMin[3]+2*margin};
+        return fitPupil(rectMin,rectMax,true);
+    }
+
+    private Outcome searchPupil() {
+        // -------------------------------------------------------------------------------------------------------------
+        // step 1
+        // blur the image to reduce noise
+
+        long t = System.nanoTime();
+        median.apply(current,tmp1,params.getCoarseKernel());
+        t = lap(PipelineStage.COARSE_BLUR,t);
+
+
+
+        // -------------------------------------------------------------------------------------------------------------
+        // step 2
+        // locate the pupil with dark blobs and score the darkness around each,
+        // the best blob will be used as rough pupil location (rectMin)
+
+        int count = blobs.detect(tmp1);
+        t = lap(PipelineStage.MSER,t);
+        int rectMin[] = null;
+        int score = 0;
+        scorer.setImage(tmp1);
+        for (int i=0; i<count; i++) {
+            int x = (int)blobs.getX(i);
+            int y = (int)blobs.getY(i);
+            int tmp = scorer.score(x,y);
+            if (tmp>=score) {
+                score = tmp;
+                rectMin = scorer.rect(x,y);
+            }
+            if (record) {
+                intermediates.addFeature(x,y);
+            }
+        }
+        lap(PipelineStage.HISTOGRAM,t);
+        if (rectMin==null) {
+            return Outcome.NO_KEYPOINTS;
+        }
+
+
+
+        // -------------------------------------------------------------------------------------------------------------
+        // step 3
+        // compute a rectMax which is larger than the pupil
+
+        int margin = params.getMargin();
+        int rectMax[] = {rectMin[0]-margin,rectMin[1]-margin,rectMin[2]+2*margin,rectMin[3]+2*margin};
+        intermediates.located = true;
+
+        return fitPupil(rectMin,rectMax,false);
+    }
+
+    // steps 1 to 3 on the coarse pyramid level, the edges are only searched in the region around the candidate
+    private Outcome locatePupil() {
+        pyramid.setParameters(getParameters());
+        long t = System.nanoTime();
+        pyramid.blur(current);
+        t = lap(PipelineStage.COARSE_BLUR,t);
+
+        int count = pyramid.detect();
+        t = lap(PipelineStage.MSER,t);
+        int best = pyramid.score();
+        lap(PipelineStage.HISTOGRAM,t);
+        if (record) {
+            for (int i=0; i<count; i++) {
+                intermediates.addFeature(pyramid.getX(i),pyramid.getY(i));
+            }
+        }
+        if (best<0) {
+            return Outcome.NO_KEYPOINTS;
+        }
+
+        int rectMin[] = scorer.rect(pyramid.getX(best),pyramid.getY(best));
+        int margin = params.getMargin();
+        int rectMax[] = {rectMin[0]-margin,rectMin[1]-margin,rectMin[2]+2*margin,rectMin[3]+2*margin};
+        intermediates.located = true;
+
+        return fitPupil(rectMin,rectMax,true);
+    }
+
+    // the 10x10 rect around (x,y) the tracking starts from, clipped like Rect(tl,br) in OctoEye
+    private static int[] around(int x, int y) {
+        int x1 = x-5>=0 ? x-5 : 0;
+        int y1 = y-5>=0 ? y-5 : 0;
+        int x2 = x+5<WIDTH  ? x+5 : WIDTH-1;
+        int y2 = y+5<HEIGHT ? y+5 : HEIGHT-1;
+        return new int[] {x1,y1,x2-x1,y2-y1};
+    }
+
+    private Outcome fitPupil(int rectMin[], int rectMax[], boolean roi) {
+        double px = rectMin[0]+rectMin[2]/2;
+        double py = rectMin[1]+rectMin[3]/2;
+        double length = Math.min(px-rectMax[0]-3,py-rectMax[1]-3);
+        length = Math.sqrt(2*Math.pow(length,2));
+
+        // the region the rays can reach plus the blur radius, the whole frame for a full search
+        int rx = 0, ry = 0, rw = WIDTH, rh = HEIGHT;
+        if (roi) {
+            int r = (int)Math.ceil(length)+2+6;
+            rx = Math.max((int)px-r,0);
+            ry = Math.max((int)py-r,0);
+            rw = Math.min((int)px-r+2*r+1,WIDTH)-rx;
+            rh = Math.min((int)py-r+2*r+1,HEIGHT)-ry;
+            if (rw<=0 || rh<=0) {
+                return Outcome.TOO_FEW_POINTS;
+            }
+            intermediates.setRegion(rx,ry,rw,rh);
+        }
+
+
+
+        // -------------------------------------------------------------------------------------------------------------
+        // step 4
+        // blur the image again
+
+        long t = System.nanoTime();
+        median.applyChain(current,tmp1,MedianFilter.FINE_BLUR,rx,ry,rw,rh);
+        t = lap(PipelineStage.FINE_BLUR,t);
+
+
+
+        // -------------------------------------------------------------------------------------------------------------
+        // step 5
+        // detect edges
+
+        if (roi) {
+            CannyDetector.clearOutside(tmp2,WIDTH,HEIGHT,rx,ry,rw,rh);
+        }
+        canny.detect(tmp1,tmp2,params.getCannyLow(),params.getCannyHigh(),rx,ry,rw,rh);
+        t = lap(PipelineStage.CANNY,t);
+
+
+
+        // -------------------------------------------------------------------------------------------------------------
+        // step 6
+        // from pupil center to maxRect borders, find all edge points
+
+        rays.cast(px,py,length);
+        if (record) {
+            intermediates.setRects(rectMin,rectMax);
+            intermediates.setRays(px,py,rays.getRayX(),rays.getRayY(),rays.getCount());
+        }
+        rays.search(tmp2,WIDTH,HEIGHT);
+        if (subpixel) {
+            rays.refine(tmp1,WIDTH,HEIGHT);
+        }
+        t = lap(PipelineStage.EDGE_SEARCH,t);
+
+
+
+        // -------------------------------------------------------------------------------------------------------------
+        // step 7
+        // remove some outlier points and compute the ellipse again
+
+        Outcome result = fit.fit(rays.getPointX(),rays.getPointY(),rays.getEdges(),params,robust);
+        pupilMajorAxis = fit.getMajorAxis();
+        pupilMinorAxis = fit.getMinorAxis();
+        lap(PipelineStage.ELLIPSE_FIT,t);
+        double first[] = fit.getFirst();
+        if (record && first!=null) {
+            intermediates.setFirstEllipse(first[0],first[1],first[2],first[3],first[4]);
+        }
+        if (result!=Outcome.FOUND) {
+            return result;
+        }
+
+        if (record) {
+            double vertices[] = fit.getVertices();
+            double ax, ay, bx, by;
+            double d1 = Math.hypot(vertices[2]-vertices[0],vertices[3]-vertices[1]);
+            double d2 = Math.hypot(vertices[4]-vertices[2],vertices[5]-vertices[3]);
+            double mx1 = vertices[2]+(vertices[4]-vertices[2])/2, my1 = vertices[3]+(vertices[5]-vertices[3])/2;
+            double mx0 = vertices[0]+(vertices[2]-vertices[0])/2, my0 = vertices[1]+(vertices[3]-vertices[1])/2;
+            if (d1>=d2) {
+                ax = mx1; ay = my1; bx = mx0; by = my0;
+            } else {
+                ax = mx0; ay = my0; bx = mx1; by = my1;
+            }
+            intermediates.setPupil(pupil[0],pupil[1],pupil[2],pupil[3],pupil[4],ax,ay,bx,by,pupilMajorAxis,pupilMinorAxis);
+            for (int i=0; i<fit.getPoints(); i++) {
+                intermediates.addPoint(fit.getPointX()[i],fit.getPointY()[i]);
+            }
+            for (int i=0; i<fit.getRemoved(); i++) {
+                intermediates.addRemoved(fit.getRemovedX()[i],fit.getRemovedY()[i]);
+            }
+        }
+        return Outcome.FOUND;
+    }
+
+    private void reset() {
+        Arrays.fill(pupil,0);
+        pupilMajorAxis = 0;
+        pupilMinorAxis = 0;
+    }
+
+    public void setRayCount(int rayCount) {
+        params.setRayCount(rayCount);
+        rays = new RayCaster(rayCount);
+    }
+
+    public int getRayCount() {
+        return rays.getCount();
+    }
+
+    public void setParameters(Parameters p) {
+        params.setRadius(p.getMinRadius(),p.getMaxRadius());
+        params.setCoarseKernel(p.getCoarseKernel());
+        params.setMargin(p.getMargin());
+        params.setCanny(p.getCannyLow(),p.getCannyHigh());
+        params.setOutliers(p.getOutliers());
+        params.setMinRatio(p.getMinRatio());
+        scorer.setWindow(p.getWindow());
+        scorer.setThreshold(p.getThreshold());
+        if (p.getRayCount()!=rays.getCount()) {
+            setRayCount(p.getRayCount());
+        }
+    }
+
+    // the window and threshold are those of the CandidateScorer, they can be changed there as well
+    public Parameters getParameters() {
+        Parameters p = params.copy();
+        p.setWindow(scorer.getWindow());
+        p.setThreshold(scorer.getThreshold());
+        return p;
+    }
+
+    public void setSubpixelEdges(boolean subpixel) {
+        this.subpixel = subpixel;
+    }
+
+    public boolean isSubpixelEdges() {
+        return subpixel;
+    }
+
+    public void setRobustFit(boolean robust) {
+        this.robust = robust;
+    }
+
+    public boolean isRobustFit() {
+        return robust;
+    }
+
+    public void setPyramidLevel(int level) {
+        if (pyramid!=null) {
+            pyramid.close();
+        }
+        pyramid = level>0 ? new PyramidLocator(WIDTH,HEIGHT,level) : null;
+    }
+
+    public int getPyramidLevel() {
+        return pyramid!=null ? pyramid.getLevel() : 0;
+    }
+
+    public void setQualityGate(boolean enabled) {
+        gateEnabled = enabled;
+        gate.reset();
+    }
+
+    public boolean isQualityGate() {
+        return gateEnabled;
+    }
+
+    public FrameQualityGate getQualityGate() {
+        return gate;
+    }
+
+    public void setFilterThreads(int threads) {
+        median.setThreads(threads);
+    }
+
+    public int getFilterThreads() {
+        return median.getThreads();
+    }
+
+    // no images are rendered, in ANNOTATED and DEBUG mode the intermediates are recorded for OverlayRenderer
+    public void setOutputMode(OutputMode mode) {
+        this.mode = mode;
+        record = recording || mode!=OutputMode.MEASUREMENTS;
+    }
+
+    public OutputMode getOutputMode() {
+        return mode;
+    }
+
+    public void setRecording(boolean recording) {
+        this.recording = recording;
+        setOutputMode(mode);
+    }
+
+    public boolean isRecording() {
+        return recording;
+    }
+
+    public Intermediates getIntermediates() {
+        return intermediates;
+    }
+
+    public void setTracking(boolean tracking) {
+        this.tracking = tracking;
+        resetTracking();
+    }
+
+    public boolean isTracking() {
+        return tracking;
+    }
+
+    public void resetTracking() {
+        previous = false;
+    }
+
+    public long getTrackedFrames() {
+        return trackedFrames;
+    }
+
+    public long getFallbacks() {
+        return fallbacks;
+    }
+
+    public TrackingResult getResult(int index, String name) {
+        return new TrackingResult(index,name,time,pupilMajorAxis,pupilMinorAxis,
+                pupil[4],pupil[0],pupil[1],star,ring,outcome,decision);
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public long getTimeNanos() {
+        return timeNanos;
+    }
+
+    public long getStageNanos(PipelineStage stage) {
+        return stageNanos[stage.ordinal()];
+    }
+
+    public Outcome getOutcome() {
+        return outcome;
+    }
+
+    public TrackerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public int getDiameter() {
+        return 2*pupilMajorAxis;
+    }
+
+    public boolean isStar() {
+        return star;
+    }
+
+    public boolean isRing() {
+        return ring;
+    }
+
+    public SymbolDetector getSymbolDetector() {
+        return symbols;
+    }
+
+    public CandidateScorer getCandidateScorer() {
+        return scorer;
+    }
+
+    public int getPupilMajorAxis() {
+        return pupilMajorAxis;
+    }
+
+    public int getPupilMinorAxis() {
+        return pupilMinorAxis;
+    }
+
+    // center x, center y, width, height and angle of the last pupil, all 0 if none was found
+    public double[] getPupil() {
+        return pupil.clone();
+    }
+
+    // the fine blurred frame and the edge map of the last frame
+    public byte[] getBlurred() {
+        return tmp1;
+    }
+
+    public byte[] getEdges() {
+        return tmp2;
+    }
+}
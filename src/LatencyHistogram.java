@@ -0,0 +1,136 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.Arrays;
+
+// Log-linear histogram of nanosecond latencies in the spirit of HdrHistogram: values below 128 are
+// counted exactly, larger values in 64 sub-buckets per power of two, i.e. with less than 1.6% error.
+// Recording is a few shifts and an array increment. Not thread-safe, see TrackerMetrics.
+public class LatencyHistogram {
+
+    private final static int SUB_BITS = 6;
+    private final static int SUB      = 1<<SUB_BITS;
+    private final static int LINEAR   = 2*SUB;
+    private final static int BUCKETS  = LINEAR+(63-SUB_BITS)*SUB;
+
+    private final long counts[];
+    private long count = 0;
+    private long total = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = 0;
+
+    public LatencyHistogram() {
+        counts = new long[BUCKETS];
+    }
+
+    private LatencyHistogram(LatencyHistogram h) {
+        counts = h.counts.clone();
+        count  = h.count;
+        total  = h.total;
+        min    = h.min;
+        max    = h.max;
+    }
+
+    static int index(long value) {
+        if (value<LINEAR) {
+            return (int)value;
+        }
+        int shift = 63-Long.numberOfLeadingZeros(value)-SUB_BITS;
+        return LINEAR+(shift-1)*SUB+(int)(value>>>shift)-SUB;
+    }
+
+    // smallest value counted in bucket i
+    static long lowest(int i) {
+        if (i<LINEAR) {
+            return i;
+        }
+        int shift = (i-LINEAR)/SUB+1;
+        return (long)((i-LINEAR)%SUB+SUB)<<shift;
+    }
+
+    // largest value counted in bucket i
+    static long highest(int i) {
+        return i+1<BUCKETS ? lowest(i+1)-1 : Long.MAX_VALUE;
+    }
+
+    public void record(long value) {
+        if (value<0) {
+            value = 0;
+        }
+        counts[index(value)]++;
+        count++;
+        total += value;
+        min = Math.min(min,value);
+        max = Math.max(max,value);
+    }
+
+    public void add(LatencyHistogram h) {
+        for (int i=0; i<BUCKETS; i++) {
+            counts[i] += h.counts[i];
+        }
+        count += h.count;
+        total += h.total;
+        min = Math.min(min,h.min);
+        max = Math.max(max,h.max);
+    }
+
+    public void reset() {
+        Arrays.fill(counts,0);
+        count = 0;
+        total = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    public LatencyHistogram copy() {
+        return new LatencyHistogram(this);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMin() {
+        return count>0 ? min : 0;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return count>0 ? (double)total/count : 0;
+    }
+
+    // upper bound of the bucket holding the given percentile (0..100), clamped to the largest recorded value
+    public long getValueAtPercentile(double percentile) {
+        if (count==0) {
+            return 0;
+        }
+        long rank = (long)Math.ceil(Math.min(100,Math.max(0,percentile))/100*count);
+        rank = Math.max(rank,1);
+        long seen = 0;
+        for (int i=0; i<BUCKETS; i++) {
+            seen += counts[i];
+            if (seen>=rank) {
+                return Math.min(highest(i),max);
+            }
+        }
+        return max;
+    }
+}
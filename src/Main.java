@@ -1,5 +1,6 @@
 import javax.swing.*;
 import javax.swing.event.*;
+import java.awt.event.*;
 import java.awt.image.*;
 import java.io.*;
 
@@ -12,87 +13,144 @@ public class Main {
     private JLabel srcLabel;
     private JLabel dstLabel;
     private JSlider select;
+    private TimelinePanel timeline;
 
-    private String path;
-    private File folder;
-    private File[] files;
-    private BufferedImage src;
-    private BufferedImage dst;
-    private OctoEye oe;
+    private FrameSource frames;
+    // frames seen while scrubbing and their neighbours, with the rendered images
+    private ResultCache cache = new ResultCache(128L<<20);
+    private FrameLoader loader;
+    // tracks the whole session in the background for the timeline
+    private BatchProcessor overview;
+    private Thread overviewThread;
 
     public Main(String[] args) {
-        if (args.length!=1) {
+        if (args.length<1 || args.length>2) {
             System.err.println("Path to images missing.");
             System.exit(1);
         }
 
-        path   = String.format(args[0]);
-        folder = new File(path);
-        files  = folder.listFiles();
+        try {
+            frames = PackedSession.open(new File(args[0]));
+        } catch (IOException e) {
+            System.err.println("Cannot open "+args[0]+": "+e.getMessage());
+            System.exit(1);
+        }
+        int radius = args.length>1 ? Integer.parseInt(args[1]) : 4;
 
         frame = new JFrame("OctoEye");
         frame.setContentPane(main);
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        // runs before the exit, the trackers hold native memory
+        frame.addWindowListener(new WindowAdapter() {
+            public void windowClosing(WindowEvent e) {
+                close();
+            }
+        });
         frame.pack();
         frame.setResizable(false);
         frame.setVisible(true);
 
+        // loading and tracking run on the loader threads, the event dispatch thread only shows the results.
+        // The overview takes half the cores, the loader the rest
+        int cores = Runtime.getRuntime().availableProcessors();
+        loader = new FrameLoader(frames,cache,Math.max(1,cores-cores/2),radius,
+                new FrameLoader.Listener() {
+                    public void frameLoaded(FrameLoader.Frame f) {
+                        showFrame(f);
+                    }
+                });
+
         select.setMinimum(0);
-        select.setMaximum(files.length - 1);
+        select.setMaximum(frames.size() - 1);
         select.addChangeListener(new ChangeListener() {
             public void stateChanged(ChangeEvent e) {
                 setImage((int) ((JSlider) e.getSource()).getValue());
             }
         });
 
+        timeline.setFrames(frames.size());
+        timeline.setListener(new TimelinePanel.Listener() {
+            public void frameSelected(int frame) {
+                select.setValue(frame);
+            }
+        });
+        startOverview();
+
         setImage(0);
     }
 
+    // half the cores track the session for the timeline, the rest stay with the loader, the results
+    // go through the cache so frames tracked by either are not tracked again by the other
+    private void startOverview() {
+        overview = new BatchProcessor(frames,Math.max(1,Runtime.getRuntime().availableProcessors()/2));
+        overview.setCache(cache);
+        overview.setResultListener(new ResultListener() {
+            public void onResult(TrackingResult result) {
+                timeline.setResult(result);
+            }
+        });
+        overviewThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    overview.run(null);
+                } catch (InterruptedException e) {
+                    // closed
+                } catch (Exception e) {
+                    System.err.println("Background tracking stopped: "+e.getMessage());
+                }
+            }
+        },"OctoEye-overview");
+        overviewThread.setDaemon(true);
+        overviewThread.start();
+    }
+
+    // stops the background tracking and the loader, their trackers are closed when their threads are done
+    private void close() {
+        try {
+            overviewThread.interrupt();
+            overviewThread.join();
+            loader.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     public static void main(String[] args) {
         new Main(args);
     }
 
     public void setImage(int i) {
-        if (i<0 || i>=files.length)
-            return;
-        readImageFromFile(files[i].toString());
-
-        frame.setTitle(files[i].getName());
-        srcLabel.setIcon(new ImageIcon(src.getScaledInstance(OctoEye.WIDTH*2,OctoEye.HEIGHT*2,java.awt.Image.SCALE_SMOOTH)));
-        dstLabel.setIcon(new ImageIcon(dst.getScaledInstance(OctoEye.WIDTH*2,OctoEye.HEIGHT*2,java.awt.Image.SCALE_SMOOTH)));
+        loader.request(i);
     }
 
-    public void readImageFromFile(String fileName) {
-        File file = new File(fileName);
-        byte buffer[] = new byte[(int)file.length()];
-        FileInputStream fis = null;
-        try {
-            fis = new FileInputStream(file);
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        }
-        try {
-            fis.read(buffer);
-            fis.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        src = new BufferedImage(OctoEye.WIDTH,OctoEye.HEIGHT,BufferedImage.TYPE_BYTE_GRAY);
-        System.arraycopy(buffer,0,((DataBufferByte)src.getRaster().getDataBuffer()).getData(),0,buffer.length);
-        oe = new OctoEye(buffer);
-
-        src = oe.getBufferedImage(oe.getDbg());
-        dst = oe.getBufferedImage(oe.getDst());
+    private void showFrame(FrameLoader.Frame f) {
+        frame.setTitle(f.getName());
+        setIcon(srcLabel,f.getSrc());
+        setIcon(dstLabel,f.getDst());
 
+        TrackingResult result = f.getResult();
+        timeline.setResult(result);
+        timeline.setCurrent(f.getIndex());
         String info = String.format("t = %02d ms    d = %02dpx    a = %02dpx    b = %02dpx    [%s%s]",
-                oe.getTime(),
-                oe.getDiameter(),
-                oe.getPupilMajorAxis(),
-                oe.getPupilMinorAxis(),
-                oe.isStar()?"*":" ",
-                oe.isRing()?"o":" ",
-                fileName);
+                result.getTime(),
+                result.getDiameter(),
+                result.getPupilMajorAxis(),
+                result.getPupilMinorAxis(),
+                result.isStar()?"*":" ",
+                result.isRing()?"o":" ",
+                f.getName());
         status.setText(info);
     }
 
+    private void setIcon(JLabel label, BufferedImage image) {
+        // the loader alternates between two images per label, the icon is kept and only gets the new one
+        ImageIcon icon = (ImageIcon)label.getIcon();
+        if (icon==null) {
+            label.setIcon(new ImageIcon(image));
+        } else {
+            icon.setImage(image);
+            label.repaint();
+        }
+    }
+
 }
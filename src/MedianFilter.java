@@ -0,0 +1,427 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+// median filter for 8-bit images in constant time per pixel, independent of the kernel size
+// (Perreault and Hébert, "Median Filtering in Constant Time"): every column keeps a histogram of
+// the kernel height, the kernel histogram is updated by adding and subtracting whole columns,
+// split into 16 coarse and 16x16 fine bins so only the coarse bins are touched for every pixel.
+// Borders follow Imgproc.medianBlur on a submat: rows are replicated at the region edges, columns
+// as well for kernels up to 5, larger kernels take columns from outside the region up to the image edge.
+// The image is split into row bands which are filtered in parallel when threads > 1.
+public class MedianFilter {
+
+    // kernel sizes of the fine blur of both engines, applied one after another
+    public final static int FINE_BLUR[] = {7,3,3,3};
+
+    // largest kernel for Huang's algorithm, larger ones use the constant time histograms
+    private final static int SMALL = 7;
+
+    private final int width;
+    private final int height;
+
+    private int threads = 1;
+    private ExecutorService pool;
+    private Band bands[];
+
+    private byte copy[];
+
+    public MedianFilter(int width, int height) {
+        this.width  = width;
+        this.height = height;
+        bands = new Band[] {new Band()};
+    }
+
+    // per band workspace, each band only touches its own histograms and scratch rows
+    private class Band {
+
+        // column histograms, coarse[c*16+v/16] and fine[c*256+v]
+        final int colCoarse[] = new int[width*16];
+        final int colFine[] = new int[width*256];
+
+        // kernel histogram, fine bins are only brought up to date for the coarse bin holding the median
+        final int coarse[] = new int[16];
+        final int fine[] = new int[256];
+        final int updated[] = new int[16];
+
+        // sliding histogram and row offsets of the small kernels
+        final int hist[] = new int[256];
+        int rows[] = new int[0];
+
+        // sorted columns of the 3x3 kernel
+        int lo[] = new int[0];
+        int mid[] = new int[0];
+        int hi[] = new int[0];
+
+        // intermediate images of a chain
+        byte scratch[][];
+
+        void filter(byte src[], byte dst[], int ksize, int x0, int x1, int y0, int y1, int rx, int ry, int rw, int rh) {
+            int left  = ksize<=5 ? rx : 0;
+            int right = ksize<=5 ? rx+rw : width;
+            if (ksize==3) {
+                network3(src,dst,x0,x1,y0,y1,left,right,ry,ry+rh);
+            } else if (ksize<=SMALL) {
+                huang(src,dst,ksize/2,x0,x1,y0,y1,left,right,ry,ry+rh);
+            } else {
+                histogram(src,dst,ksize/2,x0,x1,y0,y1,left,right,ry,ry+rh);
+            }
+        }
+
+        // rows y0 to y1 of the chain, the earlier kernels also compute the rows the later ones need
+        void chain(byte src[], byte dst[], int ksizes[], int y0, int y1, int rx, int ry, int rw, int rh) {
+            if (scratch==null) {
+                scratch = new byte[2][width*height];
+            }
+            int halo = 0;
+            for (int i=1; i<ksizes.length; i++) {
+                halo += ksizes[i]/2;
+            }
+            byte in[] = src;
+            for (int i=0; i<ksizes.length; i++) {
+                byte out[] = i==ksizes.length-1 ? dst : scratch[i%2];
+                int a = Math.max(ry,y0-halo);
+                int b = Math.min(ry+rh,y1+halo);
+                filter(in,out,ksizes[i],rx,rx+rw,a,b,rx,ry,rw,rh);
+                if (i+1<ksizes.length) {
+                    halo -= ksizes[i+1]/2;
+                }
+                in = out;
+            }
+        }
+
+        // rows y0 to y1 and columns x0 to x1, rows are replicated beyond top and bottom, columns beyond left and right
+        void histogram(byte src[], byte dst[], int r, int x0, int x1, int y0, int y1,
+                       int left, int right, int top, int bottom) {
+            int c0 = Math.max(left,x0-r);
+            int c1 = Math.min(right-1,x1-1+r);
+            int half = (2*r+1)*(2*r+1)/2;
+
+            // column histograms for the first row
+            for (int c=c0; c<=c1; c++) {
+                Arrays.fill(colCoarse,c*16,c*16+16,0);
+                Arrays.fill(colFine,c*256,c*256+256,0);
+            }
+            for (int dy=-r; dy<=r; dy++) {
+                int row = clamp(y0+dy,top,bottom-1)*width;
+                for (int c=c0; c<=c1; c++) {
+                    int v = src[row+c]&0xff;
+                    colCoarse[c*16+(v>>4)]++;
+                    colFine[c*256+v]++;
+                }
+            }
+
+            for (int y=y0; y<y1; y++) {
+                if (y>y0) {
+                    // slide the column histograms one row down
+                    int out = clamp(y-r-1,top,bottom-1)*width;
+                    int in  = clamp(y+r,top,bottom-1)*width;
+                    for (int c=c0; c<=c1; c++) {
+                        int v = src[out+c]&0xff;
+                        colCoarse[c*16+(v>>4)]--;
+                        colFine[c*256+v]--;
+                        v = src[in+c]&0xff;
+                        colCoarse[c*16+(v>>4)]++;
+                        colFine[c*256+v]++;
+                    }
+                }
+
+                Arrays.fill(coarse,0);
+                Arrays.fill(updated,Integer.MIN_VALUE/2);
+                for (int dx=-r; dx<=r; dx++) {
+                    int c = clamp(x0+dx,left,right-1)*16;
+                    for (int k=0; k<16; k++) {
+                        coarse[k] += colCoarse[c+k];
+                    }
+                }
+
+                int row = y*width;
+                for (int x=x0; x<x1; x++) {
+                    if (x>x0) {
+                        int in  = clamp(x+r,left,right-1)*16;
+                        int out = clamp(x-r-1,left,right-1)*16;
+                        for (int k=0; k<16; k++) {
+                            coarse[k] += colCoarse[in+k]-colCoarse[out+k];
+                        }
+                    }
+
+                    // coarse bin holding the median
+                    int sum = 0;
+                    int k = 0;
+                    while (sum+coarse[k]<=half) {
+                        sum += coarse[k];
+                        k++;
+                    }
+
+                    // bring its fine bins up to the current kernel position
+                    int f = k*16;
+                    if (x-updated[k]>2*r) {
+                        Arrays.fill(fine,f,f+16,0);
+                        for (int dx=-r; dx<=r; dx++) {
+                            int c = clamp(x+dx,left,right-1)*256+f;
+                            for (int j=0; j<16; j++) {
+                                fine[f+j] += colFine[c+j];
+                            }
+                        }
+                    } else {
+                        for (int xx=updated[k]+1; xx<=x; xx++) {
+                            int in  = clamp(xx+r,left,right-1)*256+f;
+                            int out = clamp(xx-r-1,left,right-1)*256+f;
+                            for (int j=0; j<16; j++) {
+                                fine[f+j] += colFine[in+j]-colFine[out+j];
+                            }
+                        }
+                    }
+                    updated[k] = x;
+
+                    int j = 0;
+                    while (sum+fine[f+j]<=half) {
+                        sum += fine[f+j];
+                        j++;
+                    }
+                    dst[row+x] = (byte)(f+j);
+                }
+            }
+        }
+
+        // Huang's sliding histogram, one column leaves and one enters the kernel per pixel and the median
+        // moves from its last position, O(ksize) per pixel but cheaper than the histograms for small kernels
+        void huang(byte src[], byte dst[], int r, int x0, int x1, int y0, int y1,
+                   int left, int right, int top, int bottom) {
+            int half = (2*r+1)*(2*r+1)/2;
+            if (rows.length<2*r+1) {
+                rows = new int[2*r+1];
+            }
+            for (int y=y0; y<y1; y++) {
+                for (int dy=-r; dy<=r; dy++) {
+                    rows[dy+r] = clamp(y+dy,top,bottom-1)*width;
+                }
+                Arrays.fill(hist,0);
+                for (int dx=-r; dx<=r; dx++) {
+                    int c = clamp(x0+dx,left,right-1);
+                    for (int i=0; i<=2*r; i++) {
+                        hist[src[rows[i]+c]&0xff]++;
+                    }
+                }
+                // m is the median, below the number of values smaller than m
+                int m = 0;
+                int below = 0;
+                while (below+hist[m]<=half) {
+                    below += hist[m];
+                    m++;
+                }
+
+                int row = y*width;
+                for (int x=x0; x<x1; x++) {
+                    if (x>x0) {
+                        int out = clamp(x-r-1,left,right-1);
+                        int in  = clamp(x+r,left,right-1);
+                        for (int i=0; i<=2*r; i++) {
+                            // (v-m)>>>31 is 1 for v<m, no branch to mispredict on noisy images
+                            int v = src[rows[i]+out]&0xff;
+                            hist[v]--;
+                            below -= (v-m)>>>31;
+                            v = src[rows[i]+in]&0xff;
+                            hist[v]++;
+                            below += (v-m)>>>31;
+                        }
+                        while (below>half) {
+                            m--;
+                            below -= hist[m];
+                        }
+                        while (below+hist[m]<=half) {
+                            below += hist[m];
+                            m++;
+                        }
+                    }
+                    dst[row+x] = (byte)m;
+                }
+            }
+        }
+
+        // 3x3 median with a sorting network split in two: every column of three is sorted once for the three
+        // windows it belongs to, then the median is the median of the largest low, the median of the middles
+        // and the smallest high of its three columns, both passes are plain loops over arrays
+        void network3(byte src[], byte dst[], int x0, int x1, int y0, int y1,
+                      int left, int right, int top, int bottom) {
+            if (lo.length<x1-x0+2) {
+                lo  = new int[x1-x0+2];
+                mid = new int[x1-x0+2];
+                hi  = new int[x1-x0+2];
+            }
+            // column c is in slot c-x0+1, the slots left and right of the region replicate its border columns
+            int c0 = Math.max(x0-1,left);
+            int c1 = Math.min(x1,right-1);
+            int last = x1-x0+1;
+            for (int y=y0; y<y1; y++) {
+                int up   = clamp(y-1,top,bottom-1)*width;
+                int row  = y*width;
+                int down = clamp(y+1,top,bottom-1)*width;
+                for (int c=c0, i=c0-x0+1; c<=c1; c++, i++) {
+                    int a = src[up+c]&0xff;
+                    int b = src[row+c]&0xff;
+                    int d = src[down+c]&0xff;
+                    int min = Math.min(a,b);
+                    int max = Math.max(a,b);
+                    lo[i]  = Math.min(min,d);
+                    hi[i]  = Math.max(max,d);
+                    mid[i] = Math.max(min,Math.min(max,d));
+                }
+                if (c0>x0-1) {
+                    lo[0]  = lo[1];
+                    mid[0] = mid[1];
+                    hi[0]  = hi[1];
+                }
+                if (c1<x1) {
+                    lo[last]  = lo[last-1];
+                    mid[last] = mid[last-1];
+                    hi[last]  = hi[last-1];
+                }
+                for (int x=x0, i=1; x<x1; x++, i++) {
+                    int l = Math.max(Math.max(lo[i-1],lo[i]),lo[i+1]);
+                    int h = Math.min(Math.min(hi[i-1],hi[i]),hi[i+1]);
+                    int a = mid[i-1], b = mid[i], c = mid[i+1];
+                    int m = Math.max(Math.min(a,b),Math.min(Math.max(a,b),c));
+                    dst[row+x] = (byte)Math.max(Math.min(l,m),Math.min(Math.max(l,m),h));
+                }
+            }
+        }
+    }
+
+    // same result as Imgproc.medianBlur(src,dst,ksize), src and dst may be the same array
+    public void apply(byte src[], byte dst[], int ksize) {
+        apply(src,dst,ksize,0,0,width,height);
+    }
+
+    // same result as Imgproc.medianBlur(src.submat(region),dst.submat(region),ksize), only the region of dst is written
+    public void apply(byte src[], byte dst[], int ksize, int rx, int ry, int rw, int rh) {
+        applyChain(src,dst,new int[] {ksize},rx,ry,rw,rh);
+    }
+
+    // the kernels one after another in a single pass over every band, same result as separate medianBlur calls
+    // on the region, e.g. {7,3,3,3} for the fine blur
+    public void applyChain(final byte src[], byte dst[], final int ksizes[],
+                           final int rx, final int ry, final int rw, final int rh) {
+        for (int k : ksizes) {
+            if (k<3 || k%2==0) {
+                throw new IllegalArgumentException("ksize must be odd and at least 3");
+            }
+        }
+        if (rx<0 || ry<0 || rw<=0 || rh<=0 || rx+rw>width || ry+rh>height) {
+            throw new IllegalArgumentException("region outside of the image");
+        }
+        final byte in[];
+        if (src==dst) {
+            if (copy==null) {
+                copy = new byte[width*height];
+            }
+            for (int y=ry; y<ry+rh; y++) {
+                System.arraycopy(src,y*width,copy,y*width,width);
+            }
+            in = copy;
+        } else {
+            in = src;
+        }
+        final byte out[] = dst;
+
+        int n = Math.min(bands.length,rh);
+        if (n==1) {
+            bands[0].chain(in,out,ksizes,ry,ry+rh,rx,ry,rw,rh);
+            return;
+        }
+        List<Future<?>> futures = new ArrayList<Future<?>>(n-1);
+        for (int i=1; i<n; i++) {
+            final Band band = bands[i];
+            final int y0 = ry+rh*i/n;
+            final int y1 = ry+rh*(i+1)/n;
+            futures.add(pool.submit(new Runnable() {
+                public void run() {
+                    band.chain(in,out,ksizes,y0,y1,rx,ry,rw,rh);
+                }
+            }));
+        }
+        bands[0].chain(in,out,ksizes,ry,ry+rh/n,rx,ry,rw,rh);
+        try {
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while filtering",e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("filtering a band failed",e.getCause());
+        }
+    }
+
+    // number of row bands filtered in parallel, 1 filters on the calling thread only
+    public synchronized void setThreads(int threads) {
+        if (threads<1) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        if (threads==this.threads) {
+            return;
+        }
+        if (pool!=null) {
+            pool.shutdownNow();
+            pool = null;
+        }
+        this.threads = threads;
+        bands = new Band[threads];
+        for (int i=0; i<threads; i++) {
+            bands[i] = new Band();
+        }
+        if (threads>1) {
+            pool = Executors.newFixedThreadPool(threads-1,new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r,"OctoEye-median");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    // stops the band threads, the filter keeps working on the calling thread
+    public void close() {
+        setThreads(1);
+    }
+
+    private static int clamp(int v, int min, int max) {
+        return v<min ? min : (v>max ? max : v);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+}
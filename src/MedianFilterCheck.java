@@ -0,0 +1,189 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+// compares MedianFilter with a brute force median of every kernel, for all kernel sizes, regions at
+// the image corners and edges, in place filtering, the fine blur chain and several row bands. Needs no
+// OpenCV, the reference follows the border rules of Imgproc.medianBlur on a submat given in MedianFilter.
+// Exits with status 2 if any result differs.
+public class MedianFilterCheck {
+
+    public final static int KERNELS[] = {3,5,7,9,11,13,15,17,19,21,23,25,31};
+    public final static int THREADS[] = {1,3,4};
+
+    private final int width;
+    private final int height;
+    private final byte images[][];
+    private final int regions[][];
+
+    private int checks = 0;
+    private int mismatches = 0;
+
+    public MedianFilterCheck(int width, int height, long seed) {
+        this.width  = width;
+        this.height = height;
+        // noise on a gradient, and few distinct values so the median is often one of several equal values
+        Random random = new Random(seed);
+        images = new byte[2][width*height];
+        for (int i=0; i<width*height; i++) {
+            images[0][i] = (byte)(random.nextInt(60)+(i%width)*128/width);
+            images[1][i] = (byte)(random.nextInt(4)*85);
+        }
+        int w = width, h = height;
+        regions = new int[][] {
+            {0,0,w,h},
+            {w/4,h/4,w/2+1,h/2+1},
+            // the four corners
+            {0,0,w/3,h/3},
+            {w-w/3,0,w/3,h/3},
+            {0,h-h/3,w/3,h/3},
+            {w-w/3,h-h/3,w/3,h/3},
+            // a single column, a single row and a thin strip at the edge
+            {w/2,h/4,1,h/2},
+            {w/4,h/2,w/2,1},
+            {w-3,0,3,h}
+        };
+    }
+
+    // median of every pixel of the region of dst, rows are replicated at the region edges, columns
+    // as well for kernels up to 5, larger kernels read columns outside the region up to the image edge
+    static void reference(byte src[], byte dst[], int width, int height, int ksize, int rx, int ry, int rw, int rh) {
+        int r = ksize/2;
+        int left  = ksize<=5 ? rx : 0;
+        int right = ksize<=5 ? rx+rw-1 : width-1;
+        int histogram[] = new int[256];
+        byte out[] = new byte[rw*rh];
+        for (int y=ry; y<ry+rh; y++) {
+            for (int x=rx; x<rx+rw; x++) {
+                Arrays.fill(histogram,0);
+                for (int dy=-r; dy<=r; dy++) {
+                    int row = Math.min(Math.max(y+dy,ry),ry+rh-1)*width;
+                    for (int dx=-r; dx<=r; dx++) {
+                        histogram[src[row+Math.min(Math.max(x+dx,left),right)]&0xff]++;
+                    }
+                }
+                int v = 0;
+                for (int n=ksize*ksize/2; n>=histogram[v]; v++) {
+                    n -= histogram[v];
+                }
+                out[(y-ry)*rw+x-rx] = (byte)v;
+            }
+        }
+        for (int y=0; y<rh; y++) {
+            System.arraycopy(out,y*rw,dst,(ry+y)*width+rx,rw);
+        }
+    }
+
+    private void check(String what, byte expected[], byte actual[]) {
+        checks++;
+        if (!Arrays.equals(expected,actual)) {
+            mismatches++;
+            int i = 0;
+            while (expected[i]==actual[i]) {
+                i++;
+            }
+            System.out.println(String.format(Locale.ROOT,"%s: first difference at (%d,%d), expected %d, got %d",
+                    what,i%width,i/width,expected[i]&0xff,actual[i]&0xff));
+        }
+    }
+
+    public void run() {
+        MedianFilter median = new MedianFilter(width,height);
+        byte expected[] = new byte[width*height];
+        byte actual[] = new byte[width*height];
+        try {
+            for (int threads : THREADS) {
+                median.setThreads(threads);
+                for (int m=0; m<images.length; m++) {
+                    byte image[] = images[m];
+                    for (int g[] : regions) {
+                        String region = "image "+m+" region "+Arrays.toString(g)+" threads "+threads;
+                        for (int k : KERNELS) {
+                            // pixels outside the region must stay as they were
+                            Arrays.fill(expected,(byte)9);
+                            Arrays.fill(actual,(byte)9);
+                            reference(image,expected,width,height,k,g[0],g[1],g[2],g[3]);
+                            median.apply(image,actual,k,g[0],g[1],g[2],g[3]);
+                            check("ksize "+k+" "+region,expected,actual);
+                        }
+
+                        // in place, the kernel reads the unfiltered rows above
+                        System.arraycopy(image,0,expected,0,expected.length);
+                        System.arraycopy(image,0,actual,0,actual.length);
+                        reference(image,expected,width,height,25,g[0],g[1],g[2],g[3]);
+                        median.apply(actual,actual,25,g[0],g[1],g[2],g[3]);
+                        check("in place ksize 25 "+region,expected,actual);
+
+                        // the fine blur as one chain, also in place
+                        Arrays.fill(expected,(byte)9);
+                        reference(image,expected,width,height,MedianFilter.FINE_BLUR[0],g[0],g[1],g[2],g[3]);
+                        for (int i=1; i<MedianFilter.FINE_BLUR.length; i++) {
+                            reference(expected,expected,width,height,MedianFilter.FINE_BLUR[i],g[0],g[1],g[2],g[3]);
+                        }
+                        Arrays.fill(actual,(byte)9);
+                        median.applyChain(image,actual,MedianFilter.FINE_BLUR,g[0],g[1],g[2],g[3]);
+                        check("chain "+region,expected,actual);
+
+                        System.arraycopy(image,0,expected,0,expected.length);
+                        reference(image,expected,width,height,MedianFilter.FINE_BLUR[0],g[0],g[1],g[2],g[3]);
+                        for (int i=1; i<MedianFilter.FINE_BLUR.length; i++) {
+                            reference(expected,expected,width,height,MedianFilter.FINE_BLUR[i],g[0],g[1],g[2],g[3]);
+                        }
+                        System.arraycopy(image,0,actual,0,actual.length);
+                        median.applyChain(actual,actual,MedianFilter.FINE_BLUR,g[0],g[1],g[2],g[3]);
+                        check("chain in place "+region,expected,actual);
+                    }
+                }
+            }
+        } finally {
+            median.close();
+        }
+    }
+
+    public int getChecks() {
+        return checks;
+    }
+
+    public int getMismatches() {
+        return mismatches;
+    }
+
+    public String getSummary() {
+        return String.format(Locale.ROOT,"%dx%d: %d checks, %d mismatches",width,height,checks,mismatches);
+    }
+
+    public static void main(String[] args) {
+        if (args.length!=0 && args.length!=2 && args.length!=3) {
+            System.err.println("Usage: MedianFilterCheck [width height [seed]]");
+            System.exit(1);
+        }
+        int width  = args.length>0 ? Integer.parseInt(args[0]) : OctoEye.WIDTH;
+        int height = args.length>0 ? Integer.parseInt(args[1]) : OctoEye.HEIGHT;
+        long seed  = args.length>2 ? Long.parseLong(args[2]) : 1;
+
+        MedianFilterCheck check = new MedianFilterCheck(width,height,seed);
+        check.run();
+        System.out.println(check.getSummary());
+        if (check.getMismatches()>0) {
+            System.exit(2);
+        }
+    }
+}
@@ -20,155 +20,275 @@ import org.opencv.core.*;
 import org.opencv.imgproc.Imgproc;
 import org.opencv.features2d.*;
 import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferByte;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Vector;
 
-public class OctoEye {
+public class OctoEye implements PupilTracker {
 
     public final static int WIDTH  = 320;
     public final static int HEIGHT = 240;
 
+    // BGR order like the Mats, so they can be copied into a TYPE_3BYTE_BGR raster as they are
     public static Scalar BLACK      = new Scalar(000,000,000);
     public static Scalar GRAY       = new Scalar(128,128,128);
     public static Scalar WHITE      = new Scalar(255,255,255);
-    public static Scalar RED        = new Scalar(255,000,000);
+    public static Scalar RED        = new Scalar(000,000,255);
     public static Scalar GREEN      = new Scalar(000,255,000);
-    public static Scalar BLUE       = new Scalar(000,000,255);
-    public static Scalar YELLOW     = new Scalar(255,255,000);
-    public static Scalar PURPLE     = new Scalar(175,000,255);
-    public static Scalar ORANGE     = new Scalar(255,175,000);
-    public static Scalar LIGHTRED   = new Scalar(255,000,128);
+    public static Scalar BLUE       = new Scalar(255,000,000);
+    public static Scalar YELLOW     = new Scalar(000,255,255);
+    public static Scalar PURPLE     = new Scalar(255,000,175);
+    public static Scalar ORANGE     = new Scalar(000,175,255);
+    public static Scalar LIGHTRED   = new Scalar(128,000,255);
     public static Scalar LIGHTGREEN = new Scalar(128,255,128);
-    public static Scalar LIGHTBLUE  = new Scalar(128,255,255);
-
-    private int[] starBitMask = {
-            0,0,0,0,0,1,1,0,0,0,0,0,
-            0,1,1,0,0,1,1,0,0,1,1,0,
-            0,1,1,1,0,1,1,0,1,1,1,0,
-            0,0,1,1,1,1,1,1,1,1,0,0,
-            0,0,0,1,1,1,1,1,1,0,0,0,
-            1,1,1,1,1,1,1,1,1,1,1,1,
-            1,1,1,1,1,1,1,1,1,1,1,1,
-            0,0,0,1,1,1,1,1,1,0,0,0,
-            0,0,1,1,1,1,1,1,1,1,0,0,
-            0,1,1,1,0,1,1,0,1,1,1,0,
-            0,1,1,0,0,1,1,0,0,1,1,0,
-            0,0,0,0,0,1,1,0,0,0,0,0
-    };
-
-    private int[] ringBitMask = {
-            0,0,0,0,1,1,1,1,0,0,0,0,
-            0,0,1,1,1,1,1,1,1,1,0,0,
-            0,1,1,1,1,0,0,1,1,1,1,0,
-            0,1,1,0,0,0,0,0,0,1,1,0,
-            1,1,1,0,0,0,0,0,0,1,1,1,
-            1,1,0,0,0,0,0,0,0,0,1,1,
-            1,1,0,0,0,0,0,0,0,0,1,1,
-            1,1,1,0,0,0,0,0,0,1,1,1,
-            0,1,1,0,0,0,0,0,0,1,1,0,
-            0,1,1,1,1,0,0,1,1,1,1,0,
-            0,0,1,1,1,1,1,1,1,1,0,0,
-            0,0,0,0,1,1,1,1,0,0,0,0
-    };
-
-    private long start = 0, end = 0, time = 0;
+    public static Scalar LIGHTBLUE  = new Scalar(255,255,128);
+
+    private static boolean loaded = false;
+
+    private long time = 0, timeNanos = 0;
     private Mat src, dst, dbg, dst2, tmp1, tmp2;
+    // contiguous copies of the region for Canny
+    private final Mat regionIn = new Mat(), regionEdges = new Mat();
+    private byte frame[];
+    private byte current[];
+    private byte buff[];
+    private byte blur[];
+    private final MedianFilter median = new MedianFilter(WIDTH,HEIGHT);
+    private final SymbolDetector symbols = SymbolDetector.createDefault();
+
+    // feature detection and scoring, allocated once and reused for every frame
+    private FeatureDetector blobDetector;
+    private MatOfKeyPoint matOfKeyPoints;
+    private final CandidateScorer scorer = new CandidateScorer(WIDTH,HEIGHT);
+    private MatOfPoint2f points2;
+
+    private List<KeyPoint> keyPoints = new ArrayList<KeyPoint>();
+
+    // ray-cast edge search, endpoints and found edge points
+    private RayCaster rays;
+    // edge points of the last fit and the outliers removed from it, grown only with the ray count
+    private double fitX[] = new double[0];
+    private double fitY[] = new double[0];
+    private int fitCount = 0;
+    private double removedX[] = new double[0];
+    private double removedY[] = new double[0];
+    private int removedCount = 0;
+    // x,y pairs for the point Mat of fitEllipse
+    private double coords[] = new double[0];
 
     private RotatedRect pupil = new RotatedRect();
+
+    private boolean subpixel = false;
+    private boolean robust = false;
+    private final RobustEllipseFit robustFit = new RobustEllipseFit();
+    private final double ellipse[] = new double[5];
+    private PyramidLocator pyramid = null;
+
+    private final FrameQualityGate gate = new FrameQualityGate(WIDTH,HEIGHT);
+    private boolean gateEnabled = false;
+    private FrameQualityGate.Decision decision = null;
     private Point axisA = null;
     private Point axisB = null;
     private int pupilMajorAxis = 0;
     private int pupilMinorAxis = 0;
     private boolean star = false;
     private boolean ring = false;
+    private Outcome outcome = Outcome.NO_KEYPOINTS;
 
-    private boolean debug = true;
+    // stage timings of the current frame, committed to the metrics once per frame
+    private final long stageNanos[] = new long[PipelineStage.values().length];
+    private final TrackerMetrics metrics = new TrackerMetrics();
 
-    public OctoEye(byte buffer[]) {
-        start = System.currentTimeMillis();
-        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    // what process() renders, and whether the intermediates for a later overlay are recorded
+    private OutputMode mode = OutputMode.DEBUG;
+    private boolean recording = false;
+    private boolean record = true;
+    private final Intermediates intermediates = new Intermediates();
 
-        src = new Mat(HEIGHT,WIDTH,CvType.CV_8UC1);
-        src.put(0,0,buffer);
+    private boolean closed = false;
+
+    // tuning constants, margin between rectMin and rectMax, Canny thresholds, sanity checks
+    private final Parameters params = new Parameters();
+
+    // temporal tracking, the last pupil is used as starting point for the next frame
+    private boolean tracking = false;
+    private RotatedRect previous = null;
+    private long trackedFrames = 0;
+    private long fallbacks = 0;
+
+    public OctoEye() {
+        loadLibrary();
 
+        src  = new Mat(HEIGHT,WIDTH,CvType.CV_8UC1);
         tmp1 = new Mat(src.rows(),src.cols(),src.type());
         tmp2 = new Mat(src.rows(),src.cols(),src.type());
+        dst  = new Mat(src.rows(),src.cols(),CvType.CV_8UC3);
+        setOutputMode(mode);
 
-        dst = new Mat(src.rows(),src.cols(),CvType.CV_8UC3);
-        Imgproc.cvtColor(src, dst,Imgproc.COLOR_GRAY2BGR);
+        frame = new byte[WIDTH*HEIGHT];
+        buff  = new byte[WIDTH*HEIGHT];
+        blur  = new byte[WIDTH*HEIGHT];
 
-        if (debug) {
-            dbg = new Mat(src.rows(),src.cols(),CvType.CV_8UC3);
-            dst.copyTo(dbg);
+        blobDetector   = FeatureDetector.create(FeatureDetector.MSER); // Maximal Stable Extremal Regions
+        matOfKeyPoints = new MatOfKeyPoint();
+        points2        = new MatOfPoint2f();
+
+        setRayCount(params.getRayCount());
+    }
+
+    public OctoEye(byte buffer[]) {
+        this();
+        process(buffer);
+    }
+
+    public static synchronized void loadLibrary() {
+        if (!loaded) {
+            System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+            loaded = true;
+        }
+    }
+
+    public void process(byte buffer[]) {
+        if (closed) {
+            throw new IllegalStateException("OctoEye has been closed");
         }
+        long start = System.nanoTime();
+        Arrays.fill(stageNanos,-1);
+
+        reset();
+        star = false;
+        ring = false;
 
+        intermediates.clear();
+
+        load(buffer);
+        long t = System.nanoTime();
         detectSymbols();
-        detectPupil();
+        t = lap(PipelineStage.SYMBOLS,t);
+        outcome = detectPupil();
+        t = System.nanoTime();
+        render();
+        lap(PipelineStage.RENDER,t);
+
+        timeNanos = System.nanoTime()-start;
+        time = timeNanos/1000000;
+        stageNanos[PipelineStage.TOTAL.ordinal()] = timeNanos;
+        metrics.commit(stageNanos,outcome);
+    }
 
-        end = System.currentTimeMillis();
-        time = end-start;
+    // adds the time since t to the stage and returns the current time
+    private long lap(PipelineStage stage, long t) {
+        long now = System.nanoTime();
+        int i = stage.ordinal();
+        stageNanos[i] = (stageNanos[i]<0 ? 0 : stageNanos[i])+now-t;
+        return now;
     }
 
-    public static boolean between(double x, double min, double max) {
-        return x>=min && x<=max;
+    void load(byte buffer[]) {
+        current = buffer;
+        src.put(0,0,buffer);
     }
 
-    private void detectPupil() {
-        // min and max pupil radius
-        int r_min = 2;
-        int r_max = 45;
+    void render() {
+        if (mode==OutputMode.MEASUREMENTS) {
+            return;
+        }
+        Imgproc.cvtColor(src,dst,Imgproc.COLOR_GRAY2BGR);
+        if (mode==OutputMode.DEBUG) {
+            dst.copyTo(dbg);
+            OverlayRenderer.drawDebug(dbg,intermediates);
+        }
+        OverlayRenderer.drawAnnotations(dst,intermediates);
+    }
 
-        // min and max pupil diameter
-        int d_min = 2*r_min;
-        int d_max = 2*r_max;
-
-        // min and max pupil area
-        double area;
-        double a_min = Math.PI*r_min*r_min;
-        double a_max = Math.PI*r_max*r_max;
-
-        // histogram stuff
-        List<Mat> images;
-        MatOfInt channels;
-        Mat mask;
-        Mat hist;
-        MatOfInt mHistSize;
-        MatOfFloat mRanges;
-
-        // contour and circle stuff
-        Rect rect = null;
-        Rect rectMin;
-        Rect rectMax;
-        List<MatOfPoint> contours;
-        MatOfPoint3 circles;
+    public void process(ByteBuffer buffer) {
+        if (buffer.hasArray() && buffer.arrayOffset()+buffer.position()==0) {
+            process(buffer.array());
+            return;
+        }
+        // Mat.put only accepts arrays, so a direct or mapped frame is staged in a reused buffer
+        buffer.duplicate().get(frame);
+        process(frame);
+    }
 
-        // pupil center
-        Point p;
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        median.close();
+        if (pyramid!=null) {
+            pyramid.close();
+        }
+        Mat[] mats = {src,dst,dbg,dst2,tmp1,tmp2,regionIn,regionEdges,matOfKeyPoints,points2};
+        for (Mat m : mats) {
+            if (m!=null) {
+                m.release();
+            }
+        }
+        // the Java API of OpenCV 2.4 has no release() for detectors, the native one is deleted once
+        // the last reference is gone
+        blobDetector = null;
+    }
 
-        // ellipse test points
-        Point v;
-        Point r;
-        Point s;
+    public static boolean between(double x, double min, double max) {
+        return x>=min && x<=max;
+    }
 
-        // rect points
-        Point tl;
-        Point br;
+    private Outcome detectPupil() {
+        Outcome result = null;
+        decision = null;
+        boolean track = tracking;
+        if (gateEnabled) {
+            // blinks and unusable frames end here, a frame close to the last one starts from the previous pupil
+            long t = System.nanoTime();
+            decision = gate.classify(current);
+            lap(PipelineStage.QUALITY,t);
+            if (decision==FrameQualityGate.Decision.SKIP) {
+                previous = null;
+                return gate.getReason();
+            }
+            if (decision==FrameQualityGate.Decision.TRACK && previous==null) {
+                decision = FrameQualityGate.Decision.SEARCH;
+            }
+            track = decision==FrameQualityGate.Decision.TRACK;
+        }
+        if (track && previous!=null) {
+            trackedFrames++;
+            result = trackPupil();
+            if (result!=Outcome.FOUND) {
+                // the tracked fit failed the sanity checks, fall back to the full search
+                fallbacks++;
+                reset();
+                intermediates.clear();
+            }
+        }
+        if (result!=Outcome.FOUND) {
+            result = pyramid!=null ? locatePupil() : searchPupil();
+        }
+        previous = result==Outcome.FOUND ? pupil : null;
+        return result;
+    }
 
-        // pupil edge detection
-        Vector<Point> pointsTest;
-        Vector<Point> pointsEllipse;
-        Vector<Point> pointsRemoved;
+    private Outcome trackPupil() {
+        // rectMin and rectMax are placed around the last pupil center
+        // the same way step 2 and 3 place them around the winning feature
+        int x = (int)previous.center.x;
+        int y = (int)previous.center.y;
+        Point tl = new Point(x-5>=0?x-5:0,y-5>=0?y-5:0);
+        Point br = new Point(x+5<WIDTH?x+5:WIDTH-1,y+5<HEIGHT?y+5:HEIGHT-1);
+
+        Rect rectMin = new Rect(tl,br);
+        int margin = params.getMargin();
+        Rect rectMax = new Rect(rectMin.x-margin,rectMin.y-margin,rectMin.width+2*margin,rectMin.height+2*margin);
+        return fitPupil(rectMin,rectMax,true);
+    }
 
-        // temporary variables
-        double distance;
-        double rad;
-        double length;
-        int x;
-        int y;
-        int tmp;
-        byte buff[];
+    private Outcome searchPupil() {
+        Rect rect;
+        Rect rectMin;
+        Rect rectMax;
 
 
 
@@ -176,7 +296,9 @@ public class OctoEye {
         // step 1
         // blur the image to reduce noise
 
-        Imgproc.medianBlur(src,tmp1,25);
+        long t = System.nanoTime();
+        blurCoarse();
+        t = lap(PipelineStage.COARSE_BLUR,t);
 
 
 
@@ -185,74 +307,85 @@ public class OctoEye {
         // locate the pupil with feature detection and compute a histogram for each,
         // the best feature will be used as rough pupil location (rectMin)
 
-        int score  = 0;
-        int winner = 0;
-
-        // feature detection
-        MatOfKeyPoint matOfKeyPoints = new MatOfKeyPoint();
-        FeatureDetector blobDetector = FeatureDetector.create(FeatureDetector.MSER); // Maximal Stable Extremal Regions
-        blobDetector.detect(tmp1,matOfKeyPoints);
-        List<KeyPoint> keyPoints = matOfKeyPoints.toList();
-
-        // histogram calculation
-        for (int i=0; i<keyPoints.size(); i++) {
-            x = (int)keyPoints.get(i).pt.x;
-            y = (int)keyPoints.get(i).pt.y;
-            tl = new Point(x-5>=0?x-5:0,y-5>=0?y-5:0);
-            br = new Point(x+5<WIDTH?x+5:WIDTH-1,y+5<HEIGHT?y+5:HEIGHT-1);
-
-            images = new ArrayList<Mat>();
-            images.add(tmp1.submat(new Rect(tl,br)));
-            channels = new MatOfInt(0);
-            mask = new Mat();
-            hist = new Mat();
-            mHistSize = new MatOfInt(256);
-            mRanges = new MatOfFloat(0f,256f);
-            Imgproc.calcHist(images,channels,mask,hist,mHistSize,mRanges);
-
-            tmp = 0;
-            for (int j=0; j<256/3; j++) {
-                tmp += (256/3-j)*(int)hist.get(j,0)[0];
-            }
-            if (tmp>=score) {
-                score = tmp;
-                winner = i;
-                rect = new Rect(tl,br);
-            }
-
-            if (debug) {
-                // show features (orange)
-                Core.circle(dbg,new Point(x,y),3,ORANGE);
-            }
-        }
+        detectFeatures();
+        t = lap(PipelineStage.MSER,t);
+        rect = scoreFeatures();
+        lap(PipelineStage.HISTOGRAM,t);
         if (rect==null) {
-            return;
+            return Outcome.NO_KEYPOINTS;
         }
         rectMin = rect.clone();
 
-        if (debug) {
-            // show rectMin (red)
-            Core.rectangle(dbg,rectMin.tl(),rect.br(),RED,1);
-        }
-
 
 
         // -------------------------------------------------------------------------------------------------------------
         // step 3
         // compute a rectMax (blue) which is larger than the pupil
 
-        int margin = 32;
-
+        int margin = params.getMargin();
         rect.x      = rect.x-margin;
         rect.y      = rect.y-margin;
         rect.width  = rect.width +2*margin;
         rect.height = rect.height+2*margin;
 
         rectMax = rect.clone();
+        intermediates.located = true;
+
+
+
+        return fitPupil(rectMin,rectMax,false);
+    }
+
+    // steps 1 to 3 on the coarse pyramid level, with the plain blob detector instead of MSER,
+    // the edges are only searched in the region around the candidate
+    private Outcome locatePupil() {
+        pyramid.setParameters(getParameters());
+        long t = System.nanoTime();
+        pyramid.blur(current);
+        t = lap(PipelineStage.COARSE_BLUR,t);
+
+        int count = pyramid.detect();
+        t = lap(PipelineStage.MSER,t);
+        int best = pyramid.score();
+        lap(PipelineStage.HISTOGRAM,t);
+        if (record) {
+            for (int i=0; i<count; i++) {
+                intermediates.addFeature(pyramid.getX(i),pyramid.getY(i));
+            }
+        }
+        if (best<0) {
+            return Outcome.NO_KEYPOINTS;
+        }
+
+        int rect[] = scorer.rect(pyramid.getX(best),pyramid.getY(best));
+        Rect rectMin = new Rect(rect[0],rect[1],rect[2],rect[3]);
+        int margin = params.getMargin();
+        Rect rectMax = new Rect(rectMin.x-margin,rectMin.y-margin,rectMin.width+2*margin,rectMin.height+2*margin);
+        intermediates.located = true;
+
+        return fitPupil(rectMin,rectMax,true);
+    }
+
+    private Outcome fitPupil(Rect rectMin, Rect rectMax, boolean roi) {
+        // pupil center
+        Point p;
 
-        if (debug) {
-            // show features (orange)
-            Core.rectangle(dbg,rectMax.tl(),rectMax.br(),BLUE);
+        // temporary variables
+        double length;
+
+        p = new Point(rectMin.x+rectMin.width/2,rectMin.y+rectMin.height/2);
+        length = Math.min(p.x-rectMax.x-3,p.y-rectMax.y-3);
+        length = Math.sqrt(2*Math.pow(length,2));
+
+        // when tracking only the area the rays can reach (plus the blur radius) is blurred and searched for edges
+        Rect region = null;
+        if (roi) {
+            int r = (int)Math.ceil(length)+2+6;
+            region = clip(new Rect((int)p.x-r,(int)p.y-r,2*r+1,2*r+1));
+            if (region.width<=0 || region.height<=0) {
+                return Outcome.TOO_FEW_POINTS;
+            }
+            intermediates.setRegion(region.x,region.y,region.width,region.height);
         }
 
 
@@ -261,10 +394,9 @@ public class OctoEye {
         // step 4
         // blur the image again
 
-        Imgproc.medianBlur(src, tmp1,7);
-        Imgproc.medianBlur(tmp1,tmp1,3);
-        Imgproc.medianBlur(tmp1,tmp1,3);
-        Imgproc.medianBlur(tmp1,tmp1,3);
+        long t = System.nanoTime();
+        blurFine(region);
+        t = lap(PipelineStage.FINE_BLUR,t);
 
 
 
@@ -272,7 +404,8 @@ public class OctoEye {
         // step 5
         // detect edges
 
-        Imgproc.Canny(tmp1,tmp2,40,50);
+        detectEdges(region);
+        t = lap(PipelineStage.CANNY,t);
 
 
 
@@ -280,97 +413,15 @@ public class OctoEye {
         // step 6
         // from pupil center to maxRect borders, find all edge points, compute a first ellipse
 
-        p = new Point(rectMin.x+rectMin.width/2,rectMin.y+rectMin.height/2);
-        pointsTest    = new Vector<Point>();
-        pointsEllipse = new Vector<Point>();
-        pointsRemoved = new Vector<Point>();
-        buff = new byte[tmp2.rows()*tmp2.cols()];
-        tmp2.get(0,0,buff);
+        castRays(p,length);
 
-        length = Math.min(p.x-rectMax.x-3,p.y-rectMax.y-3);
-        length = Math.sqrt(2*Math.pow(length,2));
-        Point z = new Point(p.x,p.y-length);
-        for (int i=0; i<360; i+=15) {
-            rad = Math.toRadians(i);
-            x = (int)(p.x+Math.cos(rad)*(z.x-p.x)-Math.sin(rad)*(z.y-p.y));
-            y = (int)(p.y+Math.sin(rad)*(z.x-p.x)-Math.cos(rad)*(z.y-p.y));
-            pointsTest.add(new Point(x,y));
-        }
-
-        if (debug) {
-            for (int i=0; i<pointsTest.size(); i++) {
-                Core.line(dbg,p,pointsTest.get(i),GRAY,1);
-                Core.rectangle(dbg,rectMin.tl(),rectMin.br(),GREEN,1);
-                Core.rectangle(dbg,rectMax.tl(),rectMax.br(),BLUE,1);
-            }
-            Core.rectangle(dbg,rectMin.tl(),rectMin.br(),BLACK,-1);
-            Core.rectangle(dbg,rectMin.tl(),rectMin.br(),RED,1);
-            Core.rectangle(dbg,rectMax.tl(),rectMax.br(),BLUE);
-        }
-
-        // p: Ursprung ("Mittelpunkt" der Ellipse)
-        // v: Zielpunkt (Testpunkt)
-        // r: Richtungsvektor PV
-        for (int i=0; i < pointsTest.size(); i++) {
-            v = new Point(pointsTest.get(i).x, pointsTest.get(i).y);
-            r = new Point(v.x-p.x,v.y-p.y);
-            length = Math.sqrt(Math.pow(p.x-v.x,2)+Math.pow(p.y-v.y,2));
-            boolean found = false;
-            for (int j=0; j<Math.round(length); j++) {
-                s  = new Point(Math.rint(p.x+(double)j/length*r.x),Math.rint(p.y+(double)j/length*r.y));
-                s.x = Math.max(1,Math.min(s.x,WIDTH -2));
-                s.y = Math.max(1,Math.min(s.y,HEIGHT-2));
-                tl = new Point(s.x-1,s.y-1);
-                br = new Point(s.x+1,s.y+1);
-                buff = new byte[3*3];
-                rect = new Rect(tl,br);
-                try {
-                    (tmp2.submat(rect)).get(0,0,buff);
-                    for (int k=0; k<3*3; k++) {
-                        if (Math.abs(buff[k])==1) {
-                            pointsEllipse.add(s);
-                            found = true;
-                            break;
-                        }
-                    }
-                } catch (Exception e) {
-                    break;
-                }
-                if (found) {
-                    break;
-                }
-            }
+        if (record) {
+            intermediates.setRects(toArray(rectMin),toArray(rectMax));
+            intermediates.setRays(p.x,p.y,rays.getRayX(),rays.getRayY(),rays.getCount());
         }
 
-        double e_min = Double.POSITIVE_INFINITY;
-        double e_max = 0;
-        double e_med = 0;
-        for (int i=0; i<pointsEllipse.size(); i++) {
-            v = pointsEllipse.get(i);
-            length = Math.sqrt(Math.pow(p.x-v.x,2)+Math.pow(p.y-v.y,2));
-            e_min = (length<e_min) ? length : e_min;
-            e_max = (length>e_max) ? length : e_max;
-            e_med = e_med+length;
-        }
-        e_med = e_med/pointsEllipse.size();
-        if (pointsEllipse.size() >= 5) {
-            Point[] points1 = new Point[pointsEllipse.size()];
-            for (int i=0; i<pointsEllipse.size(); i++) {
-                points1[i] = pointsEllipse.get(i);
-            }
-            MatOfPoint2f points2 = new MatOfPoint2f();
-            points2.fromArray(points1);
-            pupil = Imgproc.fitEllipse(points2);
-        }
-        if (pupil.center.x==0 && pupil.center.y==0) {
-            // something went wrong, return null
-            reset();
-            return;
-        }
-
-        if (debug) {
-            Core.ellipse(dbg,pupil,PURPLE,2);
-        }
+        searchEdges();
+        t = lap(PipelineStage.EDGE_SEARCH,t);
 
 
 
@@ -378,106 +429,262 @@ public class OctoEye {
         // step 7
         // remove some outlier points and compute the ellipse again
 
-        try {
-            for (int i=1; i<=4; i++) {
-                distance = 0;
-                int remove = 0;
-                for (int j=pointsEllipse.size()-1; j>=0; j--) {
-                    v = pointsEllipse.get(j);
-                    length = Math.sqrt(Math.pow(v.x-pupil.center.x,2)+Math.pow(v.y-pupil.center.y,2));
-                    if (length>distance) {
-                        distance = length;
-                        remove = j;
-                    }
-                }
-                v = pointsEllipse.get(remove);
-                pointsEllipse.removeElementAt(remove);
-                pointsRemoved.add(v);
-            }
-        } catch (Exception e) {
+        Outcome result = fitEdges();
+        lap(PipelineStage.ELLIPSE_FIT,t);
+        if (result!=Outcome.FOUND) {
             // something went wrong, return null
             reset();
-            return;
+            return result;
         }
-        if (pointsEllipse.size()>=5) {
-            Point[] points1 = new Point[pointsEllipse.size()];
-            for (int i=0; i<pointsEllipse.size(); i++) {
-                points1[i] = pointsEllipse.get(i);
+
+        // pupil found
+        if (record) {
+            intermediates.setPupil(pupil.center.x,pupil.center.y,pupil.size.width,pupil.size.height,pupil.angle,
+                    axisA.x,axisA.y,axisB.x,axisB.y,pupilMajorAxis,pupilMinorAxis);
+            for (int i=0; i<fitCount; i++) {
+                intermediates.addPoint(fitX[i],fitY[i]);
             }
-            MatOfPoint2f points2 = new MatOfPoint2f();
-            points2.fromArray(points1);
-            pupil = Imgproc.fitEllipse(points2);
-
-            Point[] vertices = new Point[4];
-            pupil.points(vertices);
-            double d1 = Math.sqrt(Math.pow(vertices[1].x-vertices[0].x,2)+Math.pow(vertices[1].y-vertices[0].y,2));
-            double d2 = Math.sqrt(Math.pow(vertices[2].x-vertices[1].x,2)+Math.pow(vertices[2].y-vertices[1].y,2));
-
-            if (d1>=d2) {
-                pupilMajorAxis = (int)(d1/2);
-                pupilMinorAxis = (int)(d2/2);
-                axisA = new Point(vertices[1].x+(vertices[2].x-vertices[1].x)/2,vertices[1].y+(vertices[2].y-vertices[1].y)/2);
-                axisB = new Point(vertices[0].x+(vertices[1].x-vertices[0].x)/2,vertices[0].y+(vertices[1].y-vertices[0].y)/2);
-            } else {
-                pupilMajorAxis = (int)(d2/2);
-                pupilMinorAxis = (int)(d1/2);
-                axisB = new Point(vertices[1].x+(vertices[2].x-vertices[1].x)/2,vertices[1].y+(vertices[2].y-vertices[1].y)/2);
-                axisA = new Point(vertices[0].x+(vertices[1].x-vertices[0].x)/2,vertices[0].y+(vertices[1].y-vertices[0].y)/2);
+            for (int i=0; i<removedCount; i++) {
+                intermediates.addRemoved(removedX[i],removedY[i]);
             }
         }
+        return Outcome.FOUND;
+    }
 
-        double ratio = (double)pupilMinorAxis/(double)pupilMajorAxis;
-        if (ratio<0.75 || 2*pupilMinorAxis<=d_min || 2*pupilMajorAxis>=d_max) {
-            // something went wrong, return null
-            reset();
-            return;
+    private static int[] toArray(Rect r) {
+        return new int[] {r.x,r.y,r.width,r.height};
+    }
+
+    private static Rect clip(Rect r) {
+        int x1 = Math.max(r.x,0);
+        int y1 = Math.max(r.y,0);
+        int x2 = Math.min(r.x+r.width, WIDTH);
+        int y2 = Math.min(r.y+r.height,HEIGHT);
+        return new Rect(x1,y1,x2-x1,y2-y1);
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+    // pipeline stages, package-private so they can be benchmarked one by one
+
+    // the medians give the same result as Imgproc.medianBlur, blur mirrors tmp1 so the region variant
+    // leaves the pixels outside the region as they were
+    void blurCoarse() {
+        median.apply(current,blur,params.getCoarseKernel());
+        tmp1.put(0,0,blur);
+    }
+
+    void detectFeatures() {
+        blobDetector.detect(tmp1,matOfKeyPoints);
+        keyPoints = matOfKeyPoints.toList();
+    }
+
+    Rect scoreFeatures() {
+        int rect[] = null;
+        int x;
+        int y;
+        int tmp;
+        int score = 0;
+
+        // blur holds the coarse blurred frame, the same pixels as tmp1
+        scorer.setImage(blur);
+        for (int i=0; i<keyPoints.size(); i++) {
+            x = (int)keyPoints.get(i).pt.x;
+            y = (int)keyPoints.get(i).pt.y;
+
+            tmp = scorer.score(x,y);
+            if (tmp>=score) {
+                score = tmp;
+                rect = scorer.rect(x,y);
+            }
+
+            if (record) {
+                intermediates.addFeature(x,y);
+            }
         }
+        return rect==null ? null : new Rect(rect[0],rect[1],rect[2],rect[3]);
+    }
 
-        // pupil found
-        if (debug) {
-            Core.ellipse(dbg,pupil,GREEN,2);
-            Core.line(dbg,pupil.center,axisA,RED, 2);
-            Core.line(dbg,pupil.center,axisB,BLUE,2);
-            Core.circle(dbg,pupil.center,1,GREEN,0);
-
-            x = 5;
-            y = 5;
-            Core.rectangle(dbg,new Point(x,y),new Point(x+80+4,y+10),BLACK,-1);
-            Core.rectangle(dbg,new Point(x+2,y+2),new Point(x+2+pupilMajorAxis,y+4),RED, -1);
-            Core.rectangle(dbg,new Point(x+2,y+6),new Point(x+2+pupilMinorAxis,y+8),BLUE,-1);
-
-            for (int i=pointsEllipse.size()-1; i>=0; i--) {
-                Core.circle(dbg,pointsEllipse.get(i),2,ORANGE,-1);
+    void blurFine(Rect region) {
+        if (region==null) {
+            median.applyChain(current,blur,MedianFilter.FINE_BLUR,0,0,WIDTH,HEIGHT);
+        } else {
+            median.applyChain(current,blur,MedianFilter.FINE_BLUR,region.x,region.y,region.width,region.height);
+        }
+        tmp1.put(0,0,blur);
+    }
+
+    void detectEdges(Rect region) {
+        if (region==null) {
+            Imgproc.Canny(tmp1,tmp2,params.getCannyLow(),params.getCannyHigh());
+        } else {
+            // the rays may leave the region, everything outside has no edges. Canny runs on a copy, on a
+            // submat it would read the pixels around the region, which blurFine left from earlier frames,
+            // the copy replicates its border like the CannyDetector of the Java engine
+            Mat s2 = tmp1.submat(region);
+            Mat s3 = tmp2.submat(region);
+            s2.copyTo(regionIn);
+            Imgproc.Canny(regionIn,regionEdges,params.getCannyLow(),params.getCannyHigh());
+            tmp2.setTo(BLACK);
+            regionEdges.copyTo(s3);
+            s2.release();
+            s3.release();
+        }
+        tmp2.get(0,0,buff);
+    }
+
+    void castRays(Point p, double length) {
+        rays.cast(p.x,p.y,length);
+    }
+
+    int searchEdges() {
+        int edges = rays.search(buff,WIDTH,HEIGHT);
+        if (subpixel) {
+            rays.refine(blur,WIDTH,HEIGHT);
+        }
+        return edges;
+    }
+
+    // fits an ellipse to the edge points, removes the points farthest from its center and fits again,
+    // then applies the sanity checks
+    Outcome fitEdges() {
+        double distance;
+        double length;
+
+        pupil = new RotatedRect();
+        pupilMajorAxis = 0;
+        pupilMinorAxis = 0;
+        int n = rays.getEdges();
+        if (fitX.length<n) {
+            fitX     = new double[n];
+            fitY     = new double[n];
+            removedX = new double[n];
+            removedY = new double[n];
+            coords   = new double[2*n];
+        }
+        double pointX[] = rays.getPointX();
+        double pointY[] = rays.getPointY();
+        System.arraycopy(pointX,0,fitX,0,n);
+        System.arraycopy(pointY,0,fitY,0,n);
+        fitCount = n;
+        removedCount = 0;
+        if (robust) {
+            return fitRobust(pointX,pointY,n);
+        }
+
+        if (fitCount >= 5) {
+            pupil = fitEllipse();
+        }
+        if (pupil.center.x==0 && pupil.center.y==0) {
+            return Outcome.TOO_FEW_POINTS;
+        }
+
+        if (record) {
+            intermediates.setFirstEllipse(pupil.center.x,pupil.center.y,pupil.size.width,pupil.size.height,pupil.angle);
+        }
+
+        for (int i=1; i<=params.getOutliers(); i++) {
+            if (fitCount==0) {
+                return Outcome.TOO_FEW_POINTS;
+            }
+            distance = 0;
+            int remove = 0;
+            for (int j=fitCount-1; j>=0; j--) {
+                length = Math.sqrt(Math.pow(fitX[j]-pupil.center.x,2)+Math.pow(fitY[j]-pupil.center.y,2));
+                if (length>distance) {
+                    distance = length;
+                    remove = j;
+                }
             }
-            for (int i=pointsRemoved.size()-1; i>=0; i--) {
-                Core.circle(dbg,pointsRemoved.get(i),2,PURPLE,-1);
+            removedX[removedCount] = fitX[remove];
+            removedY[removedCount] = fitY[remove];
+            removedCount++;
+            // keep the order of the remaining points
+            System.arraycopy(fitX,remove+1,fitX,remove,fitCount-remove-1);
+            System.arraycopy(fitY,remove+1,fitY,remove,fitCount-remove-1);
+            fitCount--;
+        }
+        if (fitCount<5) {
+            return Outcome.TOO_FEW_POINTS;
+        }
+        pupil = fitEllipse();
+        return checkPupil();
+    }
+
+    // the IRLS fit drops the points with zero weight instead of a fixed number of farthest points
+    private Outcome fitRobust(double x[], double y[], int n) {
+        if (!robustFit.fit(x,y,n,ellipse)) {
+            return Outcome.TOO_FEW_POINTS;
+        }
+        if (record) {
+            double first[] = robustFit.getFirst();
+            intermediates.setFirstEllipse(first[0],first[1],first[2],first[3],first[4]);
+        }
+        double weights[] = robustFit.getWeights();
+        fitCount = 0;
+        for (int i=0; i<n; i++) {
+            if (weights[i]>0) {
+                fitX[fitCount] = x[i];
+                fitY[fitCount] = y[i];
+                fitCount++;
+            } else {
+                removedX[removedCount] = x[i];
+                removedY[removedCount] = y[i];
+                removedCount++;
             }
         }
-        Core.ellipse(dst,pupil,GREEN,2);
-        Core.circle(dst,pupil.center,1,GREEN,0);
+        pupil = new RotatedRect(new Point(ellipse[0],ellipse[1]),new Size(ellipse[2],ellipse[3]),ellipse[4]);
+        return checkPupil();
     }
 
-    private boolean detectSymbol(int[] shape, int ystart) {
-        // create a 12x12 pixel buffer for the area of a star or ring shape
-        byte buff[] = new byte[12*12];
+    private Outcome checkPupil() {
+        // min and max pupil diameter
+        int d_min = 2*params.getMinRadius();
+        int d_max = 2*params.getMaxRadius();
+
+        Point[] vertices = new Point[4];
+        pupil.points(vertices);
+        double d1 = Math.sqrt(Math.pow(vertices[1].x-vertices[0].x,2)+Math.pow(vertices[1].y-vertices[0].y,2));
+        double d2 = Math.sqrt(Math.pow(vertices[2].x-vertices[1].x,2)+Math.pow(vertices[2].y-vertices[1].y,2));
+
+        if (d1>=d2) {
+            pupilMajorAxis = (int)(d1/2);
+            pupilMinorAxis = (int)(d2/2);
+            axisA = new Point(vertices[1].x+(vertices[2].x-vertices[1].x)/2,vertices[1].y+(vertices[2].y-vertices[1].y)/2);
+            axisB = new Point(vertices[0].x+(vertices[1].x-vertices[0].x)/2,vertices[0].y+(vertices[1].y-vertices[0].y)/2);
+        } else {
+            pupilMajorAxis = (int)(d2/2);
+            pupilMinorAxis = (int)(d1/2);
+            axisB = new Point(vertices[1].x+(vertices[2].x-vertices[1].x)/2,vertices[1].y+(vertices[2].y-vertices[1].y)/2);
+            axisA = new Point(vertices[0].x+(vertices[1].x-vertices[0].x)/2,vertices[0].y+(vertices[1].y-vertices[0].y)/2);
+        }
 
-        // fetch the area of a star or ring shape from the image and write it to the buffer
-        Mat m = src.submat(new Rect(WIDTH-30,ystart,12,12));
-        m.get(0,0,buff);
+        double ratio = (double)pupilMinorAxis/(double)pupilMajorAxis;
+        if (ratio<params.getMinRatio()) {
+            return Outcome.BAD_RATIO;
+        }
+        if (2*pupilMinorAxis<=d_min || 2*pupilMajorAxis>=d_max) {
+            return Outcome.DIAMETER_OUT_OF_RANGE;
+        }
+        return Outcome.FOUND;
+    }
 
-        int shapePixel    = -64;
-        int correctPixels =   0;
-        int totalPixels   =   0;
-        for (int i=0; i<12*12; i++) {
-            correctPixels += buff[i]==shapePixel && shape[i]==1 ? 1 : 0;
-            totalPixels += shape[i];
+    // fits the first fitCount points, the point Mat is only reallocated when their number changes
+    private RotatedRect fitEllipse() {
+        for (int i=0; i<fitCount; i++) {
+            coords[2*i]   = fitX[i];
+            coords[2*i+1] = fitY[i];
         }
-        return correctPixels==totalPixels && correctPixels>0;
+        points2.create(fitCount,1,CvType.CV_32FC2);
+        points2.put(0,0,coords);
+        return Imgproc.fitEllipse(points2);
     }
 
-    private void detectSymbols() {
-        this.star = detectSymbol(starBitMask,18);
-        this.ring = detectSymbol(ringBitMask,33);
+
+
+    void detectSymbols() {
+        symbols.detect(current);
+        this.star = symbols.isDetected(SymbolDetector.STAR);
+        this.ring = symbols.isDetected(SymbolDetector.RING);
     }
 
     private void reset() {
@@ -489,10 +696,162 @@ public class OctoEye {
         pupilMinorAxis = 0;
     }
 
+    public void setRayCount(int rayCount) {
+        params.setRayCount(rayCount);
+        rays = new RayCaster(rayCount);
+    }
+
+    public int getRayCount() {
+        return rays.getCount();
+    }
+
+    public void setParameters(Parameters p) {
+        params.setRadius(p.getMinRadius(),p.getMaxRadius());
+        params.setCoarseKernel(p.getCoarseKernel());
+        params.setMargin(p.getMargin());
+        params.setCanny(p.getCannyLow(),p.getCannyHigh());
+        params.setOutliers(p.getOutliers());
+        params.setMinRatio(p.getMinRatio());
+        scorer.setWindow(p.getWindow());
+        scorer.setThreshold(p.getThreshold());
+        if (p.getRayCount()!=rays.getCount()) {
+            setRayCount(p.getRayCount());
+        }
+    }
+
+    // the window and threshold are those of the CandidateScorer, they can be changed there as well
+    public Parameters getParameters() {
+        Parameters p = params.copy();
+        p.setWindow(scorer.getWindow());
+        p.setThreshold(scorer.getThreshold());
+        return p;
+    }
+
+    public void setSubpixelEdges(boolean subpixel) {
+        this.subpixel = subpixel;
+    }
+
+    public boolean isSubpixelEdges() {
+        return subpixel;
+    }
+
+    public void setRobustFit(boolean robust) {
+        this.robust = robust;
+    }
+
+    public boolean isRobustFit() {
+        return robust;
+    }
+
+    public void setPyramidLevel(int level) {
+        if (pyramid!=null) {
+            pyramid.close();
+        }
+        pyramid = level>0 ? new PyramidLocator(WIDTH,HEIGHT,level) : null;
+    }
+
+    public int getPyramidLevel() {
+        return pyramid!=null ? pyramid.getLevel() : 0;
+    }
+
+    public void setQualityGate(boolean enabled) {
+        gateEnabled = enabled;
+        gate.reset();
+    }
+
+    public boolean isQualityGate() {
+        return gateEnabled;
+    }
+
+    public FrameQualityGate getQualityGate() {
+        return gate;
+    }
+
+    public void setFilterThreads(int threads) {
+        median.setThreads(threads);
+    }
+
+    public int getFilterThreads() {
+        return median.getThreads();
+    }
+
+    public void setOutputMode(OutputMode mode) {
+        this.mode = mode;
+        record = recording || mode!=OutputMode.MEASUREMENTS;
+        if (mode==OutputMode.DEBUG && dbg==null) {
+            dbg = new Mat(HEIGHT,WIDTH,CvType.CV_8UC3);
+        }
+    }
+
+    public OutputMode getOutputMode() {
+        return mode;
+    }
+
+    // record the intermediates in MEASUREMENTS mode as well, so the overlay can be rendered later
+    public void setRecording(boolean recording) {
+        this.recording = recording;
+        setOutputMode(mode);
+    }
+
+    public boolean isRecording() {
+        return recording;
+    }
+
+    // the intermediates of the last frame, reused by the next one, copy() them to keep them
+    public Intermediates getIntermediates() {
+        return intermediates;
+    }
+
+    public void setTracking(boolean tracking) {
+        this.tracking = tracking;
+        resetTracking();
+    }
+
+    public boolean isTracking() {
+        return tracking;
+    }
+
+    // forget the last pupil, the next frame runs the full search
+    public void resetTracking() {
+        previous = null;
+    }
+
+    // frames which started from the last pupil
+    public long getTrackedFrames() {
+        return trackedFrames;
+    }
+
+    // tracked frames which needed the full search after all
+    public long getFallbacks() {
+        return fallbacks;
+    }
+
+    public TrackingResult getResult(int index, String name) {
+        return new TrackingResult(index,name,time,pupilMajorAxis,pupilMinorAxis,
+                pupil.angle,pupil.center.x,pupil.center.y,star,ring,outcome,decision);
+    }
+
     public long getTime() {
         return time;
     }
 
+    public long getTimeNanos() {
+        return timeNanos;
+    }
+
+    // nanoseconds spent in the stage for the last frame, -1 if it did not run
+    public long getStageNanos(PipelineStage stage) {
+        return stageNanos[stage.ordinal()];
+    }
+
+    public Outcome getOutcome() {
+        return outcome;
+    }
+
+    public TrackerMetrics getMetrics() {
+        return metrics;
+    }
+
     public int getDiameter() {
         return 2*pupilMajorAxis;
     }
@@ -505,6 +864,16 @@ public class OctoEye {
         return ring;
     }
 
+    // register further overlay symbols here, results are available through isDetected()
+    public SymbolDetector getSymbolDetector() {
+        return symbols;
+    }
+
+    // window and dark threshold of the candidate scoring in step 2
+    public CandidateScorer getCandidateScorer() {
+        return scorer;
+    }
+
     public int getPupilMajorAxis() {
         return pupilMajorAxis;
     }
@@ -530,7 +899,9 @@ public class OctoEye {
     }
 
     public Mat getDst2x() {
-        dst2 = new Mat(src.rows()*2,src.cols()*2,CvType.CV_8UC3);
+        if (dst2==null) {
+            dst2 = new Mat(src.rows()*2,src.cols()*2,CvType.CV_8UC3);
+        }
         Imgproc.resize(dst,dst2,new Size(src.cols()*2,src.rows()*2));
         return dst2;
     }
@@ -544,22 +915,6 @@ public class OctoEye {
     }
 
     public BufferedImage getBufferedImage(Mat m) {
-        byte[] buffer = new byte[m.rows()*m.cols()*m.channels()];
-        m.get(0,0,buffer);
-
-        int type = BufferedImage.TYPE_BYTE_GRAY;
-        if (m.channels()>1) {
-            type = BufferedImage.TYPE_3BYTE_BGR;
-            for (int i=0; i<buffer.length; i=i+3) {
-                byte b = buffer[i];
-                buffer[i] = buffer[i+2];
-                buffer[i+2] = b;
-            }
-        }
-
-        BufferedImage image = new BufferedImage(m.cols(),m.rows(),type);
-        System.arraycopy(buffer,0,((DataBufferByte)image.getRaster().getDataBuffer()).getData(),0,buffer.length);
-
-        return image;
+        return ImageBridge.toBufferedImage(m,null);
     }
 }
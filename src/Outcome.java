@@ -0,0 +1,36 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+// how the pupil detection of a frame ended
+public enum Outcome {
+    FOUND,
+    // MSER found no feature to start from
+    NO_KEYPOINTS,
+    // fewer than 5 edge points for fitEllipse
+    TOO_FEW_POINTS,
+    // minor/major axis ratio below 0.75
+    BAD_RATIO,
+    // diameter outside the min/max pupil diameter
+    DIAMETER_OUT_OF_RANGE,
+    // skipped by the quality gate: too few dark pixels for a pupil, the lid is closed
+    BLINK,
+    // skipped by the quality gate: flat histogram or mostly dark frame
+    LOW_CONTRAST,
+    // skipped by the quality gate: no sharp edges
+    MOTION_BLUR
+}
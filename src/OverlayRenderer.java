@@ -0,0 +1,120 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import org.opencv.core.*;
+import org.opencv.imgproc.Imgproc;
+
+// Draws the annotations and the debug overlay from recorded Intermediates, either into the tracker's
+// own Mats or later on for a single frame with render().
+public class OverlayRenderer {
+
+    private Mat src, out;
+
+    public OverlayRenderer() {
+        OctoEye.loadLibrary();
+        src = new Mat(OctoEye.HEIGHT,OctoEye.WIDTH,CvType.CV_8UC1);
+        out = new Mat(OctoEye.HEIGHT,OctoEye.WIDTH,CvType.CV_8UC3);
+    }
+
+    // the returned Mat is reused by the next call
+    public Mat render(byte frame[], Intermediates r, OutputMode mode) {
+        src.put(0,0,frame);
+        Imgproc.cvtColor(src,out,Imgproc.COLOR_GRAY2BGR);
+        if (mode==OutputMode.DEBUG) {
+            drawDebug(out,r);
+        } else if (mode==OutputMode.ANNOTATED) {
+            drawAnnotations(out,r);
+        }
+        return out;
+    }
+
+    public void close() {
+        src.release();
+        out.release();
+    }
+
+    public static void drawAnnotations(Mat dst, Intermediates r) {
+        if (r.found) {
+            Core.ellipse(dst,ellipse(r.pupil),OctoEye.GREEN,2);
+            Core.circle(dst,new Point(r.pupil[0],r.pupil[1]),1,OctoEye.GREEN,0);
+        }
+    }
+
+    public static void drawDebug(Mat dbg, Intermediates r) {
+        // show features (orange)
+        for (int i=0; i<r.features; i++) {
+            Core.circle(dbg,new Point(r.featureX[i],r.featureY[i]),3,OctoEye.ORANGE);
+        }
+
+        Point minTl = new Point(r.rectMin[0],r.rectMin[1]);
+        Point minBr = new Point(r.rectMin[0]+r.rectMin[2],r.rectMin[1]+r.rectMin[3]);
+        Point maxTl = new Point(r.rectMax[0],r.rectMax[1]);
+        Point maxBr = new Point(r.rectMax[0]+r.rectMax[2],r.rectMax[1]+r.rectMax[3]);
+
+        if (r.located) {
+            // show rectMin (red) and rectMax (blue)
+            Core.rectangle(dbg,minTl,minBr,OctoEye.RED,1);
+            Core.rectangle(dbg,maxTl,maxBr,OctoEye.BLUE);
+        }
+
+        if (r.tracked) {
+            // show the tracking region (light blue)
+            Core.rectangle(dbg,new Point(r.region[0],r.region[1]),
+                    new Point(r.region[0]+r.region[2],r.region[1]+r.region[3]),OctoEye.LIGHTBLUE,1);
+        }
+
+        if (r.rays>0) {
+            Point p = new Point(r.originX,r.originY);
+            for (int i=0; i<r.rays; i++) {
+                Core.line(dbg,p,new Point(r.rayX[i],r.rayY[i]),OctoEye.GRAY,1);
+            }
+            Core.rectangle(dbg,minTl,minBr,OctoEye.BLACK,-1);
+            Core.rectangle(dbg,minTl,minBr,OctoEye.RED,1);
+            Core.rectangle(dbg,maxTl,maxBr,OctoEye.BLUE);
+        }
+
+        if (r.firstFit) {
+            Core.ellipse(dbg,ellipse(r.first),OctoEye.PURPLE,2);
+        }
+
+        if (r.found) {
+            Point center = new Point(r.pupil[0],r.pupil[1]);
+            Core.ellipse(dbg,ellipse(r.pupil),OctoEye.GREEN,2);
+            Core.line(dbg,center,new Point(r.axisA[0],r.axisA[1]),OctoEye.RED, 2);
+            Core.line(dbg,center,new Point(r.axisB[0],r.axisB[1]),OctoEye.BLUE,2);
+            Core.circle(dbg,center,1,OctoEye.GREEN,0);
+
+            int x = 5;
+            int y = 5;
+            Core.rectangle(dbg,new Point(x,y),new Point(x+80+4,y+10),OctoEye.BLACK,-1);
+            Core.rectangle(dbg,new Point(x+2,y+2),new Point(x+2+r.majorAxis,y+4),OctoEye.RED, -1);
+            Core.rectangle(dbg,new Point(x+2,y+6),new Point(x+2+r.minorAxis,y+8),OctoEye.BLUE,-1);
+
+            for (int i=r.points-1; i>=0; i--) {
+                Core.circle(dbg,new Point(r.pointX[i],r.pointY[i]),2,OctoEye.ORANGE,-1);
+            }
+            for (int i=r.removed-1; i>=0; i--) {
+                Core.circle(dbg,new Point(r.removedX[i],r.removedY[i]),2,OctoEye.PURPLE,-1);
+            }
+        }
+    }
+
+    private static RotatedRect ellipse(double e[]) {
+        return new RotatedRect(new Point(e[0],e[1]),new Size(e[2],e[3]),e[4]);
+    }
+}
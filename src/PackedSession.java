@@ -0,0 +1,241 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+// A whole session in one file, frames are memory-mapped and handed out without copying.
+//
+//  header   int magic, int version, int width, int height, int count, long frameOffset
+//  index    count x (long timestamp, int index)
+//  names    count x (short length, UTF-8 bytes)
+//  frames   count x width*height bytes, starting at frameOffset
+//
+// All numbers are big-endian, frameOffset is aligned to ALIGNMENT.
+public class PackedSession implements FrameSource {
+
+    public final static int MAGIC     = 0x4F43544F; // "OCTO"
+    public final static int VERSION   = 1;
+    public final static int ALIGNMENT = 4096;
+
+    private final static int HEADER_SIZE = 5*4+8;
+    private final static int ENTRY_SIZE  = 8+4;
+    private final static Charset UTF8    = Charset.forName("UTF-8");
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final int width;
+    private final int height;
+    private final int frameSize;
+    private final long timestamps[];
+    private final int indices[];
+    private final String names[];
+
+    // a mapping is limited to 2 GB, so large sessions are split into regions of whole frames
+    private final MappedByteBuffer regions[];
+    private final int framesPerRegion;
+
+    public PackedSession(File file) throws IOException {
+        this.file = file;
+        raf = new RandomAccessFile(file,"r");
+        try {
+            FileChannel channel = raf.getChannel();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel,header,0);
+            if (header.getInt()!=MAGIC) {
+                throw new IOException("Not a packed session: "+file);
+            }
+            int version = header.getInt();
+            if (version!=VERSION) {
+                throw new IOException("Unsupported packed session version "+version+": "+file);
+            }
+            width  = header.getInt();
+            height = header.getInt();
+            int count = header.getInt();
+            long frameOffset = header.getLong();
+            // the trackers and their buffers only work on frames of this size
+            if (width!=OctoEye.WIDTH || height!=OctoEye.HEIGHT) {
+                throw new IOException("Unsupported frame size "+width+"x"+height+", expected "
+                        +OctoEye.WIDTH+"x"+OctoEye.HEIGHT+": "+file);
+            }
+            frameSize = width*height;
+            // the index and an empty name per frame before the frames, all frames within the file
+            if (count<0 || frameOffset<HEADER_SIZE+(long)count*(ENTRY_SIZE+2) || frameOffset>Integer.MAX_VALUE
+                    || frameOffset+(long)count*frameSize>channel.size()) {
+                throw new IOException("Corrupt packed session header, "+count+" frames at "+frameOffset+": "+file);
+            }
+
+            ByteBuffer meta = ByteBuffer.allocate((int)(frameOffset-HEADER_SIZE));
+            readFully(channel,meta,HEADER_SIZE);
+            timestamps = new long[count];
+            indices    = new int[count];
+            names      = new String[count];
+            try {
+                for (int i=0; i<count; i++) {
+                    timestamps[i] = meta.getLong();
+                    indices[i]    = meta.getInt();
+                }
+                for (int i=0; i<count; i++) {
+                    byte name[] = new byte[meta.getShort()&0xffff];
+                    meta.get(name);
+                    names[i] = new String(name,UTF8);
+                }
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Frame names run into the frames: "+file);
+            }
+
+            framesPerRegion = Math.max(1,Integer.MAX_VALUE/frameSize);
+            regions = new MappedByteBuffer[(count+framesPerRegion-1)/framesPerRegion];
+            for (int r=0; r<regions.length; r++) {
+                int frames = Math.min(framesPerRegion,count-r*framesPerRegion);
+                long offset = frameOffset+(long)r*framesPerRegion*frameSize;
+                regions[r] = channel.map(FileChannel.MapMode.READ_ONLY,offset,(long)frames*frameSize);
+            }
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer,position+buffer.position());
+            if (n<0) {
+                throw new IOException("Unexpected end of packed session");
+            }
+        }
+        buffer.flip();
+    }
+
+    public static FrameSource open(File file) throws IOException {
+        return file.isDirectory() ? new FrameFolder(file) : new PackedSession(file);
+    }
+
+    public static void pack(FrameSource frames, File out) throws IOException {
+        int count = frames.size();
+        byte names[][] = new byte[count][];
+        long frameOffset = HEADER_SIZE+(long)count*ENTRY_SIZE;
+        for (int i=0; i<count; i++) {
+            names[i] = frames.getName(i).getBytes(UTF8);
+            if (names[i].length>0xffff) {
+                throw new IOException("Frame name too long: "+frames.getName(i));
+            }
+            frameOffset += 2+names[i].length;
+        }
+        long padding = (ALIGNMENT-frameOffset%ALIGNMENT)%ALIGNMENT;
+        frameOffset += padding;
+
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out),1<<16));
+        try {
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeInt(OctoEye.WIDTH);
+            dos.writeInt(OctoEye.HEIGHT);
+            dos.writeInt(count);
+            dos.writeLong(frameOffset);
+            for (int i=0; i<count; i++) {
+                dos.writeLong(frames.getTimestamp(i));
+                dos.writeInt(i);
+            }
+            for (int i=0; i<count; i++) {
+                dos.writeShort(names[i].length);
+                dos.write(names[i]);
+            }
+            dos.write(new byte[(int)padding]);
+
+            byte buffer[] = new byte[OctoEye.WIDTH*OctoEye.HEIGHT];
+            for (int i=0; i<count; i++) {
+                frames.read(i,buffer);
+                dos.write(buffer);
+            }
+        } finally {
+            dos.close();
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    public String getName(int i) {
+        return names[i];
+    }
+
+    public long getTimestamp(int i) {
+        return timestamps[i];
+    }
+
+    public int getIndex(int i) {
+        return indices[i];
+    }
+
+    // zero-copy view on frame i, safe to use from several threads at once
+    public ByteBuffer getFrame(int i) {
+        ByteBuffer frame = regions[i/framesPerRegion].duplicate();
+        int offset = (i%framesPerRegion)*frameSize;
+        frame.position(offset);
+        frame.limit(offset+frameSize);
+        return frame.slice();
+    }
+
+    public ByteBuffer getFrame(int i, byte buffer[]) {
+        return getFrame(i);
+    }
+
+    public void read(int i, byte buffer[]) {
+        getFrame(i).get(buffer,0,frameSize);
+    }
+
+    public void close() throws IOException {
+        raf.close();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length!=2) {
+            System.err.println("Usage: PackedSession <folder> <session file>");
+            System.exit(1);
+        }
+
+        FrameFolder frames = new FrameFolder(new File(args[0]));
+        long start = System.currentTimeMillis();
+        pack(frames,new File(args[1]));
+        System.err.println(String.format("%d frames packed in %d ms",frames.size(),System.currentTimeMillis()-start));
+    }
+}
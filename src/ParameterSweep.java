@@ -0,0 +1,481 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// runs the full search of JavaTracker with every parameter set of a grid over a session and reports
+// the detection rate, diameter stability and time per frame of each. The stages form a tree by the
+// parameters they depend on: the coarse blur by its kernel, the blobs by the blur, the candidate by
+// the blobs and the scoring, the edge map by the Canny thresholds, the edge points by the candidate,
+// the margin and the rays. Every frame each stage output is computed once for all sets which share
+// it, the candidate is shared by value, so sets whose different scoring picks the same one share the
+// edge search as well. Tracking, the pyramid and the quality gate are not swept.
+public class ParameterSweep {
+
+    public final static int WIDTH  = JavaTracker.WIDTH;
+    public final static int HEIGHT = JavaTracker.HEIGHT;
+
+    private final FrameSource frames;
+    private final Parameters sets[];
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private boolean subpixel = false;
+    private boolean robust = false;
+
+    // diameter of every set and frame, 0 if no pupil was found
+    private int diameters[][];
+    private long nanos[];
+    private int found[];
+    private long evaluated = 0;
+    private long requested = 0;
+    private long elapsed = 0;
+
+    private final ThreadLocal<Worker> workers = new ThreadLocal<Worker>() {
+        protected Worker initialValue() {
+            return new Worker();
+        }
+    };
+
+    public ParameterSweep(FrameSource frames, List<Parameters> sets) {
+        if (sets.isEmpty()) {
+            throw new IllegalArgumentException("no parameter sets");
+        }
+        this.frames = frames;
+        this.sets = sets.toArray(new Parameters[sets.size()]);
+    }
+
+    // every combination of the values, the first name varies slowest
+    public static List<Parameters> grid(Parameters base, Map<String,String[]> values) {
+        List<Parameters> sets = new ArrayList<Parameters>();
+        sets.add(base.copy());
+        for (Map.Entry<String,String[]> e : values.entrySet()) {
+            List<Parameters> next = new ArrayList<Parameters>();
+            for (Parameters p : sets) {
+                for (String v : e.getValue()) {
+                    Parameters q = p.copy();
+                    q.set(e.getKey(),v);
+                    next.add(q);
+                }
+            }
+            sets = next;
+        }
+        return sets;
+    }
+
+    // one stage output, valid for the frame it was computed for
+    private static class Node {
+        int frame = -1;
+        long nanos;
+        byte image[];
+        int rect[];
+        float blobX[], blobY[];
+        int blobs;
+        double pointX[], pointY[];
+        int points;
+    }
+
+    private class Worker {
+        final byte frame[] = new byte[WIDTH*HEIGHT];
+        final byte fine[]  = new byte[WIDTH*HEIGHT];
+        final Node fineNode = new Node();
+        final MedianFilter median = new MedianFilter(WIDTH,HEIGHT);
+        final BlobDetector blobs = new BlobDetector(WIDTH,HEIGHT);
+        final CandidateScorer scorer = new CandidateScorer(WIDTH,HEIGHT);
+        final CannyDetector canny = new CannyDetector(WIDTH,HEIGHT);
+        final PupilFit fit = new PupilFit();
+        final Map<Integer,RayCaster> rays = new HashMap<Integer,RayCaster>();
+        final Map<String,Node> nodes = new HashMap<String,Node>();
+        // the stage runs this worker did and would have done without sharing
+        long evaluated = 0;
+        long requested = 0;
+
+        Node node(String key) {
+            requested++;
+            Node n = nodes.get(key);
+            if (n==null) {
+                n = new Node();
+                nodes.put(key,n);
+            }
+            return n;
+        }
+
+        boolean stale(Node n, int index) {
+            if (n.frame==index) {
+                return false;
+            }
+            n.frame = index;
+            evaluated++;
+            return true;
+        }
+
+        // step 1
+        Node coarse(int index, Parameters p) {
+            Node n = node("blur:"+p.getCoarseKernel());
+            if (stale(n,index)) {
+                long t = System.nanoTime();
+                if (n.image==null) {
+                    n.image = new byte[WIDTH*HEIGHT];
+                }
+                median.apply(frame,n.image,p.getCoarseKernel());
+                n.nanos = System.nanoTime()-t;
+            }
+            return n;
+        }
+
+        // step 2, the blobs on the coarse blurred image, which is kept as their image
+        Node blobs(int index, Parameters p) {
+            Node image = coarse(index,p);
+            Node n = node("blobs:"+p.getCoarseKernel());
+            if (stale(n,index)) {
+                long t = System.nanoTime();
+                n.image = image.image;
+                n.blobs = blobs.detect(image.image);
+                if (n.blobX==null) {
+                    n.blobX = new float[BlobDetector.MAX_BLOBS];
+                    n.blobY = new float[BlobDetector.MAX_BLOBS];
+                }
+                for (int i=0; i<n.blobs; i++) {
+                    n.blobX[i] = blobs.getX(i);
+                    n.blobY[i] = blobs.getY(i);
+                }
+                n.nanos = image.nanos+System.nanoTime()-t;
+            }
+            return n;
+        }
+
+        // step 2, the best candidate as rectMin, null if there is none
+        Node candidate(int index, Parameters p) {
+            Node b = blobs(index,p);
+            Node n = node("rect:"+p.getCoarseKernel()+":"+p.getWindow()+":"+p.getThreshold());
+            if (stale(n,index)) {
+                long t = System.nanoTime();
+                scorer.setWindow(p.getWindow());
+                scorer.setThreshold(p.getThreshold());
+                scorer.setImage(b.image);
+                n.rect = null;
+                int score = 0;
+                for (int i=0; i<b.blobs; i++) {
+                    int x = (int)b.blobX[i];
+                    int y = (int)b.blobY[i];
+                    int tmp = scorer.score(x,y);
+                    if (tmp>=score) {
+                        score = tmp;
+                        n.rect = scorer.rect(x,y);
+                    }
+                }
+                n.nanos = b.nanos+System.nanoTime()-t;
+            }
+            return n;
+        }
+
+        // step 4, the same for every set
+        Node fine(int index) {
+            requested++;
+            Node n = fineNode;
+            if (stale(n,index)) {
+                long t = System.nanoTime();
+                median.applyChain(frame,fine,MedianFilter.FINE_BLUR,0,0,WIDTH,HEIGHT);
+                n.image = fine;
+                n.nanos = System.nanoTime()-t;
+            }
+            return n;
+        }
+
+        // step 5
+        Node edges(int index, Parameters p) {
+            Node f = fine(index);
+            Node n = node("canny:"+p.getCannyLow()+":"+p.getCannyHigh());
+            if (stale(n,index)) {
+                long t = System.nanoTime();
+                if (n.image==null) {
+                    n.image = new byte[WIDTH*HEIGHT];
+                }
+                canny.detect(f.image,n.image,p.getCannyLow(),p.getCannyHigh(),0,0,WIDTH,HEIGHT);
+                n.nanos = f.nanos+System.nanoTime()-t;
+            }
+            return n;
+        }
+
+        // steps 3 and 6, the rays from the center of rectMin to the borders of rectMax
+        Node points(int index, Parameters p, int rectMin[]) {
+            Node e = edges(index,p);
+            int margin = p.getMargin();
+            Node n = node("points:"+p.getCannyLow()+":"+p.getCannyHigh()+":"+rectMin[0]+","+rectMin[1]+","
+                    +rectMin[2]+","+rectMin[3]+":"+margin+":"+p.getRayCount());
+            if (stale(n,index)) {
+                long t = System.nanoTime();
+                double px = rectMin[0]+rectMin[2]/2;
+                double py = rectMin[1]+rectMin[3]/2;
+                double length = Math.min(px-(rectMin[0]-margin)-3,py-(rectMin[1]-margin)-3);
+                length = Math.sqrt(2*Math.pow(length,2));
+
+                RayCaster r = rays.get(p.getRayCount());
+                if (r==null) {
+                    r = new RayCaster(p.getRayCount());
+                    rays.put(p.getRayCount(),r);
+                }
+                r.cast(px,py,length);
+                r.search(e.image,WIDTH,HEIGHT);
+                if (subpixel) {
+                    r.refine(fine,WIDTH,HEIGHT);
+                }
+                if (n.pointX==null) {
+                    n.pointX = new double[p.getRayCount()];
+                    n.pointY = new double[p.getRayCount()];
+                }
+                n.points = r.getEdges();
+                System.arraycopy(r.getPointX(),0,n.pointX,0,n.points);
+                System.arraycopy(r.getPointY(),0,n.pointY,0,n.points);
+                n.nanos = e.nanos+System.nanoTime()-t;
+            }
+            return n;
+        }
+
+        // step 7 is cheap and only depends on the set itself, it is never shared
+        long track(int index, int set, Parameters p) {
+            Node c = candidate(index,p);
+            long spent = c.nanos;
+            if (c.rect==null) {
+                return spent;
+            }
+            Node pts = points(index,p,c.rect);
+            // the fine blur and the edge map are computed for every set which gets this far
+            spent += pts.nanos;
+            long t = System.nanoTime();
+            Outcome result = fit.fit(pts.pointX,pts.pointY,pts.points,p,robust);
+            spent += System.nanoTime()-t;
+            if (result==Outcome.FOUND) {
+                diameters[set][index] = 2*fit.getMajorAxis();
+            }
+            return spent;
+        }
+    }
+
+    private class Chunk implements Callable<long[]> {
+
+        private final int first;
+        private final int last;
+
+        Chunk(int first, int last) {
+            this.first = first;
+            this.last  = last;
+        }
+
+        // the standalone nanoseconds of every set
+        public long[] call() throws IOException {
+            Worker w = workers.get();
+            long spent[] = new long[sets.length];
+            long evaluated = w.evaluated;
+            long requested = w.requested;
+            for (int i=first; i<last; i++) {
+                frames.read(i,w.frame);
+                for (int s=0; s<sets.length; s++) {
+                    spent[s] += w.track(i,s,sets[s]);
+                }
+            }
+            synchronized (ParameterSweep.this) {
+                ParameterSweep.this.evaluated += w.evaluated-evaluated;
+                ParameterSweep.this.requested += w.requested-requested;
+            }
+            return spent;
+        }
+    }
+
+    public void run() throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        diameters = new int[sets.length][frames.size()];
+        nanos = new long[sets.length];
+        found = new int[sets.length];
+        evaluated = 0;
+        requested = 0;
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            // every frame runs all sets, so the chunks are smaller than in BatchProcessor to keep the threads busy
+            int size = Math.max(1,Math.min(BatchProcessor.CHUNK,frames.size()/(4*threads)));
+            List<Future<long[]>> chunks = new ArrayList<Future<long[]>>();
+            for (int first=0; first<frames.size(); first+=size) {
+                chunks.add(pool.submit(new Chunk(first,Math.min(first+size,frames.size()))));
+            }
+            for (Future<long[]> chunk : chunks) {
+                long spent[];
+                try {
+                    spent = chunk.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException)e.getCause();
+                    }
+                    throw new RuntimeException(e.getCause());
+                }
+                for (int s=0; s<sets.length; s++) {
+                    nanos[s] += spent[s];
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        for (int s=0; s<sets.length; s++) {
+            for (int d : diameters[s]) {
+                found[s] += d>0 ? 1 : 0;
+            }
+        }
+        elapsed = System.nanoTime()-start;
+    }
+
+    public void setThreads(int threads) {
+        if (threads<1) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        this.threads = threads;
+    }
+
+    public void setSubpixelEdges(boolean subpixel) {
+        this.subpixel = subpixel;
+    }
+
+    public void setRobustFit(boolean robust) {
+        this.robust = robust;
+    }
+
+    public int size() {
+        return sets.length;
+    }
+
+    public Parameters getParameters(int set) {
+        return sets[set];
+    }
+
+    public double getDetectionRate(int set) {
+        return frames.size()>0 ? (double)found[set]/frames.size() : 0;
+    }
+
+    public double getMeanDiameter(int set) {
+        long sum = 0;
+        for (int d : diameters[set]) {
+            sum += d;
+        }
+        return found[set]>0 ? (double)sum/found[set] : 0;
+    }
+
+    // mean absolute diameter change between consecutive frames which both have a pupil
+    public double getDiameterJitter(int set) {
+        long sum = 0;
+        int n = 0;
+        int d[] = diameters[set];
+        for (int i=1; i<d.length; i++) {
+            if (d[i]>0 && d[i-1]>0) {
+                sum += Math.abs(d[i]-d[i-1]);
+                n++;
+            }
+        }
+        return n>0 ? (double)sum/n : 0;
+    }
+
+    // what a tracker with this set would spend per frame, the shared stage times counted in full
+    public double getMillisPerFrame(int set) {
+        return frames.size()>0 ? nanos[set]/1e6/frames.size() : 0;
+    }
+
+    public int[] getDiameters(int set) {
+        return diameters[set];
+    }
+
+    public void report(List<String> names, PrintStream out) {
+        StringBuilder sb = new StringBuilder();
+        for (String name : names) {
+            sb.append(String.format(Locale.ROOT,"%-13s",name));
+        }
+        sb.append(String.format(Locale.ROOT,"%10s %10s %10s %10s","detection","diameter","jitter","ms/frame"));
+        out.println(sb);
+        for (int s=0; s<sets.length; s++) {
+            sb.setLength(0);
+            for (String name : names) {
+                sb.append(String.format(Locale.ROOT,"%-13s",sets[s].get(name)));
+            }
+            sb.append(String.format(Locale.ROOT,"%9.2f%% %10.2f %10.3f %10.3f",100*getDetectionRate(s),
+                    getMeanDiameter(s),getDiameterJitter(s),getMillisPerFrame(s)));
+            out.println(sb);
+        }
+        double standalone = 0;
+        for (long n : nanos) {
+            standalone += n/1e9;
+        }
+        out.println(String.format(Locale.ROOT,"%d sets x %d frames in %.2f s with %d threads, %d of %d stage runs evaluated (%.1f%%), %.2f s without sharing",
+                sets.length,frames.size(),elapsed/1e9,threads,evaluated,requested,
+                requested>0 ? 100.0*evaluated/requested : 0,standalone));
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length<1) {
+            System.err.println("Usage: ParameterSweep [-threads n] [-subpixel] [-robust] <folder or session file> [name=v1,v2,...]...");
+            StringBuilder names = new StringBuilder("  names:");
+            for (String name : Parameters.NAMES) {
+                names.append(' ').append(name);
+            }
+            System.err.println(names);
+            System.exit(1);
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean subpixel = false;
+        boolean robust = false;
+        File input = null;
+        Map<String,String[]> values = new LinkedHashMap<String,String[]>();
+        for (int i=0; i<args.length; i++) {
+            String a = args[i];
+            if (a.equals("-threads") && i+1<args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (a.equals("-subpixel")) {
+                subpixel = true;
+            } else if (a.equals("-robust")) {
+                robust = true;
+            } else if (a.indexOf('=')>0) {
+                values.put(a.substring(0,a.indexOf('=')),a.substring(a.indexOf('=')+1).split(","));
+            } else if (input==null) {
+                input = new File(a);
+            } else {
+                System.err.println("Unknown option "+a);
+                System.exit(1);
+            }
+        }
+
+        List<Parameters> sets = grid(new Parameters(),values);
+        FrameSource frames = PackedSession.open(input);
+        try {
+            ParameterSweep sweep = new ParameterSweep(frames,sets);
+            sweep.setThreads(threads);
+            sweep.setSubpixelEdges(subpixel);
+            sweep.setRobustFit(robust);
+            sweep.run();
+            sweep.report(new ArrayList<String>(values.keySet()),System.out);
+        } finally {
+            frames.close();
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+// the tuning constants of the pupil detection, shared by both engines, a tracker keeps its own copy
+public class Parameters {
+
+    public final static String NAMES[] = {
+        "minRadius","maxRadius","coarseKernel","window","threshold","margin",
+        "cannyLow","cannyHigh","rayCount","outliers","minRatio"
+    };
+
+    // min and max pupil radius of the sanity checks
+    private int minRadius = 2;
+    private int maxRadius = 45;
+    // median kernel of the blur before the feature detection
+    private int coarseKernel = 25;
+    // scoring of the features, see CandidateScorer
+    private int window = 5;
+    private int threshold = 256/3;
+    // rectMax is rectMin grown by margin on every side, the rays reach about that far
+    private int margin = 32;
+    private int cannyLow = 40;
+    private int cannyHigh = 50;
+    // rays of the edge search, 24 is one every 15 degrees
+    private int rayCount = 24;
+    // edge points farthest from the first ellipse which are dropped before the second fit
+    private int outliers = 4;
+    // smallest minor/major axis ratio of a pupil
+    private double minRatio = 0.75;
+
+    public Parameters copy() {
+        Parameters p = new Parameters();
+        p.minRadius    = minRadius;
+        p.maxRadius    = maxRadius;
+        p.coarseKernel = coarseKernel;
+        p.window       = window;
+        p.threshold    = threshold;
+        p.margin       = margin;
+        p.cannyLow     = cannyLow;
+        p.cannyHigh    = cannyHigh;
+        p.rayCount     = rayCount;
+        p.outliers     = outliers;
+        p.minRatio     = minRatio;
+        return p;
+    }
+
+    // sets a parameter from its name in NAMES and a string value, e.g. from the command line
+    public void set(String name, String value) {
+        try {
+            if (name.equals("minRatio")) {
+                setMinRatio(Double.parseDouble(value));
+                return;
+            }
+            int v = Integer.parseInt(value.trim());
+            if (name.equals("minRadius")) {
+                setRadius(v,maxRadius);
+            } else if (name.equals("maxRadius")) {
+                setRadius(minRadius,v);
+            } else if (name.equals("coarseKernel")) {
+                setCoarseKernel(v);
+            } else if (name.equals("window")) {
+                setWindow(v);
+            } else if (name.equals("threshold")) {
+                setThreshold(v);
+            } else if (name.equals("margin")) {
+                setMargin(v);
+            } else if (name.equals("cannyLow")) {
+                setCanny(v,cannyHigh);
+            } else if (name.equals("cannyHigh")) {
+                setCanny(cannyLow,v);
+            } else if (name.equals("rayCount")) {
+                setRayCount(v);
+            } else if (name.equals("outliers")) {
+                setOutliers(v);
+            } else {
+                throw new IllegalArgumentException("unknown parameter "+name);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid value "+value+" for "+name);
+        }
+    }
+
+    public String get(String name) {
+        if (name.equals("minRatio")) {
+            return String.valueOf(minRatio);
+        }
+        int values[] = {minRadius,maxRadius,coarseKernel,window,threshold,margin,cannyLow,cannyHigh,rayCount,outliers};
+        for (int i=0; i<values.length; i++) {
+            if (NAMES[i].equals(name)) {
+                return String.valueOf(values[i]);
+            }
+        }
+        throw new IllegalArgumentException("unknown parameter "+name);
+    }
+
+    public void setRadius(int minRadius, int maxRadius) {
+        if (minRadius<1 || minRadius>=maxRadius) {
+            throw new IllegalArgumentException("invalid radius range "+minRadius+".."+maxRadius);
+        }
+        this.minRadius = minRadius;
+        this.maxRadius = maxRadius;
+    }
+
+    public int getMinRadius() {
+        return minRadius;
+    }
+
+    public int getMaxRadius() {
+        return maxRadius;
+    }
+
+    public void setCoarseKernel(int coarseKernel) {
+        if (coarseKernel<3 || coarseKernel%2==0) {
+            throw new IllegalArgumentException("coarseKernel must be odd and at least 3");
+        }
+        this.coarseKernel = coarseKernel;
+    }
+
+    public int getCoarseKernel() {
+        return coarseKernel;
+    }
+
+    public void setWindow(int window) {
+        if (window<1) {
+            throw new IllegalArgumentException("window must be positive");
+        }
+        this.window = window;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    public void setThreshold(int threshold) {
+        if (threshold<1 || threshold>256) {
+            throw new IllegalArgumentException("threshold must be between 1 and 256");
+        }
+        this.threshold = threshold;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public void setMargin(int margin) {
+        if (margin<4) {
+            throw new IllegalArgumentException("margin must be at least 4");
+        }
+        this.margin = margin;
+    }
+
+    public int getMargin() {
+        return margin;
+    }
+
+    public void setCanny(int low, int high) {
+        if (low<0 || high<0) {
+            throw new IllegalArgumentException("invalid Canny thresholds "+low+"/"+high);
+        }
+        cannyLow  = low;
+        cannyHigh = high;
+    }
+
+    public int getCannyLow() {
+        return cannyLow;
+    }
+
+    public int getCannyHigh() {
+        return cannyHigh;
+    }
+
+    public void setRayCount(int rayCount) {
+        if (rayCount<1) {
+            throw new IllegalArgumentException("rayCount must be positive");
+        }
+        this.rayCount = rayCount;
+    }
+
+    public int getRayCount() {
+        return rayCount;
+    }
+
+    public void setOutliers(int outliers) {
+        if (outliers<0) {
+            throw new IllegalArgumentException("outliers must not be negative");
+        }
+        this.outliers = outliers;
+    }
+
+    public int getOutliers() {
+        return outliers;
+    }
+
+    public void setMinRatio(double minRatio) {
+        if (minRatio<0 || minRatio>1) {
+            throw new IllegalArgumentException("minRatio must be between 0 and 1");
+        }
+        this.minRatio = minRatio;
+    }
+
+    public double getMinRatio() {
+        return minRatio;
+    }
+
+    public boolean equals(Object o) {
+        if (!(o instanceof Parameters)) {
+            return false;
+        }
+        Parameters p = (Parameters)o;
+        return minRadius==p.minRadius && maxRadius==p.maxRadius && coarseKernel==p.coarseKernel
+                && window==p.window && threshold==p.threshold && margin==p.margin
+                && cannyLow==p.cannyLow && cannyHigh==p.cannyHigh && rayCount==p.rayCount
+                && outliers==p.outliers && minRatio==p.minRatio;
+    }
+
+    public int hashCode() {
+        long h = minRadius;
+        h = h*31+maxRadius;
+        h = h*31+coarseKernel;
+        h = h*31+window;
+        h = h*31+threshold;
+        h = h*31+margin;
+        h = h*31+cannyLow;
+        h = h*31+cannyHigh;
+        h = h*31+rayCount;
+        h = h*31+outliers;
+        h = h*31+Double.doubleToLongBits(minRatio);
+        return (int)(h^(h>>>32));
+    }
+
+    // name=value pairs in the order of NAMES
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (String name : NAMES) {
+            if (sb.length()>0) {
+                sb.append(' ');
+            }
+            sb.append(name).append('=').append(get(name));
+        }
+        return sb.toString();
+    }
+}
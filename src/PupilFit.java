@@ -0,0 +1,193 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.Arrays;
+
+// step 7 of the Java pipeline: fits the pupil ellipse to the edge points, drops the outliers and
+// applies the sanity checks of the Parameters, used by JavaTracker and ParameterSweep
+public class PupilFit {
+
+    // edge points used for the fit and the outliers removed from them
+    private double pointX[] = new double[0];
+    private double pointY[] = new double[0];
+    private int points;
+    private double removedX[] = new double[0];
+    private double removedY[] = new double[0];
+    private int removed;
+
+    // center x, center y, width, height, angle
+    private final double pupil[] = new double[5];
+    private final double first[] = new double[5];
+    private boolean fitted = false;
+    private final double vertices[] = new double[8];
+    private int majorAxis = 0;
+    private int minorAxis = 0;
+
+    private final RobustEllipseFit robustFit = new RobustEllipseFit();
+
+    // fits the n points, the pupil and the axes are 0 unless FOUND is returned
+    public Outcome fit(double x[], double y[], int n, Parameters p, boolean robust) {
+        if (pointX.length<n) {
+            pointX = new double[n];
+            pointY = new double[n];
+            removedX = new double[n];
+            removedY = new double[n];
+        }
+        points = n;
+        removed = 0;
+        fitted = false;
+        System.arraycopy(x,0,pointX,0,n);
+        System.arraycopy(y,0,pointY,0,n);
+        Outcome result = robust ? fitRobust() : fitOutliers(p.getOutliers());
+        if (result==Outcome.FOUND) {
+            result = check(p);
+        }
+        if (result!=Outcome.FOUND) {
+            reset();
+        }
+        return result;
+    }
+
+    private Outcome fitOutliers(int outliers) {
+        if (!EllipseFit.fit(pointX,pointY,points,pupil)) {
+            return Outcome.TOO_FEW_POINTS;
+        }
+        System.arraycopy(pupil,0,first,0,5);
+        fitted = true;
+
+        // the points farthest from the first center are outliers
+        for (int i=1; i<=outliers && points>0; i++) {
+            double distance = 0;
+            int remove = 0;
+            for (int j=points-1; j>=0; j--) {
+                double length = Math.sqrt(Math.pow(pointX[j]-pupil[0],2)+Math.pow(pointY[j]-pupil[1],2));
+                if (length>distance) {
+                    distance = length;
+                    remove = j;
+                }
+            }
+            removedX[removed] = pointX[remove];
+            removedY[removed] = pointY[remove];
+            removed++;
+            System.arraycopy(pointX,remove+1,pointX,remove,points-remove-1);
+            System.arraycopy(pointY,remove+1,pointY,remove,points-remove-1);
+            points--;
+        }
+        if (points<5 || !EllipseFit.fit(pointX,pointY,points,pupil)) {
+            return Outcome.TOO_FEW_POINTS;
+        }
+        return Outcome.FOUND;
+    }
+
+    // the IRLS fit drops the points with zero weight instead of a fixed number of farthest points
+    private Outcome fitRobust() {
+        if (!robustFit.fit(pointX,pointY,points,pupil)) {
+            return Outcome.TOO_FEW_POINTS;
+        }
+        System.arraycopy(robustFit.getFirst(),0,first,0,5);
+        fitted = true;
+        double weights[] = robustFit.getWeights();
+        int kept = 0;
+        for (int i=0; i<points; i++) {
+            if (weights[i]>0) {
+                pointX[kept] = pointX[i];
+                pointY[kept] = pointY[i];
+                kept++;
+            } else {
+                removedX[removed] = pointX[i];
+                removedY[removed] = pointY[i];
+                removed++;
+            }
+        }
+        points = kept;
+        return Outcome.FOUND;
+    }
+
+    private Outcome check(Parameters p) {
+        // min and max pupil diameter
+        int d_min = 2*p.getMinRadius();
+        int d_max = 2*p.getMaxRadius();
+
+        EllipseFit.points(pupil,vertices);
+        double d1 = Math.hypot(vertices[2]-vertices[0],vertices[3]-vertices[1]);
+        double d2 = Math.hypot(vertices[4]-vertices[2],vertices[5]-vertices[3]);
+        majorAxis = (int)(Math.max(d1,d2)/2);
+        minorAxis = (int)(Math.min(d1,d2)/2);
+
+        double ratio = (double)minorAxis/(double)majorAxis;
+        if (ratio<p.getMinRatio()) {
+            return Outcome.BAD_RATIO;
+        }
+        if (2*minorAxis<=d_min || 2*majorAxis>=d_max) {
+            return Outcome.DIAMETER_OUT_OF_RANGE;
+        }
+        return Outcome.FOUND;
+    }
+
+    public void reset() {
+        Arrays.fill(pupil,0);
+        majorAxis = 0;
+        minorAxis = 0;
+    }
+
+    // center x, center y, width, height and angle, the array is reused for every fit
+    public double[] getPupil() {
+        return pupil;
+    }
+
+    public double[] getVertices() {
+        return vertices;
+    }
+
+    // the ellipse before the outliers were removed, null if there was none
+    public double[] getFirst() {
+        return fitted ? first : null;
+    }
+
+    public int getMajorAxis() {
+        return majorAxis;
+    }
+
+    public int getMinorAxis() {
+        return minorAxis;
+    }
+
+    public double[] getPointX() {
+        return pointX;
+    }
+
+    public double[] getPointY() {
+        return pointY;
+    }
+
+    public int getPoints() {
+        return points;
+    }
+
+    public double[] getRemovedX() {
+        return removedX;
+    }
+
+    public double[] getRemovedY() {
+        return removedY;
+    }
+
+    public int getRemoved() {
+        return removed;
+    }
+}
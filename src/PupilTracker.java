@@ -0,0 +1,112 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.nio.ByteBuffer;
+
+// a pupil tracker working on WIDTH x HEIGHT 8-bit grayscale frames, see Engine for the implementations
+public interface PupilTracker {
+
+    void process(byte buffer[]);
+
+    void process(ByteBuffer buffer);
+
+    void close();
+
+    TrackingResult getResult(int index, String name);
+
+    Outcome getOutcome();
+
+    long getTime();
+
+    long getTimeNanos();
+
+    // nanoseconds spent in the stage for the last frame, -1 if it did not run
+    long getStageNanos(PipelineStage stage);
+
+    TrackerMetrics getMetrics();
+
+    int getDiameter();
+
+    int getPupilMajorAxis();
+
+    int getPupilMinorAxis();
+
+    boolean isStar();
+
+    boolean isRing();
+
+    SymbolDetector getSymbolDetector();
+
+    CandidateScorer getCandidateScorer();
+
+    // copies the tuning constants, the ray count and the scoring are applied to their components
+    void setParameters(Parameters parameters);
+
+    Parameters getParameters();
+
+    void setRayCount(int rayCount);
+
+    int getRayCount();
+
+    // refine the edge points along their rays to the strongest step of the blurred image
+    void setSubpixelEdges(boolean subpixel);
+
+    boolean isSubpixelEdges();
+
+    // fit the ellipse with Tukey-weighted IRLS instead of dropping the 4 farthest points
+    void setRobustFit(boolean robust);
+
+    boolean isRobustFit();
+
+    // locate the pupil on a copy reduced by 2^level and fit it at full resolution around that, 0 searches the full frame
+    void setPyramidLevel(int level);
+
+    int getPyramidLevel();
+
+    // classify every frame with the quality gate first: skip blinks and unusable frames, track similar ones
+    void setQualityGate(boolean enabled);
+
+    boolean isQualityGate();
+
+    FrameQualityGate getQualityGate();
+
+    // row bands the median filters run in parallel, keep 1 when several trackers share the cores
+    void setFilterThreads(int threads);
+
+    int getFilterThreads();
+
+    void setOutputMode(OutputMode mode);
+
+    OutputMode getOutputMode();
+
+    void setRecording(boolean recording);
+
+    boolean isRecording();
+
+    Intermediates getIntermediates();
+
+    void setTracking(boolean tracking);
+
+    boolean isTracking();
+
+    void resetTracking();
+
+    long getTrackedFrames();
+
+    long getFallbacks();
+}
@@ -0,0 +1,127 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.File;
+import java.util.Locale;
+
+// tracks a session at full resolution and with the pyramid levels 1..n and reports for every level
+// how far its results are from the full resolution ones and how much faster it is
+public class PyramidComparison {
+
+    private final PupilTracker trackers[];
+
+    private int frames = 0;
+    private final int found[];
+    private final int bothFound[];
+    private final int lost[];
+    private final double centerSum[], centerMax[];
+    private final double diameterSum[], diameterMax[];
+    private final long nanos[];
+    private final long locateNanos[];
+
+    public PyramidComparison(Engine engine, int levels) {
+        trackers    = new PupilTracker[levels+1];
+        found       = new int[levels+1];
+        bothFound   = new int[levels+1];
+        lost        = new int[levels+1];
+        centerSum   = new double[levels+1];
+        centerMax   = new double[levels+1];
+        diameterSum = new double[levels+1];
+        diameterMax = new double[levels+1];
+        nanos       = new long[levels+1];
+        locateNanos = new long[levels+1];
+        for (int l=0; l<=levels; l++) {
+            trackers[l] = engine.create();
+            trackers[l].setOutputMode(OutputMode.MEASUREMENTS);
+            trackers[l].setPyramidLevel(l);
+        }
+    }
+
+    public void compare(byte frame[]) {
+        TrackingResult results[] = new TrackingResult[trackers.length];
+        for (int l=0; l<trackers.length; l++) {
+            trackers[l].process(frame);
+            results[l] = trackers[l].getResult(frames,"");
+            nanos[l] += trackers[l].getTimeNanos();
+            PipelineStage locate[] = {PipelineStage.COARSE_BLUR,PipelineStage.MSER,PipelineStage.HISTOGRAM};
+            for (PipelineStage s : locate) {
+                locateNanos[l] += Math.max(0,trackers[l].getStageNanos(s));
+            }
+        }
+        frames++;
+
+        TrackingResult r = results[0];
+        for (int l=0; l<trackers.length; l++) {
+            TrackingResult c = results[l];
+            found[l] += c.isPupilFound() ? 1 : 0;
+            if (r.isPupilFound() && c.isPupilFound()) {
+                bothFound[l]++;
+                double center = Math.hypot(r.getCenterX()-c.getCenterX(),r.getCenterY()-c.getCenterY());
+                double diameter = Math.abs(r.getDiameter()-c.getDiameter());
+                centerSum[l] += center;
+                centerMax[l] = Math.max(centerMax[l],center);
+                diameterSum[l] += diameter;
+                diameterMax[l] = Math.max(diameterMax[l],diameter);
+            } else if (r.isPupilFound()) {
+                lost[l]++;
+            }
+        }
+    }
+
+    public String getSummary() {
+        int n = Math.max(frames,1);
+        StringBuilder sb = new StringBuilder();
+        for (int l=0; l<trackers.length; l++) {
+            int b = Math.max(bothFound[l],1);
+            sb.append(String.format(Locale.ROOT,
+                    "level %d: %d of %d frames found, %d lost, center offset mean %.2f max %.2f px, "+
+                    "diameter difference mean %.2f max %.0f px, %.2f ms/frame (locate %.2f ms), speedup %.2fx%n",
+                    l,found[l],frames,lost[l],centerSum[l]/b,centerMax[l],diameterSum[l]/b,diameterMax[l],
+                    nanos[l]/1e6/n,locateNanos[l]/1e6/n,nanos[l]>0 ? (double)nanos[0]/nanos[l] : 0));
+        }
+        return sb.toString();
+    }
+
+    public void close() {
+        for (PupilTracker t : trackers) {
+            t.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length<1 || args.length>3) {
+            System.err.println("Usage: PyramidComparison <folder or session file> [frames] [levels]");
+            System.exit(1);
+        }
+
+        FrameSource source = PackedSession.open(new File(args[0]));
+        int count = args.length>1 ? Math.min(Integer.parseInt(args[1]),source.size()) : source.size();
+        int levels = args.length>2 ? Integer.parseInt(args[2]) : 2;
+
+        PyramidComparison comparison = new PyramidComparison(Engine.getDefault(),levels);
+        byte buffer[] = new byte[OctoEye.WIDTH*OctoEye.HEIGHT];
+        for (int i=0; i<count; i++) {
+            source.read(i,buffer);
+            comparison.compare(buffer);
+        }
+        source.close();
+        comparison.close();
+
+        System.out.print(comparison.getSummary());
+    }
+}
@@ -0,0 +1,164 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+// rough pupil location on a reduced copy of the frame: every level halves width and height, the coarse blur,
+// the blob detection and the candidate scoring run on the smallest image with their sizes scaled to match,
+// and the best candidate is mapped back to full resolution
+public class PyramidLocator {
+
+    private final int level;
+    private final int scale;
+    private final int fullWidth;
+    private final int fullHeight;
+    private final int width;
+    private final int height;
+    // reduced images, images[0] is the frame itself
+    private final byte images[][];
+    private final byte blurred[];
+
+    private final MedianFilter median;
+    private final BlobDetector blobs;
+    private final CandidateScorer scorer;
+    private int ksize;
+
+    private int count = 0;
+    private int best = -1;
+
+    public PyramidLocator(int width, int height, int level) {
+        if (level<1 || (width>>level)<8 || (height>>level)<8) {
+            throw new IllegalArgumentException("invalid pyramid level "+level);
+        }
+        this.level  = level;
+        this.scale  = 1<<level;
+        this.fullWidth  = width;
+        this.fullHeight = height;
+        this.width  = width>>level;
+        this.height = height>>level;
+        images = new byte[level+1][];
+        for (int l=1; l<=level; l++) {
+            images[l] = new byte[(width>>l)*(height>>l)];
+        }
+        blurred = new byte[this.width*this.height];
+
+        median = new MedianFilter(this.width,this.height);
+        blobs  = new BlobDetector(this.width,this.height);
+        scorer = new CandidateScorer(this.width,this.height);
+        setParameters(new Parameters());
+    }
+
+    // the full resolution kernel, radius range and scoring scaled down to the coarse level
+    public void setParameters(Parameters p) {
+        // rounded down, a relatively larger kernel wipes out small pupils at the coarse levels
+        ksize = Math.max(3,(p.getCoarseKernel()/scale-1)|1);
+        // blobs outside the radius range of the sanity checks are no candidates
+        int r_min = p.getMinRadius();
+        int r_max = p.getMaxRadius();
+        int minArea = (int)Math.max(1,Math.PI*r_min*r_min/(scale*scale));
+        int maxArea = (int)Math.ceil(Math.PI*r_max*r_max/(scale*scale));
+        blobs.setArea(minArea,maxArea);
+        setWindow(p.getWindow());
+        setThreshold(p.getThreshold());
+    }
+
+    // the full resolution scoring window, scaled down to the coarse level
+    public void setWindow(int window) {
+        scorer.setWindow(Math.max(1,(window+scale/2)/scale));
+    }
+
+    public void setThreshold(int threshold) {
+        scorer.setThreshold(threshold);
+    }
+
+    // reduces the frame to the coarse level and blurs it there
+    public void blur(byte image[]) {
+        images[0] = image;
+        for (int l=1; l<=level; l++) {
+            reduce(images[l-1],fullWidth>>(l-1),fullHeight>>(l-1),images[l]);
+        }
+        median.apply(images[level],blurred,ksize);
+    }
+
+    // 2x2 box average, an odd last row or column is dropped
+    private static void reduce(byte src[], int sw, int sh, byte dst[]) {
+        int dw = sw/2;
+        int dh = sh/2;
+        for (int y=0; y<dh; y++) {
+            int k = 2*y*sw;
+            int d = y*dw;
+            for (int x=0; x<dw; x++, k+=2) {
+                int sum = (src[k]&0xff)+(src[k+1]&0xff)+(src[k+sw]&0xff)+(src[k+sw+1]&0xff);
+                dst[d+x] = (byte)((sum+2)>>2);
+            }
+        }
+    }
+
+    // returns the number of blobs on the blurred coarse image
+    public int detect() {
+        count = blobs.detect(blurred);
+        best = -1;
+        return count;
+    }
+
+    // scores the blobs, returns the index of the best one or -1 if there is none
+    public int score() {
+        int score = 0;
+        best = -1;
+        scorer.setImage(blurred);
+        for (int i=0; i<count; i++) {
+            int tmp = scorer.score((int)blobs.getX(i),(int)blobs.getY(i));
+            if (tmp>=score) {
+                score = tmp;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    // blob i at full resolution, the center of the coarse pixel
+    public int getX(int i) {
+        return (int)blobs.getX(i)*scale+scale/2;
+    }
+
+    public int getY(int i) {
+        return (int)blobs.getY(i)*scale+scale/2;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public byte[] getBlurred() {
+        return blurred;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public void close() {
+        median.close();
+    }
+}
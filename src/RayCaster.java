@@ -0,0 +1,203 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+// casts rays from a center point and finds the first edge pixel on each, shared by both engines
+public class RayCaster {
+
+    private int count;
+    private double originX;
+    private double originY;
+    private int rayX[];
+    private int rayY[];
+    private int edgeX[];
+    private int edgeY[];
+    private int edges;
+
+    // edge points as doubles, refined to sub-pixel positions by refine(), and the ray and step they were found at
+    private double pointX[];
+    private double pointY[];
+    private int hitRay[];
+    private int hitStep[];
+    private final double samples[] = new double[6];
+
+    public RayCaster(int count) {
+        if (count<1) {
+            throw new IllegalArgumentException("rayCount must be positive");
+        }
+        this.count = count;
+        rayX  = new int[count];
+        rayY  = new int[count];
+        edgeX = new int[count];
+        edgeY = new int[count];
+        pointX  = new double[count];
+        pointY  = new double[count];
+        hitRay  = new int[count];
+        hitStep = new int[count];
+    }
+
+    // endpoints of count rays of the given length, starting straight up from (px,py)
+    public void cast(double px, double py, double length) {
+        originX = px;
+        originY = py;
+        double zx = px;
+        double zy = py-length;
+        for (int i=0; i<count; i++) {
+            double rad = Math.toRadians(i*360.0/count);
+            rayX[i] = (int)(px+Math.cos(rad)*(zx-px)-Math.sin(rad)*(zy-py));
+            rayY[i] = (int)(py+Math.sin(rad)*(zx-px)-Math.cos(rad)*(zy-py));
+        }
+    }
+
+    // walks along every ray through a binary edge map of width x height, returns the number of edges found
+    public int search(byte map[], int width, int height) {
+        double px = originX;
+        double py = originY;
+        // p: Ursprung ("Mittelpunkt" der Ellipse)
+        // v: Zielpunkt (Testpunkt rayX/rayY)
+        // r: Richtungsvektor PV
+        // s: Suchpunkt, Rect(s-1,s+1) covers the 2x2 pixels up and left of s
+        int n = 0;
+        for (int i=0; i<count; i++) {
+            double rx = rayX[i]-px;
+            double ry = rayY[i]-py;
+            double length = Math.sqrt(Math.pow(px-rayX[i],2)+Math.pow(py-rayY[i],2));
+            for (int j=0; j<Math.round(length); j++) {
+                int sx = (int)Math.max(1,Math.min(Math.rint(px+(double)j/length*rx),width -2));
+                int sy = (int)Math.max(1,Math.min(Math.rint(py+(double)j/length*ry),height-2));
+                int k = (sy-1)*width+sx-1;
+                if (isEdge(map[k]) || isEdge(map[k+1]) || isEdge(map[k+width]) || isEdge(map[k+width+1])) {
+                    edgeX[n] = sx;
+                    edgeY[n] = sy;
+                    pointX[n] = sx;
+                    pointY[n] = sy;
+                    hitRay[n] = i;
+                    hitStep[n] = j;
+                    n++;
+                    break;
+                }
+            }
+        }
+        edges = n;
+        return n;
+    }
+
+    // moves every edge point found by search() to the strongest intensity step of image along its ray,
+    // with a parabola through the gradient samples around it for the sub-pixel position
+    public void refine(byte image[], int width, int height) {
+        for (int e=0; e<edges; e++) {
+            int i = hitRay[e];
+            double rx = rayX[i]-originX;
+            double ry = rayY[i]-originY;
+            double length = Math.sqrt(rx*rx+ry*ry);
+            if (length==0) {
+                continue;
+            }
+            double ux = rx/length;
+            double uy = ry/length;
+
+            // the 2x2 window of search() lies up and left of the sample, so look from 3 steps before to 2 after it
+            double t0 = hitStep[e]-3;
+            for (int k=0; k<samples.length; k++) {
+                samples[k] = bilinear(image,width,height,originX+(t0+k)*ux,originY+(t0+k)*uy);
+            }
+            // gradient g(k) between sample k and k+1 lies at t0+k+0.5
+            int best = 0;
+            double max = -1;
+            for (int k=0; k<samples.length-1; k++) {
+                double g = Math.abs(samples[k+1]-samples[k]);
+                if (g>max) {
+                    max = g;
+                    best = k;
+                }
+            }
+            if (max<=0) {
+                continue;
+            }
+            double offset = 0;
+            if (best>0 && best<samples.length-2) {
+                double g0 = Math.abs(samples[best]-samples[best-1]);
+                double g2 = Math.abs(samples[best+2]-samples[best+1]);
+                double d = g0-2*max+g2;
+                if (d<0) {
+                    offset = Math.max(-0.5,Math.min(0.5,0.5*(g0-g2)/d));
+                }
+            }
+            double t = t0+best+0.5+offset;
+            pointX[e] = originX+t*ux;
+            pointY[e] = originY+t*uy;
+        }
+    }
+
+    private static double bilinear(byte image[], int width, int height, double x, double y) {
+        x = Math.max(0,Math.min(x,width-1));
+        y = Math.max(0,Math.min(y,height-1));
+        int x0 = Math.min((int)x,width-2);
+        int y0 = Math.min((int)y,height-2);
+        double fx = x-x0;
+        double fy = y-y0;
+        int k = y0*width+x0;
+        double top    = (image[k]&0xff)*(1-fx)+(image[k+1]&0xff)*fx;
+        double bottom = (image[k+width]&0xff)*(1-fx)+(image[k+width+1]&0xff)*fx;
+        return top*(1-fy)+bottom*fy;
+    }
+
+    private static boolean isEdge(byte b) {
+        return Math.abs(b)==1;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public double getOriginX() {
+        return originX;
+    }
+
+    public double getOriginY() {
+        return originY;
+    }
+
+    public int[] getRayX() {
+        return rayX;
+    }
+
+    public int[] getRayY() {
+        return rayY;
+    }
+
+    public int getEdges() {
+        return edges;
+    }
+
+    public int[] getEdgeX() {
+        return edgeX;
+    }
+
+    public int[] getEdgeY() {
+        return edgeY;
+    }
+
+    // the edge points as doubles, the same as getEdgeX/Y() unless refine() has moved them
+    public double[] getPointX() {
+        return pointX;
+    }
+
+    public double[] getPointY() {
+        return pointY;
+    }
+}
@@ -0,0 +1,244 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// streams a recorded session to a TrackingServer at a fixed frame rate, like an Octopus 900 would,
+// for load tests several clients run in one process on their own connections. Reports the frame
+// rate every client reached, the round trip latency from sending a frame to its result and the
+// detection rate
+public class ReplayClient {
+
+    private final static double PERCENTILES[] = {50,90,99,99.9};
+    // send times of the frames whose results are outstanding, far more than the server reads ahead
+    private final static int RING = 4096;
+
+    private final InetSocketAddress address;
+    private final File input;
+    private final double fps;
+    private final int loops;
+
+    private int sent = 0;
+    private int received = 0;
+    private int found = 0;
+    private int late = 0;
+    private long elapsed = 0;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private IOException error = null;
+
+    public ReplayClient(InetSocketAddress address, File input, double fps, int loops) {
+        this.address = address;
+        this.input   = input;
+        this.fps     = fps;
+        this.loops   = loops;
+    }
+
+    // sends the session loops times, the results are read on a second thread
+    public void run() throws IOException, InterruptedException {
+        final FrameSource frames = PackedSession.open(input);
+        final SocketChannel channel = SocketChannel.open(address);
+        channel.socket().setTcpNoDelay(true);
+        final long sendTimes[] = new long[RING];
+        final int total = frames.size()*loops;
+
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                ByteBuffer record = ByteBuffer.allocate(TrackingServer.RESULT_SIZE);
+                try {
+                    for (int i=0; i<total; i++) {
+                        record.clear();
+                        while (record.hasRemaining()) {
+                            if (channel.read(record)<0) {
+                                throw new EOFException("connection closed after "+i+" results");
+                            }
+                        }
+                        long now = System.nanoTime();
+                        int sequence = record.getInt(0);
+                        int outcome = record.get(TrackingServer.RESULT_SIZE-1);
+                        synchronized (ReplayClient.this) {
+                            latency.record(now-sendTimes[sequence%RING]);
+                            received++;
+                            found += outcome==Outcome.FOUND.ordinal() ? 1 : 0;
+                        }
+                    }
+                } catch (IOException e) {
+                    synchronized (ReplayClient.this) {
+                        error = e;
+                    }
+                }
+            }
+        },"ReplayClient-reader");
+        reader.start();
+
+        long start = System.nanoTime();
+        long period = (long)(1e9/fps);
+        ByteBuffer header = ByteBuffer.allocate(4);
+        byte buffer[] = new byte[TrackingServer.FRAME_SIZE];
+        try {
+            for (int i=0; i<total; i++) {
+                long due = start+i*period;
+                long wait = due-System.nanoTime();
+                if (wait>0) {
+                    Thread.sleep(wait/1000000,(int)(wait%1000000));
+                } else if (wait<-period) {
+                    // the server did not keep up, the frame goes out as soon as possible
+                    late++;
+                }
+                header.clear();
+                header.putInt(0,TrackingServer.FRAME_SIZE);
+                ByteBuffer frame = frames.getFrame(i%frames.size(),buffer).duplicate();
+                frame.limit(frame.position()+TrackingServer.FRAME_SIZE);
+                ByteBuffer data[] = {header,frame};
+                synchronized (this) {
+                    sendTimes[i%RING] = System.nanoTime();
+                }
+                while (frame.hasRemaining()) {
+                    channel.write(data);
+                }
+                sent++;
+            }
+            channel.socket().shutdownOutput();
+            reader.join();
+        } finally {
+            channel.close();
+            frames.close();
+        }
+        elapsed = System.nanoTime()-start;
+        if (error!=null) {
+            throw error;
+        }
+    }
+
+    public synchronized int getSent() {
+        return sent;
+    }
+
+    public synchronized int getReceived() {
+        return received;
+    }
+
+    public synchronized int getFound() {
+        return found;
+    }
+
+    public synchronized int getLate() {
+        return late;
+    }
+
+    public synchronized LatencyHistogram getLatency() {
+        return latency.copy();
+    }
+
+    public double getFramesPerSecond() {
+        return elapsed>0 ? getReceived()/(elapsed/1e9) : 0;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = "localhost";
+        int port = TrackingServer.DEFAULT_PORT;
+        double fps = 60;
+        int clients = 1;
+        int loops = 1;
+        File input = null;
+        for (int i=0; i<args.length; i++) {
+            String a = args[i];
+            boolean value = i+1<args.length;
+            if (a.equals("-host") && value) {
+                host = args[++i];
+            } else if (a.equals("-port") && value) {
+                port = Integer.parseInt(args[++i]);
+            } else if (a.equals("-fps") && value) {
+                fps = Double.parseDouble(args[++i]);
+            } else if (a.equals("-clients") && value) {
+                clients = Integer.parseInt(args[++i]);
+            } else if (a.equals("-loops") && value) {
+                loops = Integer.parseInt(args[++i]);
+            } else if (!a.startsWith("-") && input==null) {
+                input = new File(a);
+            } else {
+                input = null;
+                break;
+            }
+        }
+        if (input==null || fps<=0 || clients<1 || loops<1) {
+            System.err.println("Usage: ReplayClient [-host h] [-port n] [-fps 60] [-clients n] [-loops n] <folder or session file>");
+            System.exit(1);
+        }
+
+        final InetSocketAddress address = new InetSocketAddress(host,port);
+        final List<ReplayClient> replays = new ArrayList<ReplayClient>();
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int c=0; c<clients; c++) {
+            final ReplayClient replay = new ReplayClient(address,input,fps,loops);
+            replays.add(replay);
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        replay.run();
+                    } catch (Exception e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            },"ReplayClient-"+c);
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        LatencyHistogram latency = new LatencyHistogram();
+        int sent = 0, received = 0, found = 0, late = 0;
+        double slowest = Double.MAX_VALUE;
+        for (ReplayClient r : replays) {
+            latency.add(r.getLatency());
+            sent += r.getSent();
+            received += r.getReceived();
+            found += r.getFound();
+            late += r.getLate();
+            slowest = Math.min(slowest,r.getFramesPerSecond());
+        }
+        System.out.println(String.format(Locale.ROOT,"%d clients at %.1f fps: %d frames sent, %d results, %d late, slowest client %.1f fps",
+                clients,fps,sent,received,late,slowest));
+        System.out.println(String.format(Locale.ROOT,"detection   %.2f%%",received>0 ? 100.0*found/received : 0));
+        StringBuilder sb = new StringBuilder(String.format(Locale.ROOT,"latency ms  mean %.3f",latency.getMean()/1e6));
+        for (double p : PERCENTILES) {
+            sb.append(String.format(Locale.ROOT," p%s %.3f",p==(int)p ? String.valueOf((int)p) : String.valueOf(p),
+                    latency.getValueAtPercentile(p)/1e6));
+        }
+        sb.append(String.format(Locale.ROOT," max %.3f",latency.getMax()/1e6));
+        System.out.println(sb);
+        for (Throwable e : errors) {
+            System.err.println(e);
+        }
+        if (!errors.isEmpty()) {
+            System.exit(2);
+        }
+    }
+}
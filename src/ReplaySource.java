@@ -0,0 +1,147 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Replays a recorded session into a pipeline at a fixed frame rate, standing in for the perimeter.
+public class ReplaySource {
+
+    private final FrameSource frames;
+    private final FramePipeline pipeline;
+    private final double fps;
+    private final boolean loop;
+
+    private volatile boolean running = false;
+    private volatile IOException error = null;
+    private Thread thread;
+    private long emitted = 0;
+
+    public ReplaySource(FrameSource frames, FramePipeline pipeline, double fps, boolean loop) {
+        if (fps<=0) {
+            throw new IllegalArgumentException("fps must be positive");
+        }
+        this.frames   = frames;
+        this.pipeline = pipeline;
+        this.fps      = fps;
+        this.loop     = loop;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(new Runnable() {
+            public void run() {
+                replay();
+            }
+        },"OctoEye-replay");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void stop() throws InterruptedException {
+        running = false;
+        if (thread!=null) {
+            thread.interrupt();
+            thread.join();
+        }
+    }
+
+    public void join() throws InterruptedException {
+        thread.join();
+    }
+
+    private void replay() {
+        long period = (long)(1e9/fps);
+        long next = System.nanoTime();
+        byte buffer[] = new byte[FramePipeline.FRAME_SIZE];
+        try {
+            do {
+                for (int i=0; i<frames.size() && running; i++) {
+                    long wait = next-System.nanoTime();
+                    if (wait>0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                    next += period;
+
+                    pipeline.push(frames.getFrame(i,buffer),frames.getName(i));
+                    emitted++;
+                }
+            } while (loop && running);
+        } catch (InterruptedException e) {
+            // stopped
+        } catch (IOException e) {
+            error = e;
+        } finally {
+            running = false;
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public long getEmitted() {
+        return emitted;
+    }
+
+    public IOException getError() {
+        return error;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length<1 || args.length>2) {
+            System.err.println("Usage: ReplaySource <folder or session file> [fps]");
+            System.exit(1);
+        }
+
+        FrameSource frames = PackedSession.open(new File(args[0]));
+        double fps = args.length>1 ? Double.parseDouble(args[1]) : 60;
+
+        FramePipeline pipeline = new FramePipeline(8,FramePipeline.DropPolicy.DROP_OLDEST);
+        pipeline.addListener(new ResultListener() {
+            public void onResult(TrackingResult result) {
+                System.out.println(result.toCsv());
+            }
+        });
+        pipeline.start();
+
+        ReplaySource replay = new ReplaySource(frames,pipeline,fps,false);
+        replay.start();
+        while (replay.isRunning()) {
+            Thread.sleep(1000);
+            System.err.println(pipeline.getSummary());
+        }
+        replay.join();
+
+        // let the pipeline drain before stopping it
+        while (pipeline.getLatencyStats().getCount()+pipeline.getDropped()<replay.getEmitted()) {
+            Thread.sleep(10);
+        }
+        pipeline.stop();
+        frames.close();
+        if (replay.getError()!=null) {
+            throw replay.getError();
+        }
+        System.err.println(pipeline.getSummary());
+        System.err.println(pipeline.getMetrics().snapshot().toLogLine());
+    }
+}
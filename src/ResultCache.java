@@ -0,0 +1,471 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// caches tracking results by frame content and tracker parameters. The memory tier is an LRU bounded
+// by the estimated size of its entries and may hold rendered images as well, the optional disk tier
+// keeps the results (not the images) in an append-only file so a rerun over the same session is cheap.
+// Only the offsets of the records are kept in memory and count against the same bound, the file is
+// compacted to the most recently used half when it holds more records than that bound allows.
+public class ResultCache {
+
+    private final static int MAGIC   = 0x4F435243;
+    private final static int VERSION = 1;
+    private final static int HEADER_BYTES = 8;
+    private final static int RECORD_BYTES = 58;
+    // records written between two flushes of the disk tier
+    private final static int FLUSH_RECORDS = 256;
+
+    // rough size of an entry without images, key, result, name and map overhead
+    private final static int ENTRY_BYTES = 200;
+    // rough size of a record offset in the index, key, boxed offset and map overhead
+    private final static int INDEX_BYTES = 80;
+
+    private final long maxBytes;
+    private long bytes = 0;
+    private final LinkedHashMap<Key,Entry> entries = new LinkedHashMap<Key,Entry>(256,0.75f,true);
+
+    private File file;
+    private DataOutputStream out;
+    private RandomAccessFile in;
+    private int unflushed = 0;
+    // offset of the next record and how much of the file is written out
+    private long length = 0;
+    private long flushed = 0;
+    // records in the file, including those of keys written twice
+    private long records = 0;
+    private final long maxRecords;
+    // file offsets of the records, least recently used first
+    private LinkedHashMap<Key,Long> index = new LinkedHashMap<Key,Long>(256,0.75f,true);
+
+    private long hits = 0;
+    private long diskHits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    private static class Key {
+        final long frame;
+        final long parameters;
+
+        Key(long frame, long parameters) {
+            this.frame      = frame;
+            this.parameters = parameters;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key)o;
+            return k.frame==frame && k.parameters==parameters;
+        }
+
+        public int hashCode() {
+            long h = frame*31+parameters;
+            return (int)(h^(h>>>32));
+        }
+    }
+
+    public static class Entry {
+        final TrackingResult result;
+        final BufferedImage images[];
+        final long bytes;
+
+        Entry(TrackingResult result, BufferedImage images[]) {
+            this.result = result;
+            this.images = images;
+            long size = ENTRY_BYTES;
+            for (BufferedImage image : images) {
+                size += (long)image.getWidth()*image.getHeight()*image.getColorModel().getPixelSize()/8;
+            }
+            bytes = size;
+        }
+
+        public TrackingResult getResult() {
+            return result;
+        }
+
+        // the images given to put(), empty if there were none or the entry came from disk
+        public BufferedImage[] getImages() {
+            return images;
+        }
+    }
+
+    public ResultCache(long maxBytes) {
+        if (maxBytes<=0) {
+            throw new IllegalArgumentException("maxBytes must be positive");
+        }
+        this.maxBytes = maxBytes;
+        maxRecords = Math.max(2,maxBytes/(2*INDEX_BYTES));
+    }
+
+    // 64 bit hash of the frame content, 8 bytes per step with a multiply-rotate mix
+    public static long hash(byte frame[]) {
+        return hash(ByteBuffer.wrap(frame));
+    }
+
+    // the same hash for the remaining bytes of a buffer, mapped frames need not be copied first
+    public static long hash(ByteBuffer frame) {
+        ByteBuffer b = frame.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int start = b.position();
+        int n = b.remaining();
+        long h = 0x9E3779B97F4A7C15L^n;
+        int i = 0;
+        for (; i+8<=n; i+=8) {
+            h = Long.rotateLeft(h^(b.getLong(start+i)*0xC2B2AE3D27D4EB4FL),31)*0x9E3779B97F4A7C15L;
+        }
+        for (; i<n; i++) {
+            h = Long.rotateLeft(h^((b.get(start+i)&0xffL)*0xC2B2AE3D27D4EB4FL),31)*0x9E3779B97F4A7C15L;
+        }
+        h ^= h>>>33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h>>>33;
+        return h;
+    }
+
+    // everything besides the frame the result depends on
+    public static long parameters(PupilTracker tracker) {
+        long h = tracker.getClass().getName().hashCode();
+        h = h*31+tracker.getParameters().hashCode();
+        SymbolDetector symbols = tracker.getSymbolDetector();
+        synchronized (symbols) {
+            h = h*31+symbols.size();
+            for (int i=0; i<symbols.size(); i++) {
+                h = h*31+symbols.getTemplate(i).hashCode();
+            }
+        }
+        h = h*31+(tracker.isSubpixelEdges() ? 1 : 0);
+        h = h*31+(tracker.isRobustFit() ? 1 : 0);
+        h = h*31+tracker.getPyramidLevel();
+        if (tracker.isQualityGate()) {
+            FrameQualityGate g = tracker.getQualityGate();
+            h = h*31+g.getDarkLevel();
+            h = h*31+g.getMinDarkPixels();
+            h = h*31+g.getMinContrast();
+            h = h*31+Double.doubleToLongBits(g.getMaxDarkFraction());
+            h = h*31+Double.doubleToLongBits(g.getMinSharpness());
+            h = h*31+Double.doubleToLongBits(g.getMaxChange());
+        }
+        return h;
+    }
+
+    // keep the results in file as well, the entries already in it are indexed. A record cut off by a
+    // killed process is dropped, so the next ones are appended where the last complete one ends
+    public synchronized void open(File file) throws IOException {
+        close();
+        long valid = file.exists() ? load(file) : 0;
+        if (file.exists() && file.length()>valid) {
+            RandomAccessFile raf = new RandomAccessFile(file,"rw");
+            try {
+                raf.setLength(valid);
+            } finally {
+                raf.close();
+            }
+        }
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file,true)));
+        if (valid==0) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.flush();
+            valid = HEADER_BYTES;
+        }
+        in = new RandomAccessFile(file,"r");
+        length = valid;
+        flushed = valid;
+        unflushed = 0;
+        this.file = file;
+        if (records>maxRecords) {
+            compact();
+        }
+    }
+
+    // indexes the complete records and returns the length of the header and these records, 0 if not even
+    // the header is complete. Records with an invalid outcome or decision are skipped, they all have the
+    // same size, so the records after them are still found
+    private long load(File file) throws IOException {
+        if (file.length()<HEADER_BYTES) {
+            return 0;
+        }
+        long n = (file.length()-HEADER_BYTES)/RECORD_BYTES;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt()!=MAGIC || in.readInt()!=VERSION) {
+                throw new IOException("not a result cache file: "+file);
+            }
+            byte record[] = new byte[RECORD_BYTES];
+            ByteBuffer b = ByteBuffer.wrap(record);
+            int skipped = 0;
+            for (long i=0; i<n; i++) {
+                in.readFully(record);
+                if (decode(b)==null) {
+                    skipped++;
+                    continue;
+                }
+                index.put(new Key(b.getLong(0),b.getLong(8)),HEADER_BYTES+i*RECORD_BYTES);
+            }
+            records = n;
+            if (skipped>0) {
+                System.err.println("result cache "+file+": skipped "+skipped+" invalid records");
+            }
+            return HEADER_BYTES+n*RECORD_BYTES;
+        } finally {
+            in.close();
+        }
+    }
+
+    // the result of a record, null if its flags or outcome are not ones put() writes
+    private static TrackingResult decode(ByteBuffer b) {
+        int flags = b.get(56);
+        int outcome = b.get(57);
+        Outcome outcomes[] = Outcome.values();
+        // bits 0 and 1 are star and ring, bits 2 and 3 the decision index plus one, the others are unused
+        int decision = ((flags>>2)&3)-1;
+        if ((flags&~0xf)!=0 || decision>=FrameQualityGate.Decision.values().length
+                || outcome<0 || outcome>=outcomes.length) {
+            return null;
+        }
+        return new TrackingResult(-1,null,b.getLong(16),b.getInt(24),b.getInt(28),b.getDouble(32),b.getDouble(40),
+                b.getDouble(48),(flags&1)!=0,(flags&2)!=0,outcomes[outcome],TrackingResult.decision(flags));
+    }
+
+    private TrackingResult read(long offset) throws IOException {
+        if (offset+RECORD_BYTES>flushed) {
+            flush();
+        }
+        byte record[] = new byte[RECORD_BYTES];
+        in.seek(offset);
+        in.readFully(record);
+        return decode(ByteBuffer.wrap(record));
+    }
+
+    // the cached entry or null, its result carries the index and name of the frame it was put for,
+    // use TrackingResult.withFrame() to report it for another one
+    public synchronized Entry get(long frame, long parameters) {
+        Key key = new Key(frame,parameters);
+        Entry e = entries.get(key);
+        if (e!=null) {
+            hits++;
+            return e;
+        }
+        Long offset = in!=null ? index.get(key) : null;
+        if (offset!=null) {
+            TrackingResult r = null;
+            try {
+                r = read(offset);
+            } catch (IOException ex) {
+                System.err.println("result cache "+file+": "+ex.getMessage());
+            }
+            if (r!=null) {
+                diskHits++;
+                e = new Entry(r,new BufferedImage[0]);
+                insert(key,e);
+                return e;
+            }
+            index.remove(key);
+        }
+        misses++;
+        return null;
+    }
+
+    // the images are stored as they are, pass copies if the caller reuses them
+    public synchronized Entry put(long frame, long parameters, TrackingResult result, BufferedImage... images) {
+        Key key = new Key(frame,parameters);
+        Entry entry = new Entry(result,images);
+        if (out!=null && !index.containsKey(key)) {
+            try {
+                out.writeLong(frame);
+                out.writeLong(parameters);
+                out.writeLong(result.getTime());
+                out.writeInt(result.getPupilMajorAxis());
+                out.writeInt(result.getPupilMinorAxis());
+                out.writeDouble(result.getAngle());
+                out.writeDouble(result.getCenterX());
+                out.writeDouble(result.getCenterY());
+                out.writeByte(result.getFlags());
+                out.writeByte(result.getOutcome().ordinal());
+                index.put(key,length);
+                length += RECORD_BYTES;
+                records++;
+                if (records>maxRecords) {
+                    compact();
+                } else if (++unflushed>=FLUSH_RECORDS) {
+                    flush();
+                }
+            } catch (IOException e) {
+                // the memory tier still works, stop writing to a broken file
+                System.err.println("result cache "+file+": "+e.getMessage());
+                closeQuietly();
+            }
+        }
+        insert(key,entry);
+        return entry;
+    }
+
+    // rewrites the file with the most recently used half of its records
+    private void compact() throws IOException {
+        flush();
+        File tmp = new File(file.getPath()+".tmp");
+        DataOutputStream o = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        LinkedHashMap<Key,Long> kept = new LinkedHashMap<Key,Long>(256,0.75f,true);
+        long offset = HEADER_BYTES;
+        try {
+            o.writeInt(MAGIC);
+            o.writeInt(VERSION);
+            byte record[] = new byte[RECORD_BYTES];
+            long skip = index.size()-maxRecords/2;
+            for (Map.Entry<Key,Long> e : index.entrySet()) {
+                if (skip-->0) {
+                    continue;
+                }
+                in.seek(e.getValue());
+                in.readFully(record);
+                o.write(record);
+                kept.put(e.getKey(),offset);
+                offset += RECORD_BYTES;
+            }
+        } finally {
+            o.close();
+        }
+        out.close();
+        in.close();
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+            throw new IOException("cannot replace "+file+" by "+tmp);
+        }
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file,true)));
+        in = new RandomAccessFile(file,"r");
+        index = kept;
+        length = offset;
+        flushed = offset;
+        records = kept.size();
+        unflushed = 0;
+    }
+
+    private void insert(Key key, Entry e) {
+        Entry old = entries.put(key,e);
+        if (old!=null) {
+            bytes -= old.bytes;
+        }
+        bytes += e.bytes;
+        Iterator<Entry> it = entries.values().iterator();
+        while (bytes+index.size()*INDEX_BYTES>maxBytes && it.hasNext()) {
+            Entry eldest = it.next();
+            if (eldest==e) {
+                break;
+            }
+            it.remove();
+            bytes -= eldest.bytes;
+            evictions++;
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    // writes the buffered records of the disk tier, a killed process loses at most the last FLUSH_RECORDS
+    public synchronized void flush() throws IOException {
+        if (out!=null) {
+            out.flush();
+            flushed = length;
+            unflushed = 0;
+        }
+    }
+
+    // ends the disk tier, the memory tier stays
+    public synchronized void close() throws IOException {
+        index.clear();
+        records = 0;
+        try {
+            if (out!=null) {
+                out.close();
+            }
+        } finally {
+            out = null;
+            if (in!=null) {
+                in.close();
+                in = null;
+            }
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException e) {
+            // already broken
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getDiskHits() {
+        return diskHits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    // the memory tier and the offsets of the disk tier
+    public synchronized long getBytes() {
+        return bytes+index.size()*INDEX_BYTES;
+    }
+
+    // records in the file of the disk tier
+    public synchronized long getRecords() {
+        return records;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized String getSummary() {
+        long lookups = hits+diskHits+misses;
+        return String.format(Locale.ROOT,"cache: %d hits, %d disk hits, %d misses (%.1f%% hit rate), %d evictions, %d entries, %.1f of %.1f MB",
+                hits,diskHits,misses,lookups>0 ? 100.0*(hits+diskHits)/lookups : 0,evictions,entries.size(),
+                getBytes()/1048576.0,maxBytes/1048576.0);
+    }
+}
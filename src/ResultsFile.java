@@ -0,0 +1,508 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+
+// Per-frame results of a whole session, stored column by column in blocks so a single column can be read
+// from the memory-mapped file without touching the others.
+//
+//  header   int magic, int version, int stages
+//  blocks   int rows, then every column as rows values of its width, in the order of Column and
+//           the stage timings in the order of PipelineStage
+//
+// All numbers are big-endian. New blocks are only appended, a block cut off by a crash is dropped
+// when the file is read or opened for appending.
+public class ResultsFile {
+
+    public final static int MAGIC   = 0x4F435253; // "OCRS"
+    public final static int VERSION = 1;
+
+    private final static int HEADER_SIZE = 3*4;
+    private final static PipelineStage STAGES[] = PipelineStage.values();
+    private final static Outcome OUTCOMES[] = Outcome.values();
+
+    public enum Column {
+        FRAME(4),
+        TIMESTAMP(8),
+        // processing time in ms
+        TIME(4),
+        CENTER_X(8),
+        CENTER_Y(8),
+        MAJOR(2),
+        MINOR(2),
+        ANGLE(8),
+        // bit 0 star, bit 1 ring, bits 2 and 3 the quality gate decision, see TrackingResult.getFlags()
+        FLAGS(1),
+        // ordinal of the Outcome, the failure reason if the pupil was not found
+        OUTCOME(1);
+
+        final int width;
+
+        Column(int width) {
+            this.width = width;
+        }
+    }
+
+    private final static Column COLUMNS[] = Column.values();
+
+    // stage timings are stored in µs, -1 if the stage did not run
+    private final static int STAGE_WIDTH = 4;
+
+    private final static int WIDTHS[] = new int[COLUMNS.length+STAGES.length];
+    private final static int ROW_SIZE;
+    static {
+        int size = 0;
+        for (int c=0; c<WIDTHS.length; c++) {
+            WIDTHS[c] = c<COLUMNS.length ? COLUMNS[c].width : STAGE_WIDTH;
+            size += WIDTHS[c];
+        }
+        ROW_SIZE = size;
+    }
+
+    private final File file;
+    private final MappedByteBuffer map;
+    private final int rows;
+    // position of each block and of the first row in it, the last entry of firstRow is rows
+    private final int blockPosition[];
+    private final int firstRow[];
+
+    public ResultsFile(File file) throws IOException {
+        this.file = file;
+        RandomAccessFile raf = new RandomAccessFile(file,"r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size()>Integer.MAX_VALUE) {
+                throw new IOException("Results file too large: "+file);
+            }
+            map = channel.map(FileChannel.MapMode.READ_ONLY,0,channel.size());
+        } finally {
+            raf.close();
+        }
+        int end = checkHeader(map,file);
+        int count = 0;
+        int p = HEADER_SIZE;
+        int positions[] = new int[16];
+        int first[] = new int[17];
+        while (p<end) {
+            if (count+1>=positions.length) {
+                positions = Arrays.copyOf(positions,2*positions.length);
+                first = Arrays.copyOf(first,2*first.length);
+            }
+            positions[count] = p;
+            first[count+1] = first[count]+map.getInt(p);
+            p += 4+map.getInt(p)*ROW_SIZE;
+            count++;
+        }
+        blockPosition = Arrays.copyOf(positions,count);
+        firstRow = Arrays.copyOf(first,count+1);
+        rows = firstRow[count];
+    }
+
+    // validates the header and returns the end of the last complete block
+    private static int checkHeader(ByteBuffer buffer, File file) throws IOException {
+        if (buffer.limit()<HEADER_SIZE || buffer.getInt(0)!=MAGIC) {
+            throw new IOException("Not a results file: "+file);
+        }
+        int version = buffer.getInt(4);
+        if (version!=VERSION) {
+            throw new IOException("Unsupported results file version "+version+": "+file);
+        }
+        if (buffer.getInt(8)!=STAGES.length) {
+            throw new IOException("Results file has "+buffer.getInt(8)+" stages instead of "+STAGES.length+": "+file);
+        }
+        int p = HEADER_SIZE;
+        while (p+4<=buffer.limit()) {
+            long next = p+4+(long)buffer.getInt(p)*ROW_SIZE;
+            if (buffer.getInt(p)<=0 || next>buffer.limit()) {
+                break;
+            }
+            p = (int)next;
+        }
+        return p;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int size() {
+        return rows;
+    }
+
+    private int block(int row) {
+        int b = Arrays.binarySearch(firstRow,row);
+        return b>=0 ? b : -b-2;
+    }
+
+    // offset of row in column c
+    private int offset(int c, int row) {
+        int b = block(row);
+        int p = blockPosition[b];
+        int count = firstRow[b+1]-firstRow[b];
+        int offset = p+4;
+        for (int i=0; i<c; i++) {
+            offset += WIDTHS[i]*count;
+        }
+        return offset+WIDTHS[c]*(row-firstRow[b]);
+    }
+
+    private long value(int c, int offset) {
+        switch (WIDTHS[c]) {
+            case 1:  return map.get(offset);
+            case 2:  return map.getShort(offset);
+            case 4:  return map.getInt(offset);
+            default: return map.getLong(offset);
+        }
+    }
+
+    public TrackingResult getResult(int row, String name) {
+        long values[] = new long[COLUMNS.length];
+        for (int c=0; c<values.length; c++) {
+            values[c] = get(COLUMNS[c],row);
+        }
+        return result(values,name);
+    }
+
+    // the result of one row from the values of its columns, in the order of Column
+    private static TrackingResult result(long values[], String name) {
+        int frame = (int)values[Column.FRAME.ordinal()];
+        int flags = (int)values[Column.FLAGS.ordinal()];
+        int outcome = (int)values[Column.OUTCOME.ordinal()];
+        return new TrackingResult(frame,name!=null ? name : String.valueOf(frame),values[Column.TIME.ordinal()],
+                (int)values[Column.MAJOR.ordinal()],(int)values[Column.MINOR.ordinal()],
+                Double.longBitsToDouble(values[Column.ANGLE.ordinal()]),
+                Double.longBitsToDouble(values[Column.CENTER_X.ordinal()]),
+                Double.longBitsToDouble(values[Column.CENTER_Y.ordinal()]),
+                (flags&1)!=0,(flags&2)!=0,outcome>=0 ? OUTCOMES[outcome] : null,TrackingResult.decision(flags));
+    }
+
+    // integer columns, the double columns as raw bits
+    public long get(Column column, int row) {
+        int c = column.ordinal();
+        return value(c,offset(c,row));
+    }
+
+    public double getDouble(Column column, int row) {
+        return Double.longBitsToDouble(get(column,row));
+    }
+
+    // duration of the stage in µs, -1 if it did not run
+    public int getStage(PipelineStage stage, int row) {
+        int c = COLUMNS.length+stage.ordinal();
+        return (int)value(c,offset(c,row));
+    }
+
+    public Cursor column(Column column) {
+        return new Cursor(column.ordinal());
+    }
+
+    public Cursor stage(PipelineStage stage) {
+        return new Cursor(COLUMNS.length+stage.ordinal());
+    }
+
+    // walks through all values of one column, block by block
+    public class Cursor {
+
+        private final int column;
+        private int block = -1;
+        private int offset;
+        private int left = 0;
+        private int row = -1;
+
+        private Cursor(int column) {
+            this.column = column;
+        }
+
+        public boolean next() {
+            while (left==0) {
+                if (block+1>=blockPosition.length) {
+                    return false;
+                }
+                block++;
+                left = firstRow[block+1]-firstRow[block];
+                offset = blockPosition[block]+4;
+                for (int i=0; i<column; i++) {
+                    offset += WIDTHS[i]*left;
+                }
+                offset -= WIDTHS[column];
+            }
+            offset += WIDTHS[column];
+            left--;
+            row++;
+            return true;
+        }
+
+        public int getRow() {
+            return row;
+        }
+
+        public long getLong() {
+            return value(column,offset);
+        }
+
+        public int getInt() {
+            return (int)value(column,offset);
+        }
+
+        public double getDouble() {
+            return Double.longBitsToDouble(value(column,offset));
+        }
+    }
+
+    public static String header() {
+        StringBuilder sb = new StringBuilder(TrackingResult.header()).append(",timestamp,gate");
+        for (PipelineStage stage : STAGES) {
+            sb.append(',').append(stage.name().toLowerCase(Locale.ROOT));
+        }
+        return sb.toString();
+    }
+
+    // the columns of TrackingResult.toCsv(), then the timestamp, the quality gate decision and the stage timings in ms,
+    // the file names are taken from names if given, otherwise the frame index is used
+    public void exportCsv(PrintWriter out, FrameSource names) {
+        out.println(header());
+        StringBuilder sb = new StringBuilder();
+        // one cursor per column walks the blocks in step with the others, no lookup per value
+        Cursor cursors[] = new Cursor[WIDTHS.length];
+        for (int c=0; c<cursors.length; c++) {
+            cursors[c] = new Cursor(c);
+        }
+        long values[] = new long[COLUMNS.length];
+        while (cursors[0].next()) {
+            for (int c=1; c<cursors.length; c++) {
+                cursors[c].next();
+            }
+            for (int c=0; c<values.length; c++) {
+                values[c] = cursors[c].getLong();
+            }
+            int frame = (int)values[Column.FRAME.ordinal()];
+            String name = names!=null && frame>=0 && frame<names.size() ? names.getName(frame) : null;
+            sb.setLength(0);
+            TrackingResult r = result(values,name);
+            sb.append(r.toCsv()).append(',').append(values[Column.TIMESTAMP.ordinal()]).append(',');
+            if (r.getDecision()!=null) {
+                sb.append(r.getDecision().name().toLowerCase(Locale.ROOT));
+            }
+            for (int s=0; s<STAGES.length; s++) {
+                int us = cursors[COLUMNS.length+s].getInt();
+                sb.append(',');
+                if (us>=0) {
+                    sb.append(String.format(Locale.ROOT,"%.3f",us/1000.0));
+                }
+            }
+            out.println(sb);
+        }
+        out.flush();
+    }
+
+    // appends rows to a results file, a block is written when it is full or flushInterval ms after its first row
+    public static class Writer {
+
+        private final FileChannel channel;
+        private final RandomAccessFile raf;
+        private final int blockRows;
+        private final ByteBuffer columns[] = new ByteBuffer[WIDTHS.length];
+        private final ByteBuffer block;
+        private int count = 0;
+        private long flushInterval = 1000;
+        private long blockStart;
+        private int written = 0;
+        // writes a block flushInterval ms after its first row also when no more rows arrive
+        private Thread flusher = null;
+
+        public Writer(File file, boolean append, int blockRows) throws IOException {
+            if (blockRows<1) {
+                throw new IllegalArgumentException("blockRows must be positive");
+            }
+            this.blockRows = blockRows;
+            raf = new RandomAccessFile(file,"rw");
+            try {
+                channel = raf.getChannel();
+                if (append && channel.size()>0) {
+                    if (channel.size()>Integer.MAX_VALUE) {
+                        throw new IOException("Results file too large: "+file);
+                    }
+                    ByteBuffer existing = ByteBuffer.allocate((int)channel.size());
+                    while (existing.hasRemaining()) {
+                        if (channel.read(existing,existing.position())<0) {
+                            throw new IOException("Unexpected end of results file: "+file);
+                        }
+                    }
+                    existing.flip();
+                    int end = checkHeader(existing,file);
+                    channel.truncate(end);
+                    channel.position(end);
+                } else {
+                    channel.truncate(0);
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                    header.putInt(MAGIC).putInt(VERSION).putInt(STAGES.length).flip();
+                    writeFully(header);
+                }
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+            for (int c=0; c<columns.length; c++) {
+                columns[c] = ByteBuffer.allocate(WIDTHS[c]*blockRows);
+            }
+            block = ByteBuffer.allocateDirect(4+ROW_SIZE*blockRows);
+        }
+
+        public Writer(File file) throws IOException {
+            this(file,false,4096);
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        // 0 writes a block only when it is full or on flush()
+        public synchronized void setFlushInterval(long flushInterval) {
+            this.flushInterval = flushInterval;
+        }
+
+        public synchronized long getFlushInterval() {
+            return flushInterval;
+        }
+
+        private void startFlusher() {
+            flusher = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (true) {
+                            long wait;
+                            synchronized (Writer.this) {
+                                long due = blockStart+flushInterval-System.currentTimeMillis();
+                                if (count>0 && flushInterval>0 && due<=0) {
+                                    try {
+                                        flush();
+                                    } catch (IOException e) {
+                                        System.err.println("results file: "+e.getMessage());
+                                        return;
+                                    }
+                                }
+                                wait = count>0 && flushInterval>0 ? Math.max(1,due) : Math.max(1,flushInterval);
+                            }
+                            Thread.sleep(wait);
+                        }
+                    } catch (InterruptedException e) {
+                        // closed
+                    }
+                }
+            },"OctoEye-results");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+
+        // stageNanos as returned by PupilTracker.getStageNanos, null if the frame was not processed, e.g. a cached result
+        public synchronized void append(TrackingResult result, long timestamp, long stageNanos[]) throws IOException {
+            if (count==0) {
+                blockStart = System.currentTimeMillis();
+                if (flusher==null && flushInterval>0) {
+                    startFlusher();
+                }
+            }
+            Outcome outcome = result.getOutcome();
+            columns[Column.FRAME.ordinal()].putInt(result.getIndex());
+            columns[Column.TIMESTAMP.ordinal()].putLong(timestamp);
+            columns[Column.TIME.ordinal()].putInt((int)Math.min(result.getTime(),Integer.MAX_VALUE));
+            columns[Column.CENTER_X.ordinal()].putDouble(result.getCenterX());
+            columns[Column.CENTER_Y.ordinal()].putDouble(result.getCenterY());
+            columns[Column.MAJOR.ordinal()].putShort((short)result.getPupilMajorAxis());
+            columns[Column.MINOR.ordinal()].putShort((short)result.getPupilMinorAxis());
+            columns[Column.ANGLE.ordinal()].putDouble(result.getAngle());
+            columns[Column.FLAGS.ordinal()].put((byte)result.getFlags());
+            columns[Column.OUTCOME.ordinal()].put((byte)(outcome!=null ? outcome.ordinal() : -1));
+            for (int s=0; s<STAGES.length; s++) {
+                long ns = stageNanos!=null ? stageNanos[s] : -1;
+                columns[COLUMNS.length+s].putInt(ns<0 ? -1 : (int)Math.min(ns/1000,Integer.MAX_VALUE));
+            }
+            count++;
+            if (count==blockRows || (flushInterval>0 && System.currentTimeMillis()-blockStart>=flushInterval)) {
+                flush();
+            }
+        }
+
+        // writes the rows appended so far as a block
+        public synchronized void flush() throws IOException {
+            if (count==0) {
+                return;
+            }
+            block.clear();
+            block.putInt(count);
+            for (ByteBuffer column : columns) {
+                column.flip();
+                block.put(column);
+                column.clear();
+            }
+            block.flip();
+            writeFully(block);
+            written += count;
+            count = 0;
+        }
+
+        // rows written to the file, without the ones still buffered
+        public synchronized int getWritten() {
+            return written;
+        }
+
+        public synchronized void close() throws IOException {
+            if (flusher!=null) {
+                flusher.interrupt();
+                flusher = null;
+            }
+            try {
+                flush();
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length<1 || args.length>3) {
+            System.err.println("Usage: ResultsFile <results file> [folder or session file] [output.csv]");
+            System.exit(1);
+        }
+
+        ResultsFile results = new ResultsFile(new File(args[0]));
+        FrameSource names = args.length>1 ? PackedSession.open(new File(args[1])) : null;
+        PrintWriter out = args.length>2
+                ? new PrintWriter(new OutputStreamWriter(new FileOutputStream(args[2]),"UTF-8"))
+                : new PrintWriter(System.out);
+        results.exportCsv(out,names);
+        if (args.length>2) {
+            out.close();
+        }
+        if (names!=null) {
+            names.close();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.Arrays;
+
+// iteratively reweighted least-squares ellipse fit: every point is weighted with Tukey's biweight of its
+// distance to the last ellipse, measured along the line to the center and scaled by the median absolute
+// distance, so outliers drop out however many there are instead of a fixed number of farthest points
+public class RobustEllipseFit {
+
+    private int iterations = 5;
+    // Tukey's tuning constant in units of the robust scale
+    private double tuning = 4.685;
+    // lower bound of the scale in pixels, keeps exact points from turning everything else into outliers
+    private double minScale = 0.5;
+
+    private double weights[] = new double[0];
+    private double trial[] = new double[0];
+    private double residuals[] = new double[0];
+    private double sorted[] = new double[0];
+    private final double first[] = new double[5];
+    private final double next[] = new double[5];
+    private int inliers = 0;
+
+    // fits the first n points, ellipse as in EllipseFit, returns false if there is no ellipse
+    public boolean fit(double x[], double y[], int n, double ellipse[]) {
+        if (weights.length<n) {
+            weights   = new double[n];
+            trial     = new double[n];
+            residuals = new double[n];
+            sorted    = new double[n];
+        }
+        Arrays.fill(weights,0,n,1);
+        inliers = n;
+        if (!EllipseFit.fit(x,y,null,n,first)) {
+            return false;
+        }
+        System.arraycopy(first,0,ellipse,0,5);
+
+        for (int it=0; it<iterations; it++) {
+            for (int i=0; i<n; i++) {
+                residuals[i] = distance(ellipse,x[i],y[i]);
+                sorted[i] = Math.abs(residuals[i]);
+            }
+            Arrays.sort(sorted,0,n);
+            double median = n%2==1 ? sorted[n/2] : (sorted[n/2-1]+sorted[n/2])/2;
+            double scale = Math.max(1.4826*median,minScale);
+
+            int count = 0;
+            for (int i=0; i<n; i++) {
+                double u = residuals[i]/(tuning*scale);
+                trial[i] = Math.abs(u)<1 ? (1-u*u)*(1-u*u) : 0;
+                count += trial[i]>0 ? 1 : 0;
+            }
+            if (count<5 || !EllipseFit.fit(x,y,trial,n,next)) {
+                break;
+            }
+            System.arraycopy(trial,0,weights,0,n);
+            inliers = count;
+            boolean converged = Math.abs(next[0]-ellipse[0])<1e-3 && Math.abs(next[1]-ellipse[1])<1e-3
+                    && Math.abs(next[2]-ellipse[2])<1e-3 && Math.abs(next[3]-ellipse[3])<1e-3;
+            System.arraycopy(next,0,ellipse,0,5);
+            if (converged) {
+                break;
+            }
+        }
+        return true;
+    }
+
+    // signed distance of (x,y) to the ellipse along the line through the center, positive outside
+    public static double distance(double ellipse[], double x, double y) {
+        double dx = x-ellipse[0];
+        double dy = y-ellipse[1];
+        double theta = Math.toRadians(ellipse[4]);
+        double u = dx*Math.cos(theta)+dy*Math.sin(theta);
+        double v = -dx*Math.sin(theta)+dy*Math.cos(theta);
+        double a = ellipse[2]/2;
+        double b = ellipse[3]/2;
+        double r = Math.sqrt((u/a)*(u/a)+(v/b)*(v/b));
+        if (r==0) {
+            return -Math.min(a,b);
+        }
+        return Math.sqrt(dx*dx+dy*dy)*(1-1/r);
+    }
+
+    // the unweighted fit of all points the iterations started from
+    public double[] getFirst() {
+        return first;
+    }
+
+    // weights of the last fit, 0 for the outliers
+    public double[] getWeights() {
+        return weights;
+    }
+
+    public int getInliers() {
+        return inliers;
+    }
+
+    public void setIterations(int iterations) {
+        this.iterations = iterations;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class StageStats {
+
+    private final String name;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max   = new AtomicLong();
+
+    public StageStats(String name) {
+        this.name = name;
+    }
+
+    public void record(long nanos) {
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        long m = max.get();
+        while (nanos>m && !max.compareAndSet(m,nanos)) {
+            m = max.get();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public double getMeanNanos() {
+        long n = count.get();
+        return n>0 ? (double)total.get()/n : 0;
+    }
+
+    public long getMaxNanos() {
+        return max.get();
+    }
+
+    public String toString() {
+        return String.format(Locale.ROOT,"%s: n=%d mean=%.3f ms max=%.3f ms",
+                name,getCount(),getMeanNanos()/1e6,getMaxNanos()/1e6);
+    }
+}
@@ -0,0 +1,166 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Detects overlay symbols directly in the Java-side frame buffer. For every template the frame pixels
+// around its position are turned into one bitset per row (bit set = pixel has the symbol's gray value),
+// a position then matches when popcount(mask & ~bits) over all rows is within the tolerance.
+public class SymbolDetector {
+
+    public final static String STAR = "star";
+    public final static String RING = "ring";
+
+    // the gray value the perimeter draws its symbols with
+    public final static int SYMBOL_PIXEL = 192;
+
+    private final static int[] STAR_MASK = {
+            0,0,0,0,0,1,1,0,0,0,0,0,
+            0,1,1,0,0,1,1,0,0,1,1,0,
+            0,1,1,1,0,1,1,0,1,1,1,0,
+            0,0,1,1,1,1,1,1,1,1,0,0,
+            0,0,0,1,1,1,1,1,1,0,0,0,
+            1,1,1,1,1,1,1,1,1,1,1,1,
+            1,1,1,1,1,1,1,1,1,1,1,1,
+            0,0,0,1,1,1,1,1,1,0,0,0,
+            0,0,1,1,1,1,1,1,1,1,0,0,
+            0,1,1,1,0,1,1,0,1,1,1,0,
+            0,1,1,0,0,1,1,0,0,1,1,0,
+            0,0,0,0,0,1,1,0,0,0,0,0
+    };
+
+    private final static int[] RING_MASK = {
+            0,0,0,0,1,1,1,1,0,0,0,0,
+            0,0,1,1,1,1,1,1,1,1,0,0,
+            0,1,1,1,1,0,0,1,1,1,1,0,
+            0,1,1,0,0,0,0,0,0,1,1,0,
+            1,1,1,0,0,0,0,0,0,1,1,1,
+            1,1,0,0,0,0,0,0,0,0,1,1,
+            1,1,0,0,0,0,0,0,0,0,1,1,
+            1,1,1,0,0,0,0,0,0,1,1,1,
+            0,1,1,0,0,0,0,0,0,1,1,0,
+            0,1,1,1,1,0,0,1,1,1,1,0,
+            0,0,1,1,1,1,1,1,1,1,0,0,
+            0,0,0,0,1,1,1,1,0,0,0,0
+    };
+
+    private final int width;
+    private final int height;
+    private final List<SymbolTemplate> templates = new ArrayList<SymbolTemplate>();
+    private boolean detected[] = new boolean[0];
+    private long bits[] = new long[0];
+
+    public SymbolDetector(int width, int height) {
+        this.width  = width;
+        this.height = height;
+    }
+
+    // the star and ring symbols at the right border of an Octopus 900 frame
+    public static SymbolDetector createDefault() {
+        SymbolDetector d = new SymbolDetector(OctoEye.WIDTH,OctoEye.HEIGHT);
+        d.register(new SymbolTemplate(STAR,STAR_MASK,12,OctoEye.WIDTH-30,18,SYMBOL_PIXEL,0,0));
+        d.register(new SymbolTemplate(RING,RING_MASK,12,OctoEye.WIDTH-30,33,SYMBOL_PIXEL,0,0));
+        return d;
+    }
+
+    // registers a template or replaces the one with the same name, returns its index
+    public synchronized int register(SymbolTemplate template) {
+        for (int i=0; i<templates.size(); i++) {
+            if (templates.get(i).getName().equals(template.getName())) {
+                templates.set(i,template);
+                return i;
+            }
+        }
+        templates.add(template);
+        detected = new boolean[templates.size()];
+        return templates.size()-1;
+    }
+
+    public synchronized void detect(byte frame[]) {
+        for (int i=0; i<templates.size(); i++) {
+            detected[i] = matches(frame,templates.get(i));
+        }
+    }
+
+    private boolean matches(byte frame[], SymbolTemplate t) {
+        if (t.getPixels()==0) {
+            return false;
+        }
+        int j = t.getJitter();
+        int h = t.getHeight();
+        int span = t.getWidth()+2*j;
+        int x0 = t.getX()-j;
+        int y0 = t.getY()-j;
+        byte value = t.getValue();
+
+        // one bitset per frame row of the search window, bit i is pixel x0+i
+        if (bits.length<h+2*j) {
+            bits = new long[h+2*j];
+        }
+        for (int r=0; r<h+2*j; r++) {
+            long b = 0;
+            int y = y0+r;
+            if (y>=0 && y<height) {
+                int o = y*width;
+                for (int i=0; i<span; i++) {
+                    int x = x0+i;
+                    if (x>=0 && x<width) {
+                        b |= (frame[o+x]==value ? 1L : 0L)<<i;
+                    }
+                }
+            }
+            bits[r] = b;
+        }
+
+        int tolerance = t.getTolerance();
+        for (int dy=0; dy<=2*j; dy++) {
+            for (int dx=0; dx<=2*j; dx++) {
+                int misses = 0;
+                for (int r=0; r<h && misses<=tolerance; r++) {
+                    misses += Long.bitCount(t.getRow(r) & ~(bits[dy+r]>>>dx));
+                }
+                if (misses<=tolerance) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public synchronized int size() {
+        return templates.size();
+    }
+
+    public synchronized SymbolTemplate getTemplate(int i) {
+        return templates.get(i);
+    }
+
+    public synchronized boolean isDetected(int i) {
+        return detected[i];
+    }
+
+    public synchronized boolean isDetected(String name) {
+        for (int i=0; i<templates.size(); i++) {
+            if (templates.get(i).getName().equals(name)) {
+                return detected[i];
+            }
+        }
+        return false;
+    }
+}
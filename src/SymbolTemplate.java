@@ -0,0 +1,136 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.Arrays;
+
+// An overlay symbol of the perimeter UI: a bitmask of up to 64x64 pixels, every row packed into a long,
+// that is expected at a fixed position of the frame with all masked pixels set to a fixed gray value.
+public class SymbolTemplate {
+
+    private final String name;
+    private final int width;
+    private final int height;
+    private final long rows[];
+    private final int pixels;
+    private final int x;
+    private final int y;
+    private final byte value;
+    private final int tolerance;
+    private final int jitter;
+
+    // mask holds width*height entries, 1 for pixels of the symbol
+    // tolerance: number of symbol pixels that may differ, jitter: search radius around (x,y) in pixels
+    public SymbolTemplate(String name, int mask[], int width, int x, int y, int value, int tolerance, int jitter) {
+        if (width<1 || mask.length%width!=0) {
+            throw new IllegalArgumentException("mask does not fit width "+width);
+        }
+        if (width+2*jitter>64) {
+            throw new IllegalArgumentException("width plus search window must not exceed 64 pixels");
+        }
+        this.name      = name;
+        this.width     = width;
+        this.height    = mask.length/width;
+        this.x         = x;
+        this.y         = y;
+        this.value     = (byte)value;
+        this.tolerance = tolerance;
+        this.jitter    = jitter;
+
+        rows = new long[height];
+        int n = 0;
+        for (int i=0; i<mask.length; i++) {
+            if (mask[i]!=0) {
+                rows[i/width] |= 1L<<(i%width);
+                n++;
+            }
+        }
+        pixels = n;
+    }
+
+    public SymbolTemplate withTolerance(int tolerance, int jitter) {
+        int mask[] = new int[width*height];
+        for (int i=0; i<mask.length; i++) {
+            mask[i] = (int)(rows[i/width]>>>(i%width)&1);
+        }
+        return new SymbolTemplate(name,mask,width,x,y,value,tolerance,jitter);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    long getRow(int i) {
+        return rows[i];
+    }
+
+    // number of symbol pixels in the mask
+    public int getPixels() {
+        return pixels;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    public byte getValue() {
+        return value;
+    }
+
+    public int getTolerance() {
+        return tolerance;
+    }
+
+    public int getJitter() {
+        return jitter;
+    }
+
+    public boolean equals(Object o) {
+        if (!(o instanceof SymbolTemplate)) {
+            return false;
+        }
+        SymbolTemplate t = (SymbolTemplate)o;
+        return name.equals(t.name) && width==t.width && Arrays.equals(rows,t.rows) && x==t.x && y==t.y
+                && value==t.value && tolerance==t.tolerance && jitter==t.jitter;
+    }
+
+    public int hashCode() {
+        long h = name.hashCode();
+        h = h*31+width;
+        for (long row : rows) {
+            h = h*31+row;
+        }
+        h = h*31+x;
+        h = h*31+y;
+        h = h*31+value;
+        h = h*31+tolerance;
+        h = h*31+jitter;
+        return (int)(h^(h>>>32));
+    }
+}
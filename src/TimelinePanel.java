@@ -0,0 +1,237 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.*;
+
+// the diameter, the axes and the star and ring flags of a whole session over the frame slider, filled
+// as frames are tracked. Every column shows min to max and the mean of the frames below it, taken from
+// a TimelinePyramid, frames not tracked yet are gray. The wheel zooms, a click selects the frame.
+public class TimelinePanel extends JComponent {
+
+    private final static long serialVersionUID = 1L;
+
+    public final static int DIAMETER = 0;
+    public final static int MAJOR    = 1;
+    public final static int MINOR    = 2;
+    public final static int STAR     = 3;
+    public final static int RING     = 4;
+    public final static int SERIES   = 5;
+
+    private final static Color BACKGROUND = new Color(250,250,250);
+    private final static Color PENDING    = new Color(225,225,225);
+    private final static Color RANGE      = new Color(180,230,180);
+    private final static Color DIAMETERS  = new Color(0,150,0);
+    private final static Color MAJORS     = new Color(220,0,0);
+    private final static Color MINORS     = new Color(0,0,220);
+    private final static Color STARS      = new Color(255,175,0);
+    private final static Color RINGS      = new Color(175,0,255);
+    private final static Color CURRENT    = new Color(0,120,215);
+    // height of a flag row below the plot
+    private final static int FLAG = 4;
+    private final static int LABEL = 14;
+    // fewest frames shown when zoomed in
+    private final static int MIN_SPAN = 32;
+
+    public interface Listener {
+        void frameSelected(int frame);
+    }
+
+    private volatile TimelinePyramid pyramid = null;
+    private Listener listener = null;
+    private int current = -1;
+    // visible frames [from,to)
+    private int from = 0;
+    private int to = 0;
+    private long painted = -1;
+    // runs while the panel is showing
+    private final Timer timer;
+
+    private final double lo[]   = new double[SERIES];
+    private final double hi[]   = new double[SERIES];
+    private final double mean[] = new double[SERIES];
+
+    public TimelinePanel() {
+        setPreferredSize(new Dimension(1284,72));
+        setMinimumSize(new Dimension(200,40));
+        setOpaque(true);
+        addMouseListener(new MouseAdapter() {
+            public void mousePressed(MouseEvent e) {
+                if (pyramid!=null && listener!=null) {
+                    listener.frameSelected(frameAt(e.getX()));
+                }
+            }
+        });
+        addMouseWheelListener(new MouseWheelListener() {
+            public void mouseWheelMoved(MouseWheelEvent e) {
+                if (pyramid!=null) {
+                    zoom(e.getX(),Math.pow(2,e.getPreciseWheelRotation()));
+                }
+            }
+        });
+        // background tracking fills the pyramid from other threads, repaint a few times a second while it changes
+        timer = new Timer(250,new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                TimelinePyramid p = pyramid;
+                if (p!=null && p.getVersion()!=painted) {
+                    repaint();
+                }
+            }
+        });
+    }
+
+    public void addNotify() {
+        super.addNotify();
+        timer.start();
+    }
+
+    public void removeNotify() {
+        timer.stop();
+        super.removeNotify();
+    }
+
+    // starts an empty timeline for a session, on the event dispatch thread
+    public void setFrames(int frames) {
+        pyramid = new TimelinePyramid(frames,SERIES);
+        from = 0;
+        to = frames;
+        current = -1;
+        repaint();
+    }
+
+    public TimelinePyramid getPyramid() {
+        return pyramid;
+    }
+
+    // can be called from any thread, the frame without pupil keeps its flags but has no diameter
+    public void setResult(TrackingResult result) {
+        TimelinePyramid p = pyramid;
+        if (p==null || result.getIndex()<0 || result.getIndex()>=p.getFrames()) {
+            return;
+        }
+        double v[] = new double[SERIES];
+        boolean found = result.isPupilFound();
+        v[DIAMETER] = found ? result.getDiameter() : Double.NaN;
+        v[MAJOR]    = found ? result.getPupilMajorAxis() : Double.NaN;
+        v[MINOR]    = found ? result.getPupilMinorAxis() : Double.NaN;
+        v[STAR]     = result.isStar() ? 1 : 0;
+        v[RING]     = result.isRing() ? 1 : 0;
+        p.set(result.getIndex(),v);
+    }
+
+    // marks the frame shown, the view follows it when it leaves the visible range
+    public void setCurrent(int frame) {
+        current = frame;
+        if (pyramid!=null && (frame<from || frame>=to)) {
+            int span = to-from;
+            setRange(frame-span/2,frame-span/2+span);
+        }
+        repaint();
+    }
+
+    public void setRange(int from, int to) {
+        TimelinePyramid p = pyramid;
+        if (p==null) {
+            return;
+        }
+        int frames = p.getFrames();
+        int span = Math.max(Math.min(to-from,frames),Math.min(MIN_SPAN,frames));
+        from = Math.max(0,Math.min(from,frames-span));
+        this.from = from;
+        this.to = from+span;
+        repaint();
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    private void zoom(int x, double factor) {
+        int frame = frameAt(x);
+        int span = (int)Math.round((to-from)*factor);
+        span = Math.max(span,MIN_SPAN);
+        int start = frame-(int)((long)span*x/Math.max(getWidth(),1));
+        setRange(start,start+span);
+    }
+
+    private int frameAt(int x) {
+        int w = Math.max(getWidth(),1);
+        int f = from+(int)((long)(to-from)*Math.max(x,0)/w);
+        return Math.min(f,pyramid.getFrames()-1);
+    }
+
+    protected void paintComponent(Graphics g) {
+        int w = getWidth();
+        int h = getHeight();
+        g.setColor(BACKGROUND);
+        g.fillRect(0,0,w,h);
+        TimelinePyramid p = pyramid;
+        if (p==null || w<=0) {
+            return;
+        }
+        painted = p.getVersion();
+
+        int plot = h-2*FLAG-2;
+        p.summarize(from,to,lo,hi,mean);
+        // the top rows are left for the label
+        double scale = Double.isNaN(hi[DIAMETER]) ? 1 : (plot-LABEL)/hi[DIAMETER];
+
+        int span = to-from;
+        for (int x=0; x<w; x++) {
+            int f0 = from+(int)((long)span*x/w);
+            int f1 = Math.max(from+(int)((long)span*(x+1)/w),f0+1);
+            p.summarize(f0,f1,lo,hi,mean);
+            // the flags are set for every tracked frame
+            if (Double.isNaN(mean[STAR])) {
+                g.setColor(PENDING);
+                g.drawLine(x,0,x,h-1);
+                continue;
+            }
+            if (!Double.isNaN(mean[DIAMETER])) {
+                g.setColor(RANGE);
+                g.drawLine(x,plot-(int)(hi[DIAMETER]*scale),x,plot-(int)(lo[DIAMETER]*scale));
+                // the axes are half axes on the same scale, below the diameter
+                point(g,x,plot-(int)(mean[MAJOR]*scale),MAJORS);
+                point(g,x,plot-(int)(mean[MINOR]*scale),MINORS);
+                point(g,x,plot-(int)(mean[DIAMETER]*scale),DIAMETERS);
+            }
+            if (hi[STAR]>0) {
+                g.setColor(STARS);
+                g.fillRect(x,plot+2,1,FLAG);
+            }
+            if (hi[RING]>0) {
+                g.setColor(RINGS);
+                g.fillRect(x,plot+2+FLAG,1,FLAG);
+            }
+        }
+
+        if (current>=from && current<to) {
+            int x = (int)((long)(current-from)*w/span);
+            g.setColor(CURRENT);
+            g.drawLine(x,0,x,h-1);
+        }
+        g.setColor(Color.GRAY);
+        g.drawString(from+" - "+(to-1)+"   "+p.getFilled()+"/"+p.getFrames(),4,LABEL-3);
+    }
+
+    private static void point(Graphics g, int x, int y, Color color) {
+        g.setColor(color);
+        g.fillRect(x,y,1,1);
+    }
+}
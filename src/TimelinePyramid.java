@@ -0,0 +1,176 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.Arrays;
+
+// min, max and mean of several series over a session, kept for buckets of 1, 4, 16, ... frames and
+// filled in any order as frames are tracked. A range of frames is summarized from the largest buckets
+// inside it, so drawing a timeline costs O(columns*log(frames)) however long the session is.
+// NaN marks a value which is missing, e.g. the diameter of a frame without pupil.
+public class TimelinePyramid {
+
+    private final static int FANOUT_BITS = 2;
+    private final static int FANOUT = 1<<FANOUT_BITS;
+
+    private final int frames;
+    private final int series;
+    private final int levels;
+    // [level][bucket*series+s]
+    private final float min[][];
+    private final float max[][];
+    private final double sum[][];
+    private final int count[][];
+    private final boolean set[];
+    private int filled = 0;
+    private long version = 0;
+
+    public TimelinePyramid(int frames, int series) {
+        if (frames<1 || series<1) {
+            throw new IllegalArgumentException("invalid size "+frames+"x"+series);
+        }
+        this.frames = frames;
+        this.series = series;
+        int l = 1;
+        while (buckets(l-1)>1) {
+            l++;
+        }
+        levels = l;
+        min   = new float[levels][];
+        max   = new float[levels][];
+        sum   = new double[levels][];
+        count = new int[levels][];
+        for (l=0; l<levels; l++) {
+            int n = buckets(l)*series;
+            min[l]   = new float[n];
+            max[l]   = new float[n];
+            sum[l]   = new double[n];
+            count[l] = new int[n];
+        }
+        set = new boolean[frames];
+    }
+
+    private int buckets(int level) {
+        int size = 1<<(level*FANOUT_BITS);
+        return (frames+size-1)/size;
+    }
+
+    // sets or replaces the values of a frame and updates the buckets above it
+    public synchronized void set(int frame, double values[]) {
+        if (values.length!=series) {
+            throw new IllegalArgumentException("expected "+series+" values");
+        }
+        for (int s=0; s<series; s++) {
+            int k = frame*series+s;
+            boolean valid = !Double.isNaN(values[s]);
+            min[0][k]   = valid ? (float)values[s] : 0;
+            max[0][k]   = min[0][k];
+            sum[0][k]   = valid ? values[s] : 0;
+            count[0][k] = valid ? 1 : 0;
+        }
+        if (!set[frame]) {
+            set[frame] = true;
+            filled++;
+        }
+        int b = frame;
+        for (int l=1; l<levels; l++) {
+            b >>= FANOUT_BITS;
+            int first = b*FANOUT;
+            int last  = Math.min(first+FANOUT,buckets(l-1));
+            for (int s=0; s<series; s++) {
+                float lo = Float.MAX_VALUE, hi = -Float.MAX_VALUE;
+                double total = 0;
+                int n = 0;
+                for (int c=first; c<last; c++) {
+                    int k = c*series+s;
+                    if (count[l-1][k]>0) {
+                        lo = Math.min(lo,min[l-1][k]);
+                        hi = Math.max(hi,max[l-1][k]);
+                        total += sum[l-1][k];
+                        n += count[l-1][k];
+                    }
+                }
+                int k = b*series+s;
+                min[l][k]   = lo;
+                max[l][k]   = hi;
+                sum[l][k]   = total;
+                count[l][k] = n;
+            }
+        }
+        version++;
+    }
+
+    // fills min, max and mean of every series over the frames [from,to), NaN where no value was set
+    public synchronized void summarize(int from, int to, double lo[], double hi[], double mean[]) {
+        Arrays.fill(lo,Double.NaN);
+        Arrays.fill(hi,Double.NaN);
+        Arrays.fill(mean,0);
+        int n[] = new int[series];
+        from = Math.max(from,0);
+        to   = Math.min(to,frames);
+        int l = 0;
+        while (from<to) {
+            // the largest bucket which starts at from and ends within the range
+            while (l+1<levels && (from&((1<<((l+1)*FANOUT_BITS))-1))==0 && from+(1<<((l+1)*FANOUT_BITS))<=to) {
+                l++;
+            }
+            while (l>0 && ((from&((1<<(l*FANOUT_BITS))-1))!=0 || from+(1<<(l*FANOUT_BITS))>to)) {
+                l--;
+            }
+            int b = from>>(l*FANOUT_BITS);
+            for (int s=0; s<series; s++) {
+                int k = b*series+s;
+                if (count[l][k]>0) {
+                    lo[s] = Double.isNaN(lo[s]) ? min[l][k] : Math.min(lo[s],min[l][k]);
+                    hi[s] = Double.isNaN(hi[s]) ? max[l][k] : Math.max(hi[s],max[l][k]);
+                    mean[s] += sum[l][k];
+                    n[s] += count[l][k];
+                }
+            }
+            from += 1<<(l*FANOUT_BITS);
+        }
+        for (int s=0; s<series; s++) {
+            mean[s] = n[s]>0 ? mean[s]/n[s] : Double.NaN;
+        }
+    }
+
+    public synchronized boolean isSet(int frame) {
+        return set[frame];
+    }
+
+    // number of frames with values
+    public synchronized int getFilled() {
+        return filled;
+    }
+
+    // changes with every set(), to tell whether a drawn timeline is out of date
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    public int getFrames() {
+        return frames;
+    }
+
+    public int getSeries() {
+        return series;
+    }
+
+    public int getLevels() {
+        return levels;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Locale;
+
+// Per tracker stage latencies and outcome counters. The tracker collects the timings of a frame
+// and commits them once per frame, snapshots can be taken from any thread.
+public class TrackerMetrics {
+
+    private final static PipelineStage[] STAGES   = PipelineStage.values();
+    private final static Outcome[]       OUTCOMES = Outcome.values();
+
+    private final LatencyHistogram histograms[] = new LatencyHistogram[STAGES.length];
+    private final long outcomes[] = new long[OUTCOMES.length];
+    private long frames = 0;
+
+    public TrackerMetrics() {
+        for (int i=0; i<histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    // stageNanos is indexed by PipelineStage.ordinal(), negative entries mark stages that did not run
+    public synchronized void commit(long stageNanos[], Outcome outcome) {
+        for (int i=0; i<histograms.length; i++) {
+            if (stageNanos[i]>=0) {
+                histograms[i].record(stageNanos[i]);
+            }
+        }
+        outcomes[outcome.ordinal()]++;
+        frames++;
+    }
+
+    public synchronized void reset() {
+        for (LatencyHistogram h : histograms) {
+            h.reset();
+        }
+        Arrays.fill(outcomes,0);
+        frames = 0;
+    }
+
+    public synchronized Snapshot snapshot() {
+        LatencyHistogram copies[] = new LatencyHistogram[histograms.length];
+        for (int i=0; i<histograms.length; i++) {
+            copies[i] = histograms[i].copy();
+        }
+        return new Snapshot(frames,outcomes.clone(),copies);
+    }
+
+    public static Snapshot merge(Iterable<TrackerMetrics> metrics) {
+        Snapshot merged = new Snapshot();
+        for (TrackerMetrics m : metrics) {
+            merged.add(m.snapshot());
+        }
+        return merged;
+    }
+
+    // prints a log line of the merged metrics every periodMillis until the returned thread is interrupted
+    public static Thread startLogging(final Iterable<TrackerMetrics> metrics, final long periodMillis, final PrintStream out) {
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        Thread.sleep(periodMillis);
+                        out.println(merge(metrics).toLogLine());
+                    }
+                } catch (InterruptedException e) {
+                    // stopped
+                }
+            }
+        },"OctoEye-metrics");
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    public static class Snapshot {
+
+        private long frames;
+        private final long outcomes[];
+        private final LatencyHistogram histograms[];
+
+        Snapshot() {
+            outcomes   = new long[OUTCOMES.length];
+            histograms = new LatencyHistogram[STAGES.length];
+            for (int i=0; i<histograms.length; i++) {
+                histograms[i] = new LatencyHistogram();
+            }
+        }
+
+        Snapshot(long frames, long outcomes[], LatencyHistogram histograms[]) {
+            this.frames     = frames;
+            this.outcomes   = outcomes;
+            this.histograms = histograms;
+        }
+
+        void add(Snapshot s) {
+            frames += s.frames;
+            for (int i=0; i<outcomes.length; i++) {
+                outcomes[i] += s.outcomes[i];
+            }
+            for (int i=0; i<histograms.length; i++) {
+                histograms[i].add(s.histograms[i]);
+            }
+        }
+
+        public long getFrames() {
+            return frames;
+        }
+
+        public long getCount(Outcome outcome) {
+            return outcomes[outcome.ordinal()];
+        }
+
+        public LatencyHistogram getHistogram(PipelineStage stage) {
+            return histograms[stage.ordinal()];
+        }
+
+        public String toLogLine() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("frames=").append(frames);
+            for (Outcome o : OUTCOMES) {
+                sb.append(' ').append(o.name().toLowerCase(Locale.ROOT)).append('=').append(outcomes[o.ordinal()]);
+            }
+            for (PipelineStage s : STAGES) {
+                LatencyHistogram h = histograms[s.ordinal()];
+                if (h.getCount()>0) {
+                    sb.append(String.format(Locale.ROOT," %s[p50=%.3f p99=%.3f max=%.3f ms]",
+                            s.name().toLowerCase(Locale.ROOT),
+                            h.getValueAtPercentile(50)/1e6,
+                            h.getValueAtPercentile(99)/1e6,
+                            h.getMax()/1e6));
+                }
+            }
+            return sb.toString();
+        }
+
+        public String toString() {
+            return toLogLine();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.Locale;
+
+public class TrackingResult {
+
+    private final int index;
+    private final String name;
+    private final long time;
+    private final int majorAxis;
+    private final int minorAxis;
+    private final double angle;
+    private final double centerX;
+    private final double centerY;
+    private final boolean star;
+    private final boolean ring;
+    private final Outcome outcome;
+    // how the quality gate classified the frame, null without the gate
+    private final FrameQualityGate.Decision decision;
+
+    public TrackingResult(int index, String name, long time, int majorAxis, int minorAxis,
+                          double angle, double centerX, double centerY, boolean star, boolean ring, Outcome outcome) {
+        this(index,name,time,majorAxis,minorAxis,angle,centerX,centerY,star,ring,outcome,null);
+    }
+
+    public TrackingResult(int index, String name, long time, int majorAxis, int minorAxis,
+                          double angle, double centerX, double centerY, boolean star, boolean ring, Outcome outcome,
+                          FrameQualityGate.Decision decision) {
+        this.index     = index;
+        this.name      = name;
+        this.time      = time;
+        this.majorAxis = majorAxis;
+        this.minorAxis = minorAxis;
+        this.angle     = angle;
+        this.centerX   = centerX;
+        this.centerY   = centerY;
+        this.star      = star;
+        this.ring      = ring;
+        this.outcome   = outcome;
+        this.decision  = decision;
+    }
+
+    // the same measurements for another frame, e.g. a cached result for a frame with the same content
+    public TrackingResult withFrame(int index, String name) {
+        return new TrackingResult(index,name,time,majorAxis,minorAxis,angle,centerX,centerY,star,ring,outcome,decision);
+    }
+
+    public static String header() {
+        return "file,time,diameter,major,minor,angle,x,y,star,ring,outcome";
+    }
+
+    public String toCsv() {
+        return String.format(Locale.ROOT,"%s,%d,%d,%d,%d,%.2f,%.2f,%.2f,%d,%d,%s",
+                name,
+                time,
+                getDiameter(),
+                majorAxis,
+                minorAxis,
+                angle,
+                centerX,
+                centerY,
+                star?1:0,
+                ring?1:0,
+                outcome);
+    }
+
+    public boolean isPupilFound() {
+        return outcome==Outcome.FOUND;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public int getDiameter() {
+        return 2*majorAxis;
+    }
+
+    public int getPupilMajorAxis() {
+        return majorAxis;
+    }
+
+    public int getPupilMinorAxis() {
+        return minorAxis;
+    }
+
+    public double getAngle() {
+        return angle;
+    }
+
+    public double getCenterX() {
+        return centerX;
+    }
+
+    public double getCenterY() {
+        return centerY;
+    }
+
+    public boolean isStar() {
+        return star;
+    }
+
+    public boolean isRing() {
+        return ring;
+    }
+
+    public Outcome getOutcome() {
+        return outcome;
+    }
+
+    public FrameQualityGate.Decision getDecision() {
+        return decision;
+    }
+
+    // the decision packed into bits 2 and 3 of the star/ring flags of the binary formats, 0 for none
+    public int getFlags() {
+        return (star ? 1 : 0)|(ring ? 2 : 0)|(decision!=null ? (decision.ordinal()+1)<<2 : 0);
+    }
+
+    public static FrameQualityGate.Decision decision(int flags) {
+        int d = (flags>>2)&3;
+        return d>0 ? FrameQualityGate.Decision.values()[d-1] : null;
+    }
+}
@@ -0,0 +1,490 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// tracks the frames of several devices over TCP. A client sends every frame as a 4 byte big-endian
+// length followed by the FRAME_SIZE gray values and gets a RESULT_SIZE record back for each, in order.
+// One selector thread does all socket I/O, so an idle connection costs a key and a header buffer.
+// Frames are read straight into direct buffers from a shared pool and tracked by a fixed pool of
+// workers with a tracker each. Connections with frames waiting take turns, one frame per turn, and a
+// connection is not read while MAX_QUEUED of its frames are waiting or its results are not being read.
+// The frames of a connection can go to any worker, so every frame gets the full search.
+public class TrackingServer implements Runnable {
+
+    public final static int FRAME_SIZE = JavaTracker.WIDTH*JavaTracker.HEIGHT;
+    // sequence number, time in microseconds, center x, center y, major axis, minor axis, angle, flags, outcome
+    public final static int RESULT_SIZE = 4+4+4+4+2+2+4+1+1;
+    public final static int DEFAULT_PORT = 7800;
+    // frames of a connection read ahead of its results
+    public final static int MAX_QUEUED = 2;
+    // a connection is not read while more result bytes than this wait to be sent
+    private final static int MAX_PENDING = 64*RESULT_SIZE;
+
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final int threads;
+    private Engine engine = Engine.getDefault();
+    private Parameters parameters = new Parameters();
+    private volatile boolean running = true;
+
+    private ExecutorService workers;
+    private final List<PupilTracker> trackers = Collections.synchronizedList(new ArrayList<PupilTracker>());
+    private final List<TrackerMetrics> trackerMetrics = new CopyOnWriteArrayList<TrackerMetrics>();
+    private final ThreadLocal<PupilTracker> tracker = new ThreadLocal<PupilTracker>() {
+        protected PupilTracker initialValue() {
+            PupilTracker t = engine.create();
+            t.setOutputMode(OutputMode.MEASUREMENTS);
+            t.setParameters(parameters);
+            trackers.add(t);
+            trackerMetrics.add(t.getMetrics());
+            return t;
+        }
+    };
+
+    // free frame buffers and the connections waiting for one, in the order they asked
+    private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<ByteBuffer>();
+    private final ArrayDeque<Connection> starving = new ArrayDeque<Connection>();
+    // connections whose interest set the selector thread has to update
+    private final Queue<Connection> changed = new ConcurrentLinkedQueue<Connection>();
+
+    private final AtomicLong frames = new AtomicLong();
+    private volatile int connections = 0;
+
+    private class Connection {
+        final SocketChannel channel;
+        SelectionKey key;
+        final ByteBuffer header = ByteBuffer.allocate(4);
+        // the frame being read, only used by the selector thread
+        ByteBuffer frame = null;
+        boolean eof = false;
+
+        // shared with the workers, guarded by the connection
+        final ArrayDeque<ByteBuffer> queued = new ArrayDeque<ByteBuffer>();
+        int inflight = 0;
+        boolean scheduled = false;
+        boolean closed = false;
+        // a frame could not be tracked, the results before it are sent and the connection is closed
+        boolean failed = false;
+        int sequence = 0;
+        final ByteBuffer results = ByteBuffer.allocate(MAX_PENDING+2*MAX_QUEUED*RESULT_SIZE);
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    // one frame of a connection, submitted again at the end of the queue while it has more
+    private class Turn implements Runnable {
+
+        private final Connection c;
+
+        Turn(Connection c) {
+            this.c = c;
+        }
+
+        public void run() {
+            ByteBuffer frame;
+            synchronized (c) {
+                frame = c.queued.poll();
+            }
+            if (frame==null) {
+                return;
+            }
+            TrackingResult r = null;
+            long micros = 0;
+            try {
+                PupilTracker t = tracker.get();
+                t.process(frame);
+                r = t.getResult(c.sequence,"");
+                micros = t.getTimeNanos()/1000;
+                frames.incrementAndGet();
+            } catch (RuntimeException e) {
+                System.err.println("TrackingServer: frame "+c.sequence+" of "+c.channel.socket().getRemoteSocketAddress()+": "+e);
+            } finally {
+                release(frame);
+                finish(r,micros);
+            }
+        }
+
+        // the result or, without one, the end of the connection; runs even if tracking threw
+        private void finish(TrackingResult r, long micros) {
+            boolean again;
+            synchronized (c) {
+                c.inflight--;
+                if (r==null) {
+                    // the frames after the one that failed are not tracked
+                    c.failed = true;
+                    for (ByteBuffer b : c.queued) {
+                        release(b);
+                    }
+                    c.inflight -= c.queued.size();
+                    c.queued.clear();
+                } else if (!c.closed) {
+                    // reading stops above MAX_PENDING, so at most MAX_QUEUED more results arrive and there is room
+                    c.results.putInt(c.sequence);
+                    c.results.putInt((int)Math.min(micros,Integer.MAX_VALUE));
+                    c.results.putFloat((float)r.getCenterX());
+                    c.results.putFloat((float)r.getCenterY());
+                    c.results.putShort((short)r.getPupilMajorAxis());
+                    c.results.putShort((short)r.getPupilMinorAxis());
+                    c.results.putFloat((float)r.getAngle());
+                    c.results.put((byte)r.getFlags());
+                    c.results.put((byte)r.getOutcome().ordinal());
+                }
+                c.sequence++;
+                again = !c.queued.isEmpty();
+                c.scheduled = again;
+            }
+            if (again) {
+                workers.execute(this);
+            }
+            changed.add(c);
+            selector.wakeup();
+        }
+    }
+
+    public TrackingServer(int port, int threads) throws IOException {
+        if (threads<1) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        this.threads = threads;
+        server = ServerSocketChannel.open();
+        server.configureBlocking(false);
+        server.socket().bind(new InetSocketAddress(port));
+        selector = Selector.open();
+        server.register(selector,SelectionKey.OP_ACCEPT);
+        // every worker can have a frame while the next ones are read
+        for (int i=0; i<threads*(MAX_QUEUED+1); i++) {
+            buffers.add(ByteBuffer.allocateDirect(FRAME_SIZE));
+        }
+    }
+
+    public void setEngine(Engine engine) {
+        this.engine = engine;
+    }
+
+    public void setParameters(Parameters parameters) {
+        this.parameters = parameters.copy();
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    public long getFrames() {
+        return frames.get();
+    }
+
+    public int getConnections() {
+        return connections;
+    }
+
+    public List<TrackerMetrics> getMetrics() {
+        return trackerMetrics;
+    }
+
+    public void run() {
+        workers = Executors.newFixedThreadPool(threads);
+        try {
+            while (running) {
+                selector.select();
+                Connection c;
+                while ((c = changed.poll())!=null) {
+                    update(c);
+                }
+                feed();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    c = (Connection)key.attachment();
+                    try {
+                        if (key.isWritable()) {
+                            write(c);
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            read(c);
+                        }
+                    } catch (IOException e) {
+                        close(c);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            workers.shutdownNow();
+            try {
+                workers.awaitTermination(1,TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment()!=null) {
+                    close((Connection)key.attachment());
+                }
+            }
+            try {
+                selector.close();
+                server.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+            synchronized (trackers) {
+                for (PupilTracker t : trackers) {
+                    t.close();
+                }
+                trackers.clear();
+            }
+        }
+    }
+
+    // stops the selector loop, run() returns after closing all connections
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel==null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Connection c = new Connection(channel);
+        c.key = channel.register(selector,SelectionKey.OP_READ,c);
+        connections++;
+    }
+
+    private void read(Connection c) throws IOException {
+        while (true) {
+            if (c.header.hasRemaining()) {
+                if (c.channel.read(c.header)<0) {
+                    c.eof = true;
+                    update(c);
+                    return;
+                }
+                if (c.header.hasRemaining()) {
+                    return;
+                }
+                if (c.header.getInt(0)!=FRAME_SIZE) {
+                    // not a frame, the stream cannot be resynchronized
+                    close(c);
+                    return;
+                }
+            }
+            if (c.frame==null) {
+                c.frame = take();
+                if (c.frame==null) {
+                    starving.add(c);
+                    update(c);
+                    return;
+                }
+            }
+            if (c.channel.read(c.frame)<0) {
+                c.eof = true;
+                update(c);
+                return;
+            }
+            if (c.frame.hasRemaining()) {
+                return;
+            }
+            c.frame.flip();
+            c.header.clear();
+            boolean schedule;
+            synchronized (c) {
+                if (c.failed) {
+                    // a worker failed while the frame was read, it is not tracked any more
+                    release(c.frame);
+                    schedule = false;
+                } else {
+                    c.queued.add(c.frame);
+                    c.inflight++;
+                    schedule = !c.scheduled;
+                    c.scheduled = true;
+                }
+            }
+            c.frame = null;
+            if (schedule) {
+                workers.execute(new Turn(c));
+            }
+            if (!readable(c)) {
+                update(c);
+                return;
+            }
+        }
+    }
+
+    private void write(Connection c) throws IOException {
+        synchronized (c) {
+            c.results.flip();
+            c.channel.write(c.results);
+            c.results.compact();
+        }
+        update(c);
+    }
+
+    private boolean readable(Connection c) {
+        if (c.eof || (c.frame==null && !c.header.hasRemaining())) {
+            return false;
+        }
+        synchronized (c) {
+            return !c.failed && c.inflight<MAX_QUEUED && c.results.position()<=MAX_PENDING;
+        }
+    }
+
+    // sets the interest of the connection, closes it after the end of its stream or a failed frame once all
+    // results are sent
+    private void update(Connection c) {
+        if (!c.key.isValid()) {
+            return;
+        }
+        boolean pending;
+        boolean done;
+        synchronized (c) {
+            pending = c.results.position()>0;
+            done = (c.eof || c.failed) && c.inflight==0 && !pending;
+        }
+        if (done) {
+            close(c);
+            return;
+        }
+        c.key.interestOps((readable(c) ? SelectionKey.OP_READ : 0)|(pending ? SelectionKey.OP_WRITE : 0));
+    }
+
+    // hands the free buffers to the connections which ran out, the first to ask gets the first
+    private void feed() {
+        while (!starving.isEmpty()) {
+            ByteBuffer b = take();
+            if (b==null) {
+                return;
+            }
+            Connection c = starving.poll();
+            if (!c.key.isValid()) {
+                release(b);
+                continue;
+            }
+            c.frame = b;
+            update(c);
+        }
+    }
+
+    private ByteBuffer take() {
+        synchronized (buffers) {
+            ByteBuffer b = buffers.poll();
+            if (b!=null) {
+                b.clear();
+            }
+            return b;
+        }
+    }
+
+    private void release(ByteBuffer b) {
+        synchronized (buffers) {
+            buffers.add(b);
+        }
+    }
+
+    private void close(Connection c) {
+        c.key.cancel();
+        try {
+            c.channel.close();
+        } catch (IOException e) {
+            // gone anyway
+        }
+        if (c.frame!=null) {
+            release(c.frame);
+            c.frame = null;
+        }
+        synchronized (c) {
+            if (!c.closed) {
+                c.closed = true;
+                connections--;
+            }
+            for (ByteBuffer b : c.queued) {
+                release(b);
+            }
+            c.inflight -= c.queued.size();
+            c.queued.clear();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = DEFAULT_PORT;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long log = 5000;
+        Engine engine = Engine.getDefault();
+        Parameters parameters = new Parameters();
+        for (int i=0; i<args.length; i++) {
+            String a = args[i];
+            boolean value = i+1<args.length;
+            if (a.equals("-port") && value) {
+                port = Integer.parseInt(args[++i]);
+            } else if (a.equals("-threads") && value) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (a.equals("-engine") && value) {
+                engine = Engine.fromName(args[++i]);
+            } else if (a.equals("-log") && value) {
+                log = Long.parseLong(args[++i]);
+            } else if (a.equals("-p") && value && args[i+1].indexOf('=')>0) {
+                String p = args[++i];
+                parameters.set(p.substring(0,p.indexOf('=')),p.substring(p.indexOf('=')+1));
+            } else {
+                System.err.println("Usage: TrackingServer [-port n] [-threads n] [-engine opencv|java] [-log ms] [-p name=value]...");
+                System.exit(1);
+            }
+        }
+        System.setProperty("java.awt.headless","true");
+
+        TrackingServer server = new TrackingServer(port,threads);
+        server.setEngine(engine);
+        server.setParameters(parameters);
+        System.err.println("TrackingServer listening on port "+server.getPort()+" with "+threads+" workers");
+        if (log>0) {
+            TrackerMetrics.startLogging(server.getMetrics(),log,System.err);
+        }
+        server.run();
+    }
+}
@@ -0,0 +1,32 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class MedianFilterCheckTest {
+
+    // an odd size, so bands and corner regions do not line up with powers of two
+    @Test
+    public void matchesBruteForce() {
+        MedianFilterCheck check = new MedianFilterCheck(97,71,3);
+        check.run();
+        assertEquals(check.getSummary(),0,check.getMismatches());
+    }
+}
@@ -0,0 +1,171 @@
+/*
+    Matthias Müller <muellmat@gmail.com>
+    https://github.com/muellmat/OctoEye
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ResultCacheTest {
+
+    private final static long PARAMETERS = 42;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static TrackingResult result(int i) {
+        return new TrackingResult(i,null,1000+i,40+i,30+i,0.5*i,100.25+i,80.5-i,i%2==0,i%3==0,
+                Outcome.values()[i%Outcome.values().length],TrackingResult.decision((i%4)<<2));
+    }
+
+    private static void assertResult(int i, ResultCache cache) {
+        ResultCache.Entry e = cache.get(i,PARAMETERS);
+        assertNotNull("frame "+i,e);
+        TrackingResult expected = result(i);
+        TrackingResult r = e.getResult();
+        assertEquals(expected.getTime(),r.getTime());
+        assertEquals(expected.getPupilMajorAxis(),r.getPupilMajorAxis());
+        assertEquals(expected.getPupilMinorAxis(),r.getPupilMinorAxis());
+        assertEquals(expected.getAngle(),r.getAngle(),0);
+        assertEquals(expected.getCenterX(),r.getCenterX(),0);
+        assertEquals(expected.getCenterY(),r.getCenterY(),0);
+        assertEquals(expected.getFlags(),r.getFlags());
+        assertEquals(expected.getOutcome(),r.getOutcome());
+    }
+
+    private static ResultCache open(File file) throws Exception {
+        ResultCache cache = new ResultCache(1L<<20);
+        cache.open(file);
+        return cache;
+    }
+
+    @Test
+    public void reopenAfterTornRecord() throws Exception {
+        File file = folder.newFile("cache.bin");
+        ResultCache cache = open(file);
+        for (int i=0; i<10; i++) {
+            cache.put(i,PARAMETERS,result(i));
+        }
+        cache.close();
+        long length = file.length();
+
+        // cut the last record in half, as a killed process would
+        RandomAccessFile raf = new RandomAccessFile(file,"rw");
+        raf.setLength(length-20);
+        raf.close();
+
+        cache = open(file);
+        assertEquals(length-58,file.length());
+        for (int i=0; i<9; i++) {
+            assertResult(i,cache);
+        }
+        assertNull(cache.get(9,PARAMETERS));
+        for (int i=9; i<15; i++) {
+            cache.put(i,PARAMETERS,result(i));
+        }
+        cache.close();
+
+        cache = open(file);
+        for (int i=0; i<15; i++) {
+            assertResult(i,cache);
+        }
+        cache.close();
+    }
+
+    @Test
+    public void invalidRecordIsSkipped() throws Exception {
+        File file = folder.newFile("cache.bin");
+        ResultCache cache = open(file);
+        for (int i=0; i<5; i++) {
+            cache.put(i,PARAMETERS,result(i));
+        }
+        cache.close();
+        long length = file.length();
+
+        // the outcome byte of the fourth record
+        RandomAccessFile raf = new RandomAccessFile(file,"rw");
+        raf.seek(8+4*58-1);
+        raf.writeByte(100);
+        raf.close();
+
+        cache = open(file);
+        assertEquals(length,file.length());
+        for (int i=0; i<5; i++) {
+            if (i!=3) {
+                assertResult(i,cache);
+            }
+        }
+        assertNull(cache.get(3,PARAMETERS));
+        cache.close();
+    }
+
+    @Test
+    public void compactKeepsRecentRecords() throws Exception {
+        File file = folder.newFile("cache.bin");
+        // room for 100 records in the file
+        ResultCache cache = new ResultCache(16000);
+        cache.open(file);
+        for (int i=0; i<1000; i++) {
+            cache.put(i,PARAMETERS,result(i));
+            assertTrue(cache.getRecords()<=100);
+            assertTrue(cache.getBytes()<=cache.getMaxBytes());
+        }
+        cache.close();
+        assertTrue(file.length()<=8+100*58);
+
+        cache = open(file);
+        for (int i=950; i<1000; i++) {
+            assertResult(i,cache);
+        }
+        assertNull(cache.get(0,PARAMETERS));
+        cache.close();
+    }
+
+    @Test
+    public void parametersDependOnTemplates() throws Exception {
+        JavaTracker tracker = new JavaTracker();
+        long p = ResultCache.parameters(tracker);
+        SymbolDetector symbols = tracker.getSymbolDetector();
+        symbols.register(symbols.getTemplate(0).withTolerance(3,0));
+        assertNotEquals(p,ResultCache.parameters(tracker));
+        tracker.close();
+    }
+
+    @Test
+    public void flushWritesRecords() throws Exception {
+        File file = folder.newFile("cache.bin");
+        ResultCache cache = open(file);
+        cache.put(1,PARAMETERS,result(1));
+        cache.flush();
+        assertEquals(8+58,file.length());
+
+        // a second cache on the same file sees the flushed record without close()
+        ResultCache other = open(file);
+        assertResult(1,other);
+        other.close();
+        cache.close();
+    }
+}